@@ -28,6 +28,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(byte[] data, int offset) {
+            return new IntField(readInt(data, offset));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -46,6 +51,11 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(byte[] data, int offset) {
+            return new StringField(readString(data, offset), STRING_LEN);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -64,4 +74,28 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object whose contents
+   *   are the getLen() bytes of data starting at offset, in the format
+   *   written by Field.serialize
+   */
+    public abstract Field parse(byte[] data, int offset);
+
+  /**
+   * @return the big-endian int stored in data at offset, as written by
+   *   DataOutputStream.writeInt
+   */
+    public static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+                | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+    }
+
+  /**
+   * @return the string stored in data at offset in the format of
+   *   StringField.serialize
+   */
+    public static String readString(byte[] data, int offset) {
+        return new String(data, offset + 4, readInt(data, offset));
+    }
+
 }
@@ -139,6 +139,20 @@ public class Utility {
         return hf;
     }
 
+    /** Opens a HeapFile in memory-mapped mode and adds it to the catalog.
+     *
+     * @param cols number of columns in the table.
+     * @param f location of the file storing the table.
+     * @return the opened table.
+     * @see HeapFile#HeapFile(File, TupleDesc, boolean)
+     */
+    public static HeapFile openMappedHeapFile(int cols, File f) {
+        TupleDesc td = getTupleDesc(cols);
+        HeapFile hf = new HeapFile(f, td, true);
+        Database.getCatalog().addTable(hf, UUID.randomUUID().toString());
+        return hf;
+    }
+
     public static HeapFile openHeapFile(int cols, String colPrefix, File f, TupleDesc td) {
         // create the HeapFile and add it to the catalog
         HeapFile hf = new HeapFile(f, td);
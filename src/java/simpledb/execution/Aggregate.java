@@ -3,6 +3,7 @@ package simpledb.execution;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
@@ -112,8 +113,10 @@ public class Aggregate extends Operator {
         // some code goes here
         super.open();
         child.open();
-        while(child.hasNext()){
-            aggregator.mergeTupleIntoGroup(child.next());
+        /* 按批读取子算子，整批合并进聚合结果 */
+        TupleBatch batch;
+        while((batch = child.nextBatch()) != null){
+            aggregator.mergeBatchIntoGroup(batch);
         }
         opIterator = aggregator.iterator();
         opIterator.open();
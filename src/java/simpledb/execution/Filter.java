@@ -3,6 +3,7 @@ package simpledb.execution;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -80,6 +81,23 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Filters whole batches of the child operator, dropping the batches of
+     * which no tuple passes the predicate.
+     * 
+     * @see Predicate#filter(TupleBatch)
+     */
+    @Override
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch;
+        while ((batch = childOpIterator.nextBatch()) != null) {
+            predicate.filter(batch);
+            if (!batch.isEmpty())
+                return batch;
+        }
+        return null;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
@@ -2,7 +2,10 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.CompactTuple;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -76,7 +79,8 @@ public class HashEquiJoin extends Operator {
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        // 第一块child1在第一次取结果时才装入，逐行和按批两种方式各自装入
+        mapLoaded = false;
         super.open();
     }
 
@@ -84,18 +88,27 @@ public class HashEquiJoin extends Operator {
         super.close();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        reset();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        reset();
+    }
+
+    private void reset() {
+        this.t1=null;
+        this.t2=null;
+        this.listIt=null;
+        this.map.clear();
+        this.mapLoaded = false;
+        this.build = null;
+        this.probe = null;
     }
 
     transient Iterator<Tuple> listIt = null;
+    transient private boolean mapLoaded = false;
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -122,16 +135,20 @@ public class HashEquiJoin extends Operator {
         int td2n = t2.getTupleDesc().numFields();
 
         // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
+        Tuple t = new CompactTuple(comboTD);
         for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
+            t.setField(i, t1, i);
         for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
+            t.setField(td1n + i, t2, i);
         return t;
 
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (!mapLoaded) {
+            mapLoaded = true;
+            loadMap();
+        }
         if (listIt != null && listIt.hasNext()) {
             return processList();
         }
@@ -160,6 +177,124 @@ public class HashEquiJoin extends Operator {
         return null;
     }
 
+    /* 按批执行的状态：当前一块child1（构建侧）及其上的整数哈希索引，
+     * 以及正在探测的child2批和探测到的位置 */
+    transient private TupleBatch build;
+    transient private int[] buckets;
+    transient private int[] chain;
+    transient private TupleBatch probe;
+    transient private int probeRow;
+    transient private int match;
+
+    /**
+     * Joins batches of child2 against blocks of child1 through an int hash
+     * index, if both join fields are INT_TYPE fields. Each output batch
+     * combines rows of one child2 batch, so it may hold fewer than
+     * {@link TupleBatch#DEFAULT_SIZE} tuples.
+     */
+    @Override
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        if (child1.getTupleDesc().getFieldType(pred.getField1()) != Type.INT_TYPE
+                || child2.getTupleDesc().getFieldType(pred.getField2()) != Type.INT_TYPE)
+            return super.fetchNextBatch();
+
+        int[] buildRows = new int[TupleBatch.DEFAULT_SIZE];
+        int[] probeRows = new int[TupleBatch.DEFAULT_SIZE];
+        while (true) {
+            if (build == null && !loadBuild())
+                return null;
+            if (probe == null) {
+                probe = child2.nextBatch();
+                if (probe == null) {
+                    // child2 is done: advance child1
+                    child2.rewind();
+                    build = null;
+                    continue;
+                }
+                probeRow = 0;
+                match = -1;
+            }
+
+            int[] buildKeys = build.getInts(pred.getField1());
+            int[] probeKeys = probe.getInts(pred.getField2());
+            int mask = buckets.length - 1;
+            int n = 0;
+            boolean probeNulls = probe.hasNulls(pred.getField2());
+            while (n < buildRows.length && probeRow < probe.size()) {
+                // 空值不与任何行相等
+                if (probeNulls && probe.isNull(probeRow, pred.getField2())) {
+                    probeRow++;
+                    continue;
+                }
+                int key = probeKeys[probeRow];
+                int r = match < 0 ? buckets[hash(key) & mask] : chain[match];
+                while (r >= 0 && buildKeys[r] != key)
+                    r = chain[r];
+                if (r < 0) {
+                    probeRow++;
+                    match = -1;
+                    continue;
+                }
+                buildRows[n] = r;
+                probeRows[n++] = probeRow;
+                match = r;
+            }
+            TupleBatch current = probe;
+            if (probeRow >= probe.size())
+                probe = null;
+            if (n > 0) {
+                TupleBatch out = new TupleBatch(comboTD);
+                out.gather(0, build, buildRows, n);
+                out.gather(build.getTupleDesc().numFields(), current, probeRows, n);
+                return out;
+            }
+        }
+    }
+
+    /**
+     * Reads the next block of about MAP_SIZE tuples of child1 into build and
+     * indexes it on the join field.
+     *
+     * @return false if child1 has no more tuples
+     */
+    private boolean loadBuild() throws DbException, TransactionAbortedException {
+        List<TupleBatch> batches = new ArrayList<>();
+        int rows = 0;
+        TupleBatch batch;
+        while (rows < MAP_SIZE && (batch = child1.nextBatch()) != null) {
+            batches.add(batch);
+            rows += batch.size();
+        }
+        if (rows == 0)
+            return false;
+        build = new TupleBatch(child1.getTupleDesc(), rows);
+        for (TupleBatch b : batches)
+            build.addAll(b);
+
+        // 桶头数组加链数组，相同哈希值的行按行号升序串成一条链
+        int[] keys = build.getInts(pred.getField1());
+        buckets = new int[Integer.highestOneBit(rows) * 2];
+        Arrays.fill(buckets, -1);
+        chain = new int[rows];
+        int mask = buckets.length - 1;
+        boolean nulls = build.hasNulls(pred.getField1());
+        for (int r = rows - 1; r >= 0; r--) {
+            if (nulls && build.isNull(r, pred.getField1())) {
+                chain[r] = -1;
+                continue;
+            }
+            int h = hash(keys[r]) & mask;
+            chain[r] = buckets[h];
+            buckets[h] = r;
+        }
+        return true;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child1, this.child2};
@@ -6,6 +6,7 @@ import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
@@ -102,14 +103,72 @@ public class IntegerAggregator implements Aggregator {
             throw new IllegalArgumentException("Except groupType is: 「"+ gbfieldType + " 」,But given "+ groupByField.getType());
         }
         /* tup的聚合类型非Int */
-        if(!(tup.getField(afieldIndex) instanceof IntField)){
-            throw new IllegalArgumentException("Except aggType is: 「 IntField 」" + ",But given "+ tup.getField(afieldIndex).getType());
+        if(tup.getTupleDesc().getFieldType(afieldIndex) != Type.INT_TYPE){
+            throw new IllegalArgumentException("Except aggType is: 「 IntField 」" + ",But given "+ tup.getTupleDesc().getFieldType(afieldIndex));
         }
 
+        /* 直接取整数值，不创建IntField */
+        mergeIntoGroup(groupByField, tup.getInt(afieldIndex), 1);
+    }
+
+    /**
+     * Merge a batch of tuples into the aggregate. Without grouping the
+     * aggregate field of the whole batch is first reduced in one loop over
+     * its column vector. Rows whose aggregate field is null are skipped.
+     *
+     * @param batch
+     *            the batch containing an aggregate field and a group-by field
+     */
+    @Override
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+        TupleDesc td = batch.getTupleDesc();
+        if(!NO_GROUPING && td.getFieldType(gbfieldIndex) != gbfieldType){
+            throw new IllegalArgumentException("Except groupType is: 「"+ gbfieldType + " 」,But given "+ td.getFieldType(gbfieldIndex));
+        }
+        if(td.getFieldType(afieldIndex) != Type.INT_TYPE){
+            throw new IllegalArgumentException("Except aggType is: 「 IntField 」" + ",But given "+ td.getFieldType(afieldIndex));
+        }
+        int n = batch.size();
+        if (n == 0)
+            return;
+        int[] values = batch.getInts(afieldIndex);
+        boolean nulls = batch.hasNulls(afieldIndex);
+        if (NO_GROUPING && !nulls) {
+            int partial;
+            switch (aggOp) {
+                case MIN:
+                    partial = Integer.MAX_VALUE;
+                    for (int i = 0; i < n; i++)
+                        partial = Math.min(partial, values[i]);
+                    break;
+                case MAX:
+                    partial = Integer.MIN_VALUE;
+                    for (int i = 0; i < n; i++)
+                        partial = Math.max(partial, values[i]);
+                    break;
+                default:
+                    partial = 0;
+                    for (int i = 0; i < n; i++)
+                        partial += values[i];
+            }
+            mergeIntoGroup(NO_GROUP_FIELD, partial, n);
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            if (nulls && batch.isNull(i, afieldIndex))
+                continue;
+            mergeIntoGroup(NO_GROUPING ? NO_GROUP_FIELD : batch.getField(i, gbfieldIndex), values[i], 1);
+        }
+    }
+
+    /**
+     * Merges count tuples of the group groupByField into the aggregate.
+     * aggValue is the minimum of their aggregate fields for MIN, the maximum
+     * for MAX and the sum otherwise.
+     */
+    private void mergeIntoGroup(Field groupByField, int aggValue, int count) {
         Tuple curAggTuple = new Tuple(tdAfterAgg);
         int curAggRes = 0;
-        IntField aggField = (IntField) tup.getField(afieldIndex);
-        int aggValue = aggField.getValue();
 
         /* 不需要进行分组操作 */
         /*if (NO_GROUPING){
@@ -129,21 +188,21 @@ public class IntegerAggregator implements Aggregator {
             case MIN:
                 groupAggResMap.put(groupByField, new GroupAggRes(
                         Math.min(groupAggResMap.getOrDefault(groupByField, DEFAULT_MIN).aggRes, aggValue),
-                        groupAggResMap.getOrDefault(groupByField, DEFAULT_MIN).count + 1
+                        groupAggResMap.getOrDefault(groupByField, DEFAULT_MIN).count + count
                 ));
                 curAggRes = groupAggResMap.get(groupByField).aggRes;
                 break;
             case MAX:
                 groupAggResMap.put(groupByField, new GroupAggRes(
                         Math.max(groupAggResMap.getOrDefault(groupByField, DEFAULT_MAX).aggRes, aggValue),
-                        groupAggResMap.getOrDefault(groupByField, DEFAULT_MAX).count + 1
+                        groupAggResMap.getOrDefault(groupByField, DEFAULT_MAX).count + count
                 ));
                 curAggRes = groupAggResMap.get(groupByField).aggRes;
                 break;
             case SUM:
                 groupAggResMap.put(groupByField, new GroupAggRes(
                         groupAggResMap.getOrDefault(groupByField, DEFAULT_SUM).aggRes + aggValue,
-                        groupAggResMap.getOrDefault(groupByField, DEFAULT_SUM).count + 1
+                        groupAggResMap.getOrDefault(groupByField, DEFAULT_SUM).count + count
                 ));
                 curAggRes = groupAggResMap.get(groupByField).aggRes;
                 break;
@@ -151,14 +210,14 @@ public class IntegerAggregator implements Aggregator {
 //                System.out.println("getOrDefault return:"+groupAggResMap.getOrDefault(groupByField, DEFAULT_SUM).aggRes);
                 groupAggResMap.put(groupByField, new GroupAggRes(
                         groupAggResMap.getOrDefault(groupByField, DEFAULT_SUM).aggRes + aggValue,
-                        groupAggResMap.getOrDefault(groupByField, DEFAULT_SUM).count + 1
+                        groupAggResMap.getOrDefault(groupByField, DEFAULT_SUM).count + count
                 ));
                 curAggRes = groupAggResMap.get(groupByField).aggRes / groupAggResMap.get(groupByField).count;
                 break;
             case COUNT:
                 groupAggResMap.put(groupByField, new GroupAggRes(
                         groupAggResMap.getOrDefault(groupByField, DEFAULT_SUM).aggRes + aggValue,
-                        groupAggResMap.getOrDefault(groupByField, DEFAULT_SUM).count + 1
+                        groupAggResMap.getOrDefault(groupByField, DEFAULT_SUM).count + count
                 ));
                 curAggRes = groupAggResMap.get(groupByField).count;
                 break;
@@ -2,6 +2,7 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.storage.CompactTuple;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -117,14 +118,14 @@ public class Join extends Operator {
             while(child2.hasNext()){
                 Tuple rightTuple = child2.next();
                 if (p.filter(currentTuple, rightTuple)){
-                    Tuple mergedTuple = new Tuple(getTupleDesc());
+                    Tuple mergedTuple = new CompactTuple(getTupleDesc());
                     int len1 = currentTuple.getTupleDesc().numFields();
                     int len2 = rightTuple.getTupleDesc().numFields();
                     for(int i = 0;i < len1;i++){
-                        mergedTuple.setField(i,currentTuple.getField(i));
+                        mergedTuple.setField(i,currentTuple,i);
                     }
                     for(int i = 0;i < len2;i++){
-                        mergedTuple.setField(i+len1,rightTuple.getField(i));
+                        mergedTuple.setField(i+len1,rightTuple,i);
                     }
                     return mergedTuple;
                 }
@@ -1,5 +1,6 @@
 package simpledb.execution;
 
+import simpledb.common.Type;
 import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 
@@ -45,6 +46,9 @@ public class JoinPredicate implements Serializable {
      */
     public boolean filter(Tuple t1, Tuple t2) {
         // some code goes here
+        // 整数列直接比较原始值，不创建IntField
+        if (t1.getTupleDesc().getFieldType(field1) == Type.INT_TYPE)
+            return op.compare(t1.getInt(field1), t2.getInt(field2));
         return t1.getField(field1).compare(op, t2.getField(field2));
     }
     
@@ -2,6 +2,7 @@ package simpledb.execution;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.io.Serializable;
@@ -39,6 +40,26 @@ public interface OpIterator extends Serializable{
    */
   Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException;
 
+  /**
+   * Returns the next tuples from the operator as one batch, in columnar form.
+   * An iterator is consumed either through this method or through
+   * {@link #next()}; after a rewind either may be used.
+   * <p>
+   * The default implementation collects up to {@link TupleBatch#DEFAULT_SIZE}
+   * tuples from {@link #next()}, so that row-at-a-time operators can feed
+   * operators that work on batches. Operators that can produce batches
+   * directly override it.
+   *
+   * @return a batch of at least one tuple, or null if there are no more tuples.
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  default TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+      TupleBatch batch = new TupleBatch(getTupleDesc());
+      while (!batch.isFull() && hasNext())
+          batch.add(next());
+      return batch.isEmpty() ? null : batch;
+  }
+
   /**
    * Resets the iterator to the start.
    * @throws DbException when rewind is unsupported.
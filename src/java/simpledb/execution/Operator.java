@@ -3,6 +3,7 @@ package simpledb.execution;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.NoSuchElementException;
@@ -49,6 +50,30 @@ public abstract class Operator implements OpIterator {
     protected abstract Tuple fetchNext() throws DbException,
             TransactionAbortedException;
 
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!this.open)
+            throw new IllegalStateException("Operator not yet open");
+
+        // hasNext已经取出的元组不能丢，这一批逐行收集
+        if (next != null)
+            return OpIterator.super.nextBatch();
+        return fetchNextBatch();
+    }
+
+    /**
+     * Returns the next batch of tuples, or null if the iteration is finished.
+     * Operator uses this method to implement <code>nextBatch</code>. The
+     * default implementation collects tuples from <code>fetchNext</code>;
+     * operators that can work on whole batches override it.
+     * 
+     * @return a batch of at least one tuple, or null if the iteration is
+     *         finished.
+     */
+    protected TupleBatch fetchNextBatch() throws DbException,
+            TransactionAbortedException {
+        return OpIterator.super.nextBatch();
+    }
+
     /**
      * Closes this iterator. If overridden by a subclass, they should call
      * super.close() in order for Operator's internal state to be consistent.
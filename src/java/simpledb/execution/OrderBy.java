@@ -2,6 +2,7 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.common.Type;
 import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
@@ -115,6 +116,11 @@ class TupleComparator implements Comparator<Tuple> {
     }
 
     public int compare(Tuple o1, Tuple o2) {
+        // 整数列直接比较原始值
+        if (o1.getTupleDesc().getFieldType(field) == Type.INT_TYPE) {
+            int c = Integer.compare(o1.getInt(field), o2.getInt(field));
+            return asc ? c : -c;
+        }
         Field t1 = (o1).getField(field);
         Field t2 = (o2).getField(field);
         if (t1.compare(Predicate.Op.EQUALS, t2))
@@ -1,7 +1,9 @@
 package simpledb.execution;
 
 import simpledb.storage.Field;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 
 import java.io.Serializable;
 
@@ -48,6 +50,31 @@ public class Predicate implements Serializable {
             throw new IllegalStateException("impossible to reach here");
         }
 
+        /**
+         * Compares two int values with this operation, without boxing them
+         * into IntFields.
+         *
+         * @return true if a op b holds
+         */
+        public boolean compare(int a, int b) {
+            switch (this) {
+                case EQUALS:
+                case LIKE:
+                    return a == b;
+                case NOT_EQUALS:
+                    return a != b;
+                case GREATER_THAN:
+                    return a > b;
+                case GREATER_THAN_OR_EQ:
+                    return a >= b;
+                case LESS_THAN:
+                    return a < b;
+                case LESS_THAN_OR_EQ:
+                    return a <= b;
+            }
+            return false;
+        }
+
     }
     
     /**
@@ -106,9 +133,68 @@ public class Predicate implements Serializable {
      */
     public boolean filter(Tuple t) {
         // some code goes here
+        // 整数比较直接取原始值，不创建IntField
+        if (operand instanceof IntField)
+            return op.compare(t.getInt(field), ((IntField) operand).getValue());
         return t.getField(field).compare(op, operand);
     }
 
+    /**
+     * Applies this predicate to every row of batch and removes the rows for
+     * which it is false. Comparisons of an INT_TYPE column with an IntField
+     * operand run as one loop over the column vector; a null value in the
+     * column matches nothing.
+     * 
+     * @param batch
+     *            The batch to filter in place
+     */
+    public void filter(TupleBatch batch) {
+        int n = batch.size();
+        int[] sel = new int[n];
+        int k = 0;
+        if (operand instanceof IntField) {
+            int[] col = batch.getInts(field);
+            int v = ((IntField) operand).getValue();
+            // 每个比较符一个循环，循环体里没有分支，JIT可以向量化
+            switch (op) {
+                case EQUALS:
+                case LIKE:
+                    for (int i = 0; i < n; i++) { sel[k] = i; k += col[i] == v ? 1 : 0; }
+                    break;
+                case NOT_EQUALS:
+                    for (int i = 0; i < n; i++) { sel[k] = i; k += col[i] != v ? 1 : 0; }
+                    break;
+                case GREATER_THAN:
+                    for (int i = 0; i < n; i++) { sel[k] = i; k += col[i] > v ? 1 : 0; }
+                    break;
+                case GREATER_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) { sel[k] = i; k += col[i] >= v ? 1 : 0; }
+                    break;
+                case LESS_THAN:
+                    for (int i = 0; i < n; i++) { sel[k] = i; k += col[i] < v ? 1 : 0; }
+                    break;
+                case LESS_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) { sel[k] = i; k += col[i] <= v ? 1 : 0; }
+                    break;
+            }
+            if (batch.hasNulls(field)) {
+                int m = 0;
+                for (int j = 0; j < k; j++) {
+                    if (!batch.isNull(sel[j], field))
+                        sel[m++] = sel[j];
+                }
+                k = m;
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                if (batch.getField(i, field).compare(op, operand))
+                    sel[k++] = i;
+            }
+        }
+        if (k < n)
+            batch.select(sel, k);
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
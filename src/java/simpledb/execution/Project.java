@@ -3,7 +3,9 @@ package simpledb.execution;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.Type;
 import simpledb.common.DbException;
+import simpledb.storage.CompactTuple;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -73,14 +75,29 @@ public class Project extends Operator {
             TransactionAbortedException, DbException {
         if (!child.hasNext()) return null;
         Tuple t = child.next();
-        Tuple newTuple = new Tuple(td);
+        Tuple newTuple = new CompactTuple(td);
         newTuple.setRecordId(t.getRecordId());
         for (int i = 0; i < td.numFields(); i++) {
-            newTuple.setField(i, t.getField(outFieldIds.get(i)));
+            newTuple.setField(i, t, outFieldIds.get(i));
         }
         return newTuple;
     }
 
+    /**
+     * Projects a whole batch of the child operator by picking its column
+     * vectors, without copying any values.
+     */
+    @Override
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch = child.nextBatch();
+        if (batch == null)
+            return null;
+        int[] fields = new int[outFieldIds.size()];
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = outFieldIds.get(i);
+        return batch.project(td, fields);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child};
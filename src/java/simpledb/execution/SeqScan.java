@@ -8,6 +8,7 @@ import simpledb.common.Type;
 import simpledb.common.DbException;
 import simpledb.storage.DbFileIterator;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -133,6 +134,16 @@ public class SeqScan implements OpIterator {
         return dbFileIterator.next();
     }
 
+    /**
+     * Copies the next tuples of the table straight from its pages into a
+     * batch, where the file supports it.
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch = new TupleBatch(getTupleDesc());
+        return dbFileIterator.nextBatch(batch) > 0 ? batch : null;
+    }
+
     public void close() {
         // some code goes here
         dbFileIterator.close();
@@ -32,6 +32,7 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	private final PageChannel channel;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -46,6 +47,7 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.channel = new PageChannel(f);
 	}
 
 	/**
@@ -87,10 +89,10 @@ public class BTreeFile implements DbFile {
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
+        try {
             if (id.pgcateg() == BTreePageId.ROOT_PTR) {
                 byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
+                int retval = channel.read(pageBuf, 0);
                 if (retval == -1) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
@@ -102,12 +104,7 @@ public class BTreeFile implements DbFile {
                 return new BTreeRootPtrPage(id, pageBuf);
             } else {
                 byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+                int retval = channel.read(pageBuf, pageOffset(id.getPageNumber()));
                 if (retval == -1) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
@@ -127,8 +124,6 @@ public class BTreeFile implements DbFile {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        // Close the file on success or error
-        // Ignore failures closing the file
     }
 
 	/**
@@ -141,17 +136,25 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			channel.write(data, 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			channel.write(data, pageOffset(page.getId().getPageNumber()));
 		}
 	}
+
+	@Override
+	public void sync() throws IOException {
+		channel.force();
+	}
+
+	/**
+	 * @return the offset in the file of the non root pointer page pgNo
+	 */
+	private static long pageOffset(int pgNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pgNo - 1) * BufferPool.getPageSize();
+	}
 	
 	/**
 	 * Returns the number of pages in this BTreeFile.
@@ -1185,15 +1188,12 @@ public class BTreeFile implements DbFile {
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
 		synchronized(this) {
-			if(f.length() == 0) {
+			if(channel.size() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				channel.append(emptyRootPtrData);
+				channel.append(emptyLeafData);
 			}
 		}
 
@@ -1249,11 +1249,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				channel.append(emptyData);
 				emptyPageNo = numPages();
 			}
 		}
@@ -1284,10 +1281,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		channel.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1408,6 +1402,15 @@ public class BTreeFile implements DbFile {
 		return new BTreeFileIterator(this, tid);
 	}
 
+	/**
+	 * Create a read-ahead stream that follows the right sibling pointers of
+	 * the leaf pages of this file, for iterators that scan the leaves in order.
+	 */
+	ReadAheadStream leafReadAheadStream() {
+		return Database.getBufferPool().readAheadStream(
+				page -> ((BTreeLeafPage) page).getRightSiblingId());
+	}
+
 }
 
 /**
@@ -1417,6 +1420,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	ReadAheadStream readAhead = null;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1439,6 +1443,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
 		curp = f.findLeafPage(tid, root, null);
+		readAhead = f.leafReadAheadStream();
+		readAhead.accessed(curp);
 		it = curp.iterator();
 	}
 
@@ -1461,6 +1467,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				readAhead.accessed(curp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1487,6 +1494,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 		curp = null;
+		if (readAhead != null) {
+			readAhead.close();
+			readAhead = null;
+		}
 	}
 }
 
@@ -1498,6 +1509,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	ReadAheadStream readAhead = null;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1530,6 +1542,11 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		else {
 			curp = f.findLeafPage(tid, root, null);
 		}
+		// 只有大于类的谓词会一直扫到最右的叶子页；其余谓词在中途结束，预读会读到用不上的页
+		if(ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
+			readAhead = f.leafReadAheadStream();
+			readAhead.accessed(curp);
+		}
 		it = curp.iterator();
 	}
 
@@ -1570,6 +1587,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				if (readAhead != null)
+					readAhead.accessed(curp);
 				it = curp.iterator();
 			}
 		}
@@ -1591,5 +1610,9 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		if (readAhead != null) {
+			readAhead.close();
+			readAhead = null;
+		}
 	}
 }
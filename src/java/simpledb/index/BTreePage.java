@@ -20,6 +20,7 @@ import simpledb.transaction.TransactionId;
 public abstract class BTreePage implements Page {
 	protected volatile boolean dirty = false;
 	protected volatile TransactionId dirtier = null;
+	protected volatile long lsn = NO_LSN;
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -134,6 +135,14 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
@@ -0,0 +1,75 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BackgroundWriter trickles committed pages out of a buffer pool. Under
+ * NO-FORCE, commit only logs a transaction's pages, and since checkpoints
+ * are fuzzy they do not write them either: without the writer such a page
+ * stays dirty in the log's dirty page table until it is evicted, holding
+ * back where recovery has to start redoing and where the log can be
+ * truncated.
+ * <p>
+ * Every interval the writer asks the pool to write out a few of these
+ * pages, those with the oldest LSN first. It stops by itself once its pool
+ * is no longer the pool of the database.
+ */
+class BackgroundWriter {
+
+    /* 所有缓冲池共用的后台写页线程，守护线程，不阻止JVM退出 */
+    private static final ScheduledExecutorService WRITER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "background-writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final BufferPool pool;
+    /* 每一轮最多写几页 */
+    private final int pagesPerRound;
+    private ScheduledFuture<?> task;
+    private long intervalMillis = 0;
+
+    BackgroundWriter(BufferPool pool, int pagesPerRound) {
+        this.pool = pool;
+        this.pagesPerRound = Math.max(1, pagesPerRound);
+    }
+
+    synchronized long getInterval() {
+        return intervalMillis;
+    }
+
+    /**
+     * Writes a round of pages every intervalMillis from now on; 0 stops the
+     * writer.
+     */
+    synchronized void setInterval(long intervalMillis) {
+        if (intervalMillis < 0)
+            throw new IllegalArgumentException("write interval must not be negative: " + intervalMillis);
+        if (task != null)
+            task.cancel(false);
+        task = null;
+        this.intervalMillis = intervalMillis;
+        if (intervalMillis > 0)
+            task = WRITER.scheduleWithFixedDelay(this::round, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void round() {
+        // 数据库重置后旧缓冲池的页号可能对应新的文件，不能再写
+        if (Database.getBufferPool() != pool) {
+            setInterval(0);
+            return;
+        }
+        try {
+            pool.writeBackPages(pagesPerRound);
+        } catch (IOException e) {
+            // 下一轮再试；页面仍在缓冲池和脏页表中
+            e.printStackTrace();
+        }
+    }
+}
@@ -9,16 +9,16 @@ import simpledb.transaction.TransactionId;
 
 import java.io.*;
 
-import java.util.Collection;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -41,29 +41,219 @@ public class BufferPool {
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
+
+    /** Default number of hash-striped segments the frame table is split into. */
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    /** Upper bound on the number of frames a single scan ring may use. */
+    public static final int MAX_SCAN_RING_PAGES = 32;
+
     private int numPages;
 //    private Page[] buffer;
-    /* 缓存页 */
-    private ConcurrentHashMap<PageId, Page> buffer;
+    /* 缓存页按pid的hash分段，每段有自己的latch和页面置换策略，
+    *  不同段上的页面访问互不阻塞 */
+    private final Segment[] segments;
+
+    /* 整个缓冲池中的页面数，容量限制是全局的而不是每段的 */
+    private final AtomicInteger pageCount;
 
-    /* 维护页面顺序，实现page eviction
-    *  最近访问位于链表尾部 */
-    private LinkedList<PageId> pageList;
+    /* 淘汰页面时轮转扫描各段的起点 */
+    private final AtomicInteger evictCursor;
+
+    /* 顺序扫描预读的页面暂存区 */
+    private final ReadAhead readAhead;
     private LockManager lockManager;
 
+    /* 只读事务的快照，以及快照还需要的页面旧版本 */
+    private final VersionStore versions;
+
+    /* 脏页表：每个事务以写权限访问过的页，提交和回滚时只处理这些页；
+    *  其中的页被flushAllPages写盘后不再是脏页，但仍留在表中，提交时要更新它们的before image */
+    private final Map<TransactionId, Set<PageId>> dirtyPages;
+
+    /* 提交时是否把事务的脏页写回数据文件（FORCE）；为false时提交只写日志 */
+    private volatile boolean forceOnCommit = true;
+
+    /* NO-FORCE下已提交但还没写回数据文件的页；这些页看上去是干净页，可以被淘汰，淘汰或flushAllPages时写回 */
+    private final Set<PageId> unflushed;
+
+    /* 缓冲池中没有干净页时，是否可以淘汰未提交事务的脏页（STEAL） */
+    private volatile boolean stealOnEvict = false;
+
+    /* 被偷走（未提交就写了盘）的页及偷走时修改它的事务；这些页在磁盘上的内容，
+    *  以及被读回缓冲池后的before image都是未提交的，已提交的版本要从日志中取 */
+    private final Map<PageId, TransactionId> stolen;
+
+    /* 后台写页：定期写回NO-FORCE下已提交、还没写盘的页 */
+    private final BackgroundWriter backgroundWriter;
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, ReplacementPolicy.Kind.LRU);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts pages
+     * according to the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the page replacement policy.
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Kind policy) {
+        this(numPages, DEFAULT_SEGMENTS, policy);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, with the frame
+     * table split into numSegments independently latched segments.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numSegments number of hash-striped segments of the frame table.
+     * @param policy the page replacement policy used within each segment.
+     */
+    public BufferPool(int numPages, int numSegments, ReplacementPolicy.Kind policy) {
         // some code goes here
         this.numPages = numPages;
         this.lockManager = new LockManager();
-        buffer = new ConcurrentHashMap<>(numPages);
-        pageList = new LinkedList<>();
+        this.segments = new Segment[Math.max(1, numSegments)];
+        int segmentCapacity = (numPages + segments.length - 1) / segments.length;
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(policy.create(segmentCapacity));
+        }
+        this.pageCount = new AtomicInteger(0);
+        this.evictCursor = new AtomicInteger(0);
+        this.readAhead = new ReadAhead(this, numPages / 4);
+        this.versions = new VersionStore();
+        this.dirtyPages = new ConcurrentHashMap<>();
+        this.unflushed = ConcurrentHashMap.newKeySet();
+        this.stolen = new ConcurrentHashMap<>();
+        this.backgroundWriter = new BackgroundWriter(this, numPages / 16);
     }
-    
+
+    /**
+     * @return the policy for lock requests that conflict with other
+     *   transactions; {@link DeadlockPolicy#DETECT} unless set otherwise
+     */
+    public DeadlockPolicy getDeadlockPolicy() {
+        return lockManager.getPolicy();
+    }
+
+    /**
+     * Sets the policy for lock requests that conflict with other
+     * transactions. Requests that are already waiting keep waiting.
+     */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        lockManager.setPolicy(policy);
+    }
+
+    /**
+     * @return the number of page locks a transaction may hold on one table
+     *   before they are escalated to a table lock
+     */
+    public int getLockEscalationThreshold() {
+        return lockManager.getEscalationThreshold();
+    }
+
+    /**
+     * Sets the number of page locks a transaction may hold on one table
+     * before they are escalated to a single table lock; 0 turns lock
+     * escalation off.
+     */
+    public void setLockEscalationThreshold(int pages) {
+        lockManager.setEscalationThreshold(pages);
+    }
+
+    /**
+     * @return true if commit writes the dirty pages of the transaction to
+     *   their files (FORCE, the default), false if it only logs them
+     */
+    public boolean isForceOnCommit() {
+        return forceOnCommit;
+    }
+
+    /**
+     * Chooses between FORCE and NO-FORCE commit. Under NO-FORCE, commit only
+     * appends the after images of the transaction's dirty pages to the log;
+     * the pages are written to their files later, when they are evicted, by
+     * the background writer (see {@link #setBackgroundWriteInterval(long)})
+     * or by {@link #flushAllPages()}, and after a crash
+     * {@link LogFile#recover()} redoes the committed updates from the log.
+     * In both modes commit appends the transaction's commit record to the
+     * log and waits until it is forced before it releases the transaction's
+     * locks and makes its changes visible to snapshots, so no other
+     * transaction can see changes that a crash would lose.
+     */
+    public void setForceOnCommit(boolean force) {
+        this.forceOnCommit = force;
+    }
+
+    /**
+     * @return true if eviction may write out pages with uncommitted changes
+     *   (STEAL), false if it only evicts clean pages (the default)
+     */
+    public boolean isStealOnEvict() {
+        return stealOnEvict;
+    }
+
+    /**
+     * Chooses between STEAL and NO-STEAL eviction. Under STEAL, when the
+     * pool is full and has no clean page left, a page dirtied by a running
+     * transaction is evicted: its before and after images are logged and
+     * the log is forced before the page is written to its file, so that
+     * abort and {@link LogFile#recover()} can undo the write. Transactions
+     * can then change more pages than the pool holds.
+     */
+    public void setStealOnEvict(boolean steal) {
+        this.stealOnEvict = steal;
+    }
+
+    /**
+     * @return how often, in milliseconds, the background writer writes out
+     *   committed pages that are not on disk yet; 0 if it is off (the
+     *   default)
+     */
+    public long getBackgroundWriteInterval() {
+        return backgroundWriter.getInterval();
+    }
+
+    /**
+     * Starts, reschedules or stops the background writer. Under NO-FORCE,
+     * committed pages are only written when they are evicted, since
+     * checkpoints do not write pages. The background writer writes a few
+     * of them every intervalMillis, oldest LSN first, so that recovery can
+     * start redoing from a recent point and the log can be truncated.
+     *
+     * @param intervalMillis the pause between two rounds; 0 stops the writer
+     */
+    public void setBackgroundWriteInterval(long intervalMillis) {
+        backgroundWriter.setInterval(intervalMillis);
+    }
+
+    /**
+     * Makes tid a read-only transaction that reads a snapshot of the
+     * database as of now: it sees the changes of exactly the transactions
+     * that committed before this call, takes no locks, and so neither waits
+     * for writers nor makes them wait. It may only request pages
+     * READ_ONLY, and must be finished with transactionComplete like any
+     * other transaction.
+     *
+     * @param tid a transaction that has not requested any page yet
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.begin(tid);
+    }
+
+    /**
+     * @return the number of old page versions kept for running snapshots
+     */
+    public int getSnapshotVersionCount() {
+        return versions.size();
+    }
+
     public static int getPageSize() {
       return pageSize;
     }
@@ -93,8 +283,25 @@ public class BufferPool {
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
      */
-    public synchronized Page getPage(TransactionId tid, PageId pid, Permissions perm)
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId, Permissions)},
+     * but if the page has to be read from disk, place it in the given scan
+     * ring: when the ring is full, the oldest page it loaded is dropped from
+     * the pool instead of evicting a page from the shared pool.
+     *
+     * @param ring the scan ring of the calling scan, or null for a normal access
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, ScanRing ring)
+        throws TransactionAbortedException, DbException {
+        Long snapshot = versions.snapshotOf(tid);
+        if (snapshot != null){
+            return getSnapshotPage(tid, pid, perm, snapshot);
+        }
         LockType lockType;
         if(perm == Permissions.READ_ONLY){
             lockType = LockType.SHARE_LOCK;
@@ -102,47 +309,158 @@ public class BufferPool {
             lockType = LockType.EXCLUSIVE_LOCK;
         }
         try {
-            // 如果获取lock失败（重试3次）则直接放弃事务
-            if (!lockManager.acquireLock(pid,tid,lockType,0)){
+            // 被选为死锁的牺牲者，或按死锁策略不能等待时获取锁失败，直接放弃事务
+            // 获取锁时不持有任何缓冲池的latch，等待锁不会阻塞其他页面的访问
+            if (!lockManager.acquireLock(pid,tid,lockType)){
                 // 获取锁失败，回滚事务
                 throw new TransactionAbortedException();
             }
         } catch (InterruptedException e) {
-            e.printStackTrace();
-            System.out.println("Method 「 getPage 」获取锁发生异常！！！");
+            // 等待锁时被中断，同样放弃事务，并保留中断状态
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
+        }
+
+        if (perm == Permissions.READ_WRITE){
+            /* 调用者可能直接markDirty，不经过updateBufferPool，获得写锁时就记入脏页表 */
+            noteDirty(tid, pid);
         }
 
         // some code goes here
-        if (buffer.containsKey(pid)){
-            /* 页在缓冲区，访问时更新访问顺序 */
-            pageList.remove(pid);
-            pageList.addLast(pid);
-            return buffer.get(pid);
+        Segment segment = segmentFor(pid);
+        Page cached = segment.get(pid);
+        if (cached != null){
+            /* 页在缓冲区，访问时已更新访问顺序 */
+            return cached;
+        }
+
+        /* 页面不在缓冲区中，优先使用预读好的页，否则从catalog读入；磁盘读不持有任何latch */
+        Page page = readAhead.take(pid);
+        try {
+            if (page == null){
+                DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                page = dbFile.readPage(pid);
+            }
+
+            /* 扫描环已满时先回收环中最早读入的页，腾出的frame留给新页 */
+            if (ring != null){
+                PageId victim = ring.nextVictim();
+                if (victim != null && segmentFor(victim).removeIfClean(victim, unflushed)){
+                    pageCount.decrementAndGet();
+                }
+            }
+
+            /* 先占用一个frame，超出容量时淘汰页面 */
+            reserveFrame();
+            Page existing = segment.putIfAbsent(pid, page);
+            if (existing != null){
+                /* 读盘期间其他线程已经把该页装入缓冲区，以缓冲区中的为准 */
+                pageCount.decrementAndGet();
+                return existing;
+            }
+            if (ring != null){
+                ring.add(pid);
+            }
+            return page;
+        } finally {
+            /* 页已在缓冲区（或装入失败），预读可以再看到它 */
+            readAhead.loaded(pid);
         }
+    }
 
-        /* 页面不在缓冲区中，从catalog读入 */
-        DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        Page page = dbFile.readPage(pid);
+    /**
+     * 快照事务读页：不加锁，也不把页放进缓冲池，返回快照时间点上已提交版本的副本
+     */
+    private Page getSnapshotPage(TransactionId tid, PageId pid, Permissions perm, long snapshot)
+        throws DbException {
+        if (perm != Permissions.READ_ONLY){
+            throw new DbException("snapshot transaction " + tid.getId() + " cannot write page " + pid + ".");
+        }
+        return versions.read(pid, snapshot, () -> {
+            while (true){
+                /* 缓冲池中页面的before image是它最近一次提交的内容，即使它正被别的事务修改 */
+                Page cached = peekPage(pid);
+                Page page = cached != null ? cached.getBeforeImage()
+                        : Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                /* 被偷走的页例外；偷走在写盘之前登记，所以读完之后再检查 */
+                TransactionId thief = stolen.get(pid);
+                if (thief == null){
+                    return page;
+                }
+                try {
+                    Page before = Database.getLogFile().firstBeforeImage(thief, pid);
+                    if (before != null){
+                        return before;
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                /* 日志里已没有偷走它的事务，它正在中止，等它撤销完再读 */
+                Thread.yield();
+            }
+        });
+    }
 
-        if (buffer.size() > numPages){
-            evictPage();
+    /**
+     * Create a read-ahead stream for a scan. The scan reports every page it
+     * gets through {@link ReadAheadStream#accessed(Page)}; once the accesses
+     * follow the successor chain, the next pages are read in the background.
+     *
+     * @param successor gives the page the scan reads after a given page, or null at the end
+     */
+    public ReadAheadStream readAheadStream(Function<Page, PageId> successor) {
+        return new ReadAheadStream(readAhead, successor);
+    }
+
+    /**
+     * 不加锁、不更新访问顺序地查看缓冲池中的页，不在缓冲池中时返回null；供预读使用
+     */
+    Page peekPage(PageId pid) {
+        Segment segment = segmentFor(pid);
+        segment.latch.lock();
+        try {
+            return segment.frames.get(pid);
+        } finally {
+            segment.latch.unlock();
+        }
+    }
+
+    /**
+     * Create a scan ring for a sequential scan over a table of tablePages
+     * pages, or return null if the whole table fits in the pool, in which
+     * case caching it is worthwhile and the scan uses the shared pool.
+     */
+    public ScanRing scanRingFor(int tablePages) {
+        if (tablePages <= numPages){
+            return null;
+        }
+        return new ScanRing(Math.min(MAX_SCAN_RING_PAGES, numPages / 4));
+    }
+
+    private Segment segmentFor(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    /**
+     * 为即将装入的页面占用一个frame，缓冲池已满时淘汰页面直到有空位
+     */
+    private void reserveFrame() throws DbException {
+        pageCount.incrementAndGet();
+        try {
+            while (pageCount.get() > numPages) {
+                evictPage();
+            }
+        } catch (DbException e) {
+            pageCount.decrementAndGet();
+            throw e;
         }
-        pageList.addLast((pid));
-        buffer.put(pid, page);
-        return page;
-//        int idx = -1;
-//        for(int i = 0;i < buffer.length;i++){
-//            if(buffer[i] == null){
-//                idx = i;
-//            } else if (pid.equals(buffer[i].getId())) {
-//                return buffer[i];
-//            }
-//        }
-//        return buffer[idx] = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
     }
 
     /**
-     * Releases the lock on a page.
+     * Releases the lock on a page. A table lock that covers the page, after
+     * the transaction's page locks were escalated, is kept.
      * Calling this is very risky, and may result in wrong behavior. Think hard
      * about who needs to call this and why, and why they can run the risk of
      * calling it.
@@ -192,9 +510,13 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
+        if (versions.end(tid)){
+            /* 快照事务没有锁，也没有脏页 */
+            return;
+        }
         if (commit){
             try{
-                flushPages(tid);
+                commitPages(tid, forceOnCommit);
                 System.out.println("bufferPool_transactionComplete.");
             } catch (IOException e) {
                 throw new RuntimeException("flush error!");
@@ -202,36 +524,76 @@ public class BufferPool {
         }else {
             rollBack(tid);
         }
+        dirtyPages.remove(tid);
         lockManager.releasePagesByTid(tid);
     }
 
     private void rollBack(TransactionId tid) {
-        List<PageId> rbPage = new LinkedList<>();
-        for (PageId pid: buffer.keySet()){
-            Page page = buffer.get(pid);
-            if (page.isDirty() != null && page.isDirty().equals(tid)){
-                try{
-                    Page originalPage = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                    buffer.put(pid, originalPage);
-                    rbPage.add(pid);
-                } catch (NoSuchElementException e) {
-                    throw new RuntimeException("Roll Back fail.");
+        Set<PageId> pids = dirtyPages.get(tid);
+        if (pids == null){
+            return;
+        }
+        /* 被偷走的页已经把未提交的内容写了盘，用日志回滚，日志回滚同时把这些页从缓冲池中丢掉；
+        *  通过Transaction中止时日志已经回滚过了 */
+        boolean stole = false;
+        for (PageId pid : pids){
+            stole |= tid.equals(stolen.get(pid));
+        }
+        if (stole){
+            try {
+                LogFile log = Database.getLogFile();
+                if (log.isActive(tid)){
+                    log.logAbort(tid);
                 }
+            } catch (IOException e) {
+                throw new RuntimeException("Roll Back fail.", e);
             }
         }
-        /* 更新访问顺序 */
-        for (PageId pid : rbPage){
-            pageList.remove(pid);
-            pageList.addLast(pid);
+        for (PageId pid : pids){
+            Segment segment = segmentFor(pid);
+            Page restored = null;
+            segment.latch.lock();
+            try {
+                Page page = segment.frames.get(pid);
+                if (page != null && page.isDirty() != null && page.isDirty().equals(tid)){
+                    /* before image是最近一次提交的内容；NO-FORCE下它可能还没写回磁盘，不能从磁盘重读 */
+                    restored = page.getBeforeImage();
+                    segment.frames.put(pid, restored);
+                    /* 更新访问顺序 */
+                    segment.policy.recordAccess(pid);
+                }
+            } finally {
+                segment.latch.unlock();
+            }
+            /* 中止的插入可能把页记成了已满 */
+            if (restored != null)
+                noteRestored(restored);
+            stolen.remove(pid, tid);
         }
     }
 
+    /* 页回滚到了restored的内容，通知它所在的文件 */
+    static void noteRestored(Page restored) {
+        DbFile file = Database.getCatalog().getDatabaseFile(restored.getId().getTableId());
+        if (file instanceof HeapFile)
+            ((HeapFile) file).noteRestored(restored);
+    }
+
+    /**
+     * 把pid记入tid的脏页表
+     */
+    private void noteDirty(TransactionId tid, PageId pid) {
+        dirtyPages.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+    }
+
     public void updateBufferPool(List<Page> pages, TransactionId tid){
         for (Page page : pages){
+            noteDirty(tid, page.getId());
             page.markDirty(true, tid);
-            pageList.remove(page.getId());
-            pageList.addLast(page.getId());
-            buffer.put(page.getId(), page);
+            Segment segment = segmentFor(page.getId());
+            if (segment.put(page.getId(), page) == null){
+                pageCount.incrementAndGet();
+            }
         }
     }
 
@@ -296,8 +658,11 @@ public class BufferPool {
         // not necessary for lab1
         if (pid != null){
             System.out.println("discard sus.");
-            buffer.remove(pid);
-            pageList.remove(pid);
+            readAhead.invalidate(pid);
+            unflushed.remove(pid);
+            if (segmentFor(pid).remove(pid) != null){
+                pageCount.decrementAndGet();
+            }
         }else {
             System.out.println("current pid is null.");
         }
@@ -312,27 +677,146 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (PageId pid: buffer.keySet()){
-            if (buffer.get(pid).isDirty() != null)
-                flushPage(pid);
+        for (Segment segment : segments){
+            segment.latch.lock();
+            try {
+                for (Page page : segment.frames.values()){
+                    flushPage(page);
+                }
+            } finally {
+                segment.latch.unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes out up to maxPages of the pages that committed under NO-FORCE
+     * and are not on disk yet, those with the oldest LSN first. Pages that a
+     * running transaction has changed again are skipped. Only the latch of
+     * one segment is held at a time, so transactions keep running.
+     *
+     * @return the number of pages written
+     */
+    public int writeBackPages(int maxPages) throws IOException {
+        /* 按取到时的LSN排序，排序期间LSN可能改变 */
+        List<Map.Entry<Page, Long>> candidates = new ArrayList<>();
+        for (PageId pid : unflushed) {
+            Segment segment = segmentFor(pid);
+            segment.latch.lock();
+            try {
+                Page page = segment.frames.get(pid);
+                if (page != null && page.isDirty() == null)
+                    candidates.add(new AbstractMap.SimpleImmutableEntry<>(page, page.getLSN()));
+            } finally {
+                segment.latch.unlock();
+            }
+        }
+        candidates.sort(Map.Entry.comparingByValue());
+        /* 不持有latch时先把日志刷到这些页的LSN为止，持有latch时就不用再取日志的锁 */
+        LogFile log = Database.getLogFile();
+        if (!candidates.isEmpty())
+            log.flushTo(candidates.get(candidates.size() - 1).getValue());
+        int written = 0;
+        for (Map.Entry<Page, Long> candidate : candidates) {
+            if (written >= maxPages)
+                break;
+            Page page = candidate.getKey();
+            Segment segment = segmentFor(page.getId());
+            segment.latch.lock();
+            try {
+                // 排序期间页可能被写回、淘汰或再次修改，再次提交的页日志可能还没刷盘，留到下一轮
+                if (segment.frames.get(page.getId()) == page && page.isDirty() == null
+                        && unflushed.contains(page.getId()) && log.isDurable(page.getLSN())){
+                    writeToFile(page);
+                    written++;
+                }
+            } finally {
+                segment.latch.unlock();
+            }
         }
+        return written;
     }
+
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page page = buffer.get(pid);
+        Segment segment = segmentFor(pid);
+        segment.latch.lock();
+        try {
+            Page page = segment.frames.get(pid);
+            if (page != null)
+                flushPage(page);
+        } finally {
+            segment.latch.unlock();
+        }
+    }
+
+    /**
+     * 将页面写回磁盘，调用者需持有该页所在段的latch；
+     * 已提交但还没写回的页，更新已在日志中，直接写回
+     */
+    private void flushPage(Page page) throws IOException {
         TransactionId tid = page.isDirty();
-        if (page != null && tid != null){
+        if (tid != null){
 
-            Page before = page.getBeforeImage();
+            Page before = committedImage(page);
             Database.getLogFile().logWrite(tid, before, page);
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+            writeToFile(page);
             page.markDirty(false, null);
+        } else if (unflushed.contains(page.getId())){
+            writeToFile(page);
+        }
+    }
+
+    /**
+     * 偷走未提交事务的脏页：先把before image和after image记入日志并把日志刷盘，再写回数据文件；
+     * 调用者需持有缓冲池的锁和该页所在段的latch，本方法在此之后再取日志的锁，
+     * 即缓冲池、段latch、日志的顺序
+     */
+    private void stealPage(Page page) throws IOException {
+        TransactionId tid = page.isDirty();
+        LogFile log = Database.getLogFile();
+        /* 撤销偷走的页要靠日志，日志必须认识这个事务 */
+        if (!log.isActive(tid)){
+            log.logXactionBegin(tid);
+        }
+        log.logWrite(tid, committedImage(page), page);
+        log.force();
+        stolen.put(page.getId(), tid);
+        writeToFile(page);
+        page.markDirty(false, null);
+    }
+
+    /**
+     * 页面最近一次提交的内容，通常就是它的before image；被偷走后又读回缓冲池的页例外，
+     * 要从日志中取偷走它的事务第一次修改它之前的版本
+     */
+    private Page committedImage(Page page) throws IOException {
+        TransactionId thief = stolen.get(page.getId());
+        if (thief != null){
+            Page before = Database.getLogFile().firstBeforeImage(thief, page.getId());
+            if (before != null){
+                return before;
+            }
         }
+        return page.getBeforeImage();
+    }
+
+    /**
+     * 写回页面：先把日志刷盘到页面的LSN为止（write-ahead logging），写完后告诉日志，
+     * 下一个检查点把数据文件刷盘后再记下磁盘上的LSN
+     */
+    private void writeToFile(Page page) throws IOException {
+        LogFile log = Database.getLogFile();
+        log.flushTo(page.getLSN());
+        readAhead.invalidate(page.getId());
+        Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+        log.logFlush(page);
+        unflushed.remove(page.getId());
     }
 
     /** Write all pages of the specified transaction to disk.
@@ -340,204 +824,254 @@ public class BufferPool {
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for (Map.Entry<PageId, Page> entry: buffer.entrySet()){
-            Page flushPage = entry.getValue();
-//            TransactionId flushPageDirty = flushPage.isDirty();
-            Page before = flushPage.getBeforeImage();
-            // !!!!!涉及到事务提交就应该setBeforeImage(设置oldData，更新数据，方便后续的事务终止能回退此版本
-            flushPage.setBeforeImage();
-            if (flushPage.isDirty() != null && flushPage.isDirty().equals(tid))
-                Database.getLogFile().logWrite(tid, before, flushPage);
-                Database.getCatalog().getDatabaseFile(flushPage.getId().getTableId()).writePage(flushPage);
-//                flushPage(entry.getKey());
+        commitPages(tid, true);
+    }
+
+    /**
+     * 提交tid修改的页：记日志、更新before image；force为true时写回磁盘，否则留给淘汰和检查点写回。
+     * 返回时COMMIT记录已经刷盘
+     */
+    private void commitPages(TransactionId tid, boolean force) throws IOException {
+        long commitTs;
+        long commit = 0;
+        synchronized (this) {
+            /* 提交按时间戳逐个写页（在缓冲池的锁下），写完页再记COMMIT记录 */
+            commitTs = versions.beginCommit();
+            try {
+                writeCommitted(tid, force, commitTs);
+                LogFile log = Database.getLogFile();
+                if (log.isActive(tid))
+                    commit = log.appendCommit(tid);
+            } catch (IOException | RuntimeException e) {
+                versions.publish(commitTs);
+                throw e;
+            }
+        }
+        /* 不持有缓冲池的锁等COMMIT记录刷盘，其他事务可以同时提交、凑成一组刷盘；
+         * 刷盘之后快照才能看到这次提交，调用者随后才释放锁 */
+        try {
+            if (commit > 0)
+                Database.getLogFile().awaitDurable(commit);
+        } finally {
+            versions.publish(commitTs);
         }
+    }
 
+    /* 把tid的脏页记入日志并按需写盘，把被覆盖的已提交版本留给快照 */
+    private void writeCommitted(TransactionId tid, boolean force, long commitTs) throws IOException {
+        Set<PageId> pids = dirtyPages.get(tid);
+        if (pids == null){
+            return;
+        }
+        for (PageId pid : pids){
+            Segment segment = segmentFor(pid);
+            segment.latch.lock();
+            try {
+                Page flushPage = segment.frames.get(pid);
+                if (flushPage == null){
+                    // 不在缓冲池中的页是干净页被淘汰了，或者被偷走了，磁盘上都已是最新内容，
+                    // 偷走时的日志记录中有after image
+                    if (stolen.containsKey(pid) && versions.keepsVersions()){
+                        Page before = Database.getLogFile().firstBeforeImage(tid, pid);
+                        if (before != null)
+                            versions.supersede(before, commitTs);
+                    }
+                    continue;
+                }
+                // 被unsafeReleasePage放掉后又被其他事务修改的页，其修改未提交，不能写盘
+                if (flushPage.isDirty() != null && !flushPage.isDirty().equals(tid))
+                    continue;
+                Page before = committedImage(flushPage);
+                /* 写盘之前保存被覆盖的已提交版本，更早的快照仍要读它 */
+                if (versions.keepsVersions())
+                    versions.supersede(before, commitTs);
+                // 已被flushAllPages写盘的页不再是脏页，只需更新before image
+                if (flushPage.isDirty() != null){
+                    Database.getLogFile().logWrite(tid, before, flushPage);
+                    if (force)
+                        writeToFile(flushPage);
+                    else
+                        unflushed.add(pid);
+                    flushPage.markDirty(false, null);
+                }
+                // !!!!!涉及到事务提交就应该setBeforeImage(设置oldData，更新数据，方便后续的事务终止能回退此版本
+                flushPage.setBeforeImage();
+            } finally {
+                /* 偷走的页现在是已提交的内容了 */
+                stolen.remove(pid, tid);
+                segment.latch.unlock();
+            }
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     *
+     * 从轮转选出的段开始依次查找，每次只持有一个段的latch，
+     * 在段内由置换策略在干净页中选出被淘汰的页；没有干净页时，开启了STEAL就淘汰脏页
      */
-    private synchronized void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        if (pageList.isEmpty())
-            throw new DbException("bufferPool is empty.");
-//        PageId pageId = pageList.getFirst();
-        for (int i = 0;i < numPages;i++){
-            PageId pid = pageList.removeFirst();
-            Page page = buffer.get(pid);
-            if (page.isDirty() != null){
-                pageList.addLast(pid);
-            }else {
-                try{
-                    flushPage(pid);
-                } catch (IOException e) {
-                    throw new DbException("flush page fail, page " + pid + ".");
-                }
-                buffer.remove(pid);
+        if (evictFrom(false)){
+            return;
+        }
+        /*
+         * 偷页或写回日志还没刷盘的页要取日志的锁，加锁顺序是缓冲池、段latch（evictFrom）、
+         * 日志（stealPage中的logWrite和force，writeToFile中的flushTo），而LogFile.rollback是
+         * 缓冲池、日志、段latch（discardPage），后两者顺序相反。两条路径都先取缓冲池的锁，
+         * 同一时刻只有一个线程能走到后两把锁，所以不会死锁。
+         */
+        synchronized (this){
+            if (evictFrom(true)){
                 return;
             }
         }
-
+        if (pageCount.get() <= 1)
+            throw new DbException("bufferPool is empty.");
         throw new DbException("All Page Are Dirty Page");
-//        try{
-//            flushPage(pid);
-//        } catch (IOException e) {
-//            throw new DbException("flush page fail, page " + pid + ".");
-//        }
-//        buffer.remove(pid);
     }
 
-    private class PageLock{
-        private TransactionId tid;
-        private LockType type;
-        private PageId pid;
-
-        public PageLock(TransactionId tid, PageId pageId, LockType requestLock) {
-            this.tid = tid;
-            this.pid = pageId;
-            this.type = requestLock;
-        }
-
-        public LockType getType() {
-            return type;
-        }
-    }
-
-    public enum LockType{
-        SHARE_LOCK (0,"共享锁"),
-        EXCLUSIVE_LOCK(1,"排它锁");
-        @Getter
-        private Integer code;
-        @Getter
-        private String value;
-
-        LockType(int code,String value) {
-            this.code = code;
-            this.value = value;
+    /**
+     * 淘汰一页。不持有缓冲池的锁时（poolLocked为false）只淘汰写回时不用取日志锁的干净页，
+     * 即已在磁盘上或日志已刷盘的页；持有时所有干净页都可以淘汰，开启了STEAL时脏页也可以
+     *
+     * @return 是否淘汰了一页
+     */
+    private boolean evictFrom(boolean poolLocked) throws DbException {
+        boolean steal = poolLocked && stealOnEvict;
+        LogFile log = Database.getLogFile();
+        int start = (evictCursor.getAndIncrement() & 0x7fffffff) % segments.length;
+        for (int i = 0;i < segments.length;i++){
+            Segment segment = segments[(start + i) % segments.length];
+            segment.latch.lock();
+            try {
+                if (segment.frames.isEmpty())
+                    continue;
+                Map<PageId, Page> frames = segment.frames;
+                PageId pid = segment.policy.evict(p -> {
+                    Page page = frames.get(p);
+                    if (page.isDirty() != null)
+                        return steal;
+                    return poolLocked || !unflushed.contains(p) || log.isDurable(page.getLSN());
+                });
+                if (pid != null){
+                    Page page = frames.get(pid);
+                    try{
+                        if (page.isDirty() != null){
+                            stealPage(page);
+                        } else {
+                            flushPage(page);
+                        }
+                    } catch (IOException e) {
+                        throw new DbException("flush page fail, page " + pid + ".");
+                    }
+                    frames.remove(pid);
+                    pageCount.decrementAndGet();
+                    return true;
+                }
+            } finally {
+                segment.latch.unlock();
+            }
         }
+        return false;
     }
 
-    private class LockManager {
-        @Getter
-        public ConcurrentHashMap<PageId, ConcurrentHashMap<TransactionId, PageLock>> lockMap;
+    /**
+     * 帧表的一个分段：pid到页面的映射以及该段的置换策略，
+     * 所有访问都在段自己的latch下进行
+     */
+    private static class Segment {
+        private final ReentrantLock latch = new ReentrantLock();
+        private final Map<PageId, Page> frames = new HashMap<>();
+        /* 维护页面访问信息，实现page eviction */
+        private final ReplacementPolicy policy;
 
-        public LockManager() {
-            lockMap = new ConcurrentHashMap<>();
+        Segment(ReplacementPolicy policy) {
+            this.policy = policy;
         }
 
-        /**
-         * Return true if the specified transaction has a lock on the specified page
-         */
-        public boolean holdsLock(TransactionId tid, PageId p) {
-            // some code goes here
-            // not necessary for lab1|lab2
-            if(lockMap.get(p) == null){
-                return false;
-            }
-            return lockMap.get(p).get(tid) != null;
-        }
-
-        public synchronized boolean acquireLock(PageId pageId, TransactionId tid, LockType requestLock, int reTry) throws TransactionAbortedException, InterruptedException {
-            // 重传达到3次
-            int reTryMax = 3;
-            if (reTry == reTryMax) return false;
-//            // 用于打印log
-//            final String thread = Thread.currentThread().getName();
-            // 页面上不存在锁
-            if (lockMap.get(pageId) == null) {
-                return putLock(tid,pageId,requestLock);
+        /* 命中时返回页面并更新访问顺序 */
+        Page get(PageId pid) {
+            latch.lock();
+            try {
+                Page page = frames.get(pid);
+                if (page != null)
+                    policy.recordAccess(pid);
+                return page;
+            } finally {
+                latch.unlock();
             }
+        }
 
-            // 页面上存在锁
-            ConcurrentHashMap<TransactionId, PageLock> tidLocksMap = lockMap.get(pageId);
-
-            if (tidLocksMap.get(tid) == null) {
-                // 页面上的锁不是自己的
-                // 请求的为X锁
-                if (requestLock == LockType.EXCLUSIVE_LOCK) {
-                    wait(100);
-                    return acquireLock(pageId, tid, requestLock, reTry + 1);
-                } else if (requestLock == LockType.SHARE_LOCK) {
-                    // 页面上是否都是读锁 -> 页面上的锁大于1个，就都是读锁
-                    // 互斥锁只能被一个事务占有
-                    if (tidLocksMap.size() > 1) {
-                        // 都是读锁直接获取
-                        return putLock(tid,pageId,requestLock);
-                    } else {
-                        Collection<PageLock> values = tidLocksMap.values();
-                        for (PageLock value : values) {
-                            // 存在的唯一的一个锁为X锁
-                            if (value.getType() == LockType.EXCLUSIVE_LOCK) {
-                                wait(100);
-                                return acquireLock(pageId, tid, requestLock, reTry + 1);
-                            } else {
-                                return putLock(tid,pageId,requestLock);
-                            }
-                        }
-                    }
-                }
-            }else {
-                if (requestLock == LockType.SHARE_LOCK) {
-                    tidLocksMap.remove(tid);
-                    return putLock(tid,pageId,requestLock);
-                }else {
-                    // 判断自己的锁是否为排它锁，如果是直接获取
-                    if(tidLocksMap.get(tid).getType() == LockType.EXCLUSIVE_LOCK){
-                        return true;
-                    }else {
-                        // 拥有的是读锁，判断是否还存在别的读锁
-                        if(tidLocksMap.size() > 1){
-                            wait(100);
-                            return acquireLock(pageId, tid, requestLock, reTry + 1);
-                        }else{
-                            // 只有自己拥有一个读锁，进行锁升级
-                            tidLocksMap.remove(tid);
-                            return putLock(tid,pageId,requestLock);
-                        }
-                    }
+        Page putIfAbsent(PageId pid, Page page) {
+            latch.lock();
+            try {
+                Page existing = frames.get(pid);
+                if (existing != null){
+                    policy.recordAccess(pid);
+                    return existing;
                 }
+                frames.put(pid, page);
+                policy.recordInsert(pid);
+                return null;
+            } finally {
+                latch.unlock();
             }
-            return false;
         }
 
-        public boolean putLock(TransactionId tid, PageId pageId, LockType requestLock){
-            ConcurrentHashMap<TransactionId, PageLock> tidLocksMap = lockMap.get(pageId);
-            // 页面上一个锁都没
-            if(tidLocksMap == null){
-                tidLocksMap = new ConcurrentHashMap<>();
-                lockMap.put(pageId,tidLocksMap);
+        Page put(PageId pid, Page page) {
+            latch.lock();
+            try {
+                Page old = frames.put(pid, page);
+                if (old == null)
+                    policy.recordInsert(pid);
+                else
+                    policy.recordAccess(pid);
+                return old;
+            } finally {
+                latch.unlock();
             }
-            PageLock pageLock = new PageLock(tid, pageId, requestLock);
-            tidLocksMap.put(tid, pageLock);
-            lockMap.put(pageId, tidLocksMap);
-            return true;
         }
 
-        /**
-         * 释放某个页上tid的锁
-         */
-        public synchronized void releasePage(TransactionId tid, PageId pid) {
-            if (holdsLock(tid,pid)){
-                ConcurrentHashMap<TransactionId,PageLock> tidLocks = lockMap.get(pid);
-                tidLocks.remove(tid);
-                if (tidLocks.size() == 0){
-                    lockMap.remove(pid);
-                }
-                // 释放锁时就唤醒正在等待的线程
-                // 因为wait与notifyAll都需要在同步代码块里，所以需要加synchronized
-                this.notifyAll();
+        /* 页面仍在段中且是干净页时才移除；被修改过的页（包括已提交但还没写回的页）留给正常的淘汰流程 */
+        boolean removeIfClean(PageId pid, Set<PageId> unflushed) {
+            latch.lock();
+            try {
+                Page page = frames.get(pid);
+                if (page == null || page.isDirty() != null || unflushed.contains(pid))
+                    return false;
+                policy.remove(pid);
+                frames.remove(pid);
+                return true;
+            } finally {
+                latch.unlock();
             }
         }
-        public synchronized void releasePagesByTid(TransactionId tid){
-            Set<PageId> pageIds = lockMap.keySet();
-            for (PageId pageId : pageIds){
-                releasePage(tid,pageId);
+
+        Page remove(PageId pid) {
+            latch.lock();
+            try {
+                policy.remove(pid);
+                return frames.remove(pid);
+            } finally {
+                latch.unlock();
             }
         }
     }
 
+    public enum LockType{
+        SHARE_LOCK (0,"共享锁"),
+        EXCLUSIVE_LOCK(1,"排它锁");
+        @Getter
+        private Integer code;
+        @Getter
+        private String value;
 
-
+        LockType(int code,String value) {
+            this.code = code;
+            this.value = value;
+        }
+    }
 }
@@ -0,0 +1,95 @@
+package simpledb.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second-chance) replacement. Pages sit on a circular list with a
+ * reference bit that is set on every access; the clock hand clears set bits
+ * as it sweeps and evicts the first evictable page whose bit is already
+ * clear. Hits only set a bit, so they are O(1) and never reorder the list.
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    private static class Frame {
+        final PageId pid;
+        boolean referenced;
+        Frame prev;
+        Frame next;
+
+        Frame(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    private final Map<PageId, Frame> frames = new HashMap<>();
+    /* 时钟指针，指向下一个要检查的frame；为空表示没有页面 */
+    private Frame hand;
+
+    public void recordAccess(PageId pid) {
+        Frame frame = frames.get(pid);
+        if (frame != null)
+            frame.referenced = true;
+    }
+
+    public void recordInsert(PageId pid) {
+        if (frames.containsKey(pid)) {
+            recordAccess(pid);
+            return;
+        }
+        Frame frame = new Frame(pid);
+        frames.put(pid, frame);
+        if (hand == null) {
+            frame.prev = frame;
+            frame.next = frame;
+            hand = frame;
+        } else {
+            // 插入到指针之前，即最后才会被扫描到
+            frame.next = hand;
+            frame.prev = hand.prev;
+            hand.prev.next = frame;
+            hand.prev = frame;
+        }
+    }
+
+    public void remove(PageId pid) {
+        Frame frame = frames.remove(pid);
+        if (frame != null)
+            unlink(frame);
+    }
+
+    public PageId evict(Predicate<PageId> evictable) {
+        // 两圈之内所有引用位都会被清掉，仍找不到则说明没有可淘汰的页
+        int steps = 2 * frames.size();
+        for (int i = 0; i < steps && hand != null; i++) {
+            Frame frame = hand;
+            hand = hand.next;
+            if (frame.referenced) {
+                frame.referenced = false;
+            } else if (evictable.test(frame.pid)) {
+                frames.remove(frame.pid);
+                unlink(frame);
+                return frame.pid;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return frames.size();
+    }
+
+    private void unlink(Frame frame) {
+        if (frame.next == frame) {
+            hand = null;
+        } else {
+            frame.prev.next = frame.next;
+            frame.next.prev = frame.prev;
+            if (hand == frame)
+                hand = frame.next;
+        }
+        frame.prev = null;
+        frame.next = null;
+    }
+}
@@ -0,0 +1,101 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.util.BitSet;
+
+/**
+ * CompactTuple is a tuple that stores its values in primitive form: the
+ * value of every INT_TYPE field lives in an int[] slot and the value of
+ * every STRING_TYPE field in a String[] slot, laid out as described by the
+ * tuple's TupleDesc. Operators that build new tuples, such as joins and
+ * projections, fill them with {@link #setField(int, Tuple, int)} and read
+ * them with {@link #getInt(int)} and {@link #getString(int)}, so a row costs
+ * one or two arrays instead of a Field object per column.
+ * <p>
+ * {@link #getField(int)} still works and creates the Field on demand, for
+ * code that has not been taught the typed accessors. As in Tuple, a field
+ * that has not been set, or has been set to null, reads as null.
+ */
+public class CompactTuple extends Tuple {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Type[] types;
+    /* INT字段的值，按字段下标存放 */
+    private final int[] ints;
+    /* 已经设置了值的INT字段 */
+    private final BitSet intsSet;
+    /* STRING字段的值，按字段下标存放；没有字符串字段时为null */
+    private final String[] strings;
+
+    public CompactTuple(TupleDesc td) {
+        super(td, false);
+        types = new Type[td.numFields()];
+        boolean hasStrings = false;
+        for (int i = 0; i < types.length; i++) {
+            types[i] = td.getFieldType(i);
+            hasStrings |= types[i] == Type.STRING_TYPE;
+        }
+        ints = new int[types.length];
+        intsSet = new BitSet(types.length);
+        strings = hasStrings ? new String[types.length] : null;
+    }
+
+    @Override
+    public boolean isSet(int i) {
+        if (types[i] == Type.INT_TYPE)
+            return intsSet.get(i);
+        return strings[i] != null;
+    }
+
+    @Override
+    public int getInt(int i) {
+        return ints[i];
+    }
+
+    @Override
+    public String getString(int i) {
+        return strings[i];
+    }
+
+    public void setInt(int i, int value) {
+        ints[i] = value;
+        intsSet.set(i);
+    }
+
+    public void setString(int i, String value) {
+        strings[i] = value;
+    }
+
+    @Override
+    public Field getField(int i) {
+        if (types[i] == Type.INT_TYPE)
+            return intsSet.get(i) ? new IntField(ints[i]) : null;
+        return strings[i] == null ? null : new StringField(strings[i], Type.STRING_LEN);
+    }
+
+    @Override
+    public void setField(int i, Field f) {
+        if (i < 0 || i >= types.length)
+            return;
+        if (types[i] == Type.INT_TYPE) {
+            if (f == null)
+                intsSet.clear(i);
+            else
+                setInt(i, ((IntField) f).getValue());
+        } else
+            strings[i] = f == null ? null : ((StringField) f).getValue();
+    }
+
+    @Override
+    public void setField(int i, Tuple src, int j) {
+        if (types[i] == Type.INT_TYPE) {
+            if (src.isSet(j))
+                setInt(i, src.getInt(j));
+            else
+                intsSet.clear(i);
+        } else
+            strings[i] = src.getString(j);
+    }
+}
@@ -33,6 +33,16 @@ public interface DbFile {
      */
     void writePage(Page p) throws IOException;
 
+    /**
+     * Forces the pages written with {@link #writePage(Page)} so far to disk,
+     * so that they survive a crash of the machine. Until then a written page
+     * may still be only in the operating system's cache.
+     *
+     * @throws IOException if the file cannot be synced
+     */
+    default void sync() throws IOException {
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -30,6 +30,23 @@ public interface DbFileIterator{
     Tuple next()
         throws DbException, TransactionAbortedException, NoSuchElementException;
 
+    /**
+     * Adds the next tuples of the iteration to batch until the batch is full
+     * or there are no more tuples. Files whose pages can be copied into a
+     * batch directly should override this.
+     *
+     * @return the number of tuples added to batch
+     */
+    default int nextBatch(TupleBatch batch)
+        throws DbException, TransactionAbortedException {
+        int n = 0;
+        while (!batch.isFull() && hasNext()) {
+            batch.add(next());
+            n++;
+        }
+        return n;
+    }
+
     /**
      * Resets the iterator to the start.
      * @throws DbException When rewind is unsupported.
@@ -0,0 +1,35 @@
+package simpledb.storage;
+
+/**
+ * DeadlockPolicy decides what the lock manager of a BufferPool does when a
+ * transaction asks for a lock that conflicts with other transactions.
+ * <p>
+ * The age of a transaction is given by its TransactionId: a transaction with
+ * a smaller id is older. WAIT_DIE and WOUND_WAIT only ever let a transaction
+ * wait for transactions of one age order, so deadlocks cannot form and no
+ * wait-for graph is kept.
+ *
+ * @see BufferPool#setDeadlockPolicy(DeadlockPolicy)
+ */
+public enum DeadlockPolicy {
+    /**
+     * Always wait, and look for a cycle in the wait-for graph every time a
+     * transaction starts waiting; the youngest transaction on a cycle is
+     * aborted.
+     */
+    DETECT,
+    /** Never wait: a request that conflicts fails at once. */
+    NO_WAIT,
+    /**
+     * An older transaction waits for younger ones; a younger transaction
+     * that would wait for an older one fails at once.
+     */
+    WAIT_DIE,
+    /**
+     * An older transaction wounds the younger ones it would wait for: their
+     * waiting requests fail, and so does their next lock request. It then
+     * waits until they have released their locks. A younger transaction
+     * waits for older ones.
+     */
+    WOUND_WAIT
+}
@@ -0,0 +1,121 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile are full, so that
+ * HeapFile.insertTuple can go straight to a page that may have a free slot
+ * instead of locking and inspecting every page of the table.
+ * <p>
+ * The map is kept in a side file next to the heap file, named after it with
+ * a ".fsm" suffix. It holds a header with the length and modification time
+ * the heap file had when the map was last written, followed by one bit per
+ * page, set if the page is known to be full. A page without a bit, e.g. a
+ * page appended by someone else, counts as possibly free. If the header does
+ * not match the heap file on load, because the heap file was rewritten or a
+ * crash hit between a page write and the map update, the map is thrown away
+ * and every page is a candidate again; inserts then find the full ones once.
+ * <p>
+ * On disk a page is only ever marked full from the contents it has on disk.
+ * In memory the map follows the pages in the buffer pool, including
+ * uncommitted inserts, so it is only a hint: callers must still check the
+ * page they are sent to. The two are kept apart, so that writing the bit of
+ * one page never writes the in-memory hints of its neighbours to disk.
+ */
+public class FreeSpaceMap {
+
+    /* 头部：堆文件长度(long) + 堆文件修改时间(long) */
+    private static final int HEADER_SIZE = 16;
+
+    private final File heapFile;
+    private final PageChannel channel;
+    /* 已知已满的页，跟随缓冲池中的页；未置位的页可能有空位 */
+    private BitSet full;
+    /* 按磁盘上的内容已满的页，即映射文件中的内容 */
+    private BitSet onDisk;
+
+    public FreeSpaceMap(File heapFile) {
+        this.heapFile = heapFile;
+        this.channel = new PageChannel(fileFor(heapFile));
+    }
+
+    /**
+     * @return the side file holding the free-space map of heapFile
+     */
+    public static File fileFor(File heapFile) {
+        return new File(heapFile.getPath() + ".fsm");
+    }
+
+    /**
+     * Loads the map from its side file if that has not happened yet. Must be
+     * called before the heap file is changed by its owner for the first time.
+     */
+    public synchronized void load() throws IOException {
+        if (full != null)
+            return;
+        long length = heapFile.length();
+        long modified = heapFile.lastModified();
+        full = new BitSet();
+        onDisk = new BitSet();
+        long size = channel.size();
+        if (size >= HEADER_SIZE) {
+            byte[] header = new byte[HEADER_SIZE];
+            channel.read(header, 0);
+            ByteBuffer hb = ByteBuffer.wrap(header);
+            if (hb.getLong() == length && hb.getLong() == modified) {
+                byte[] bits = new byte[(int) (size - HEADER_SIZE)];
+                channel.read(bits, HEADER_SIZE);
+                onDisk = BitSet.valueOf(bits);
+                full = (BitSet) onDisk.clone();
+                return;
+            }
+        }
+        // 与堆文件对不上，丢弃旧的映射，所有页都重新成为候选
+        if (size > 0)
+            channel.truncate(0);
+    }
+
+    /**
+     * Must only be called after {@link #load()}.
+     *
+     * @return the first page at or after pgNo that may have a free slot; may
+     *   be past the end of the heap file
+     */
+    public synchronized int nextCandidate(int pgNo) {
+        return full.nextClearBit(pgNo);
+    }
+
+    /**
+     * Records in memory whether page pgNo has a free slot, as seen in the
+     * buffer pool. Does nothing until the map has been loaded.
+     */
+    public synchronized void update(int pgNo, boolean hasFreeSlot) {
+        if (full != null)
+            full.set(pgNo, !hasFreeSlot);
+    }
+
+    /**
+     * Records whether page pgNo has a free slot, as it is now on disk, both
+     * in memory and in the side file. The caller must have loaded the map
+     * before the write, and hold this map's lock across writing the page and
+     * calling this, so that the header written here describes the heap file
+     * including that write.
+     */
+    public synchronized void persist(int pgNo, boolean hasFreeSlot) throws IOException {
+        full.set(pgNo, !hasFreeSlot);
+        onDisk.set(pgNo, !hasFreeSlot);
+        // 只重写该页所在的那个字节，其余位取磁盘上的状态，内存中的提示不写盘
+        int index = pgNo / 8;
+        byte b = 0;
+        for (int i = 0; i < 8; i++)
+            if (onDisk.get(index * 8 + i))
+                b |= (byte) (1 << i);
+        channel.write(new byte[]{b}, HEADER_SIZE + index);
+        byte[] header = ByteBuffer.allocate(HEADER_SIZE)
+                .putLong(heapFile.length()).putLong(heapFile.lastModified()).array();
+        channel.write(header, 0);
+    }
+}
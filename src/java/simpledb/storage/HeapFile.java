@@ -8,6 +8,7 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import static java.lang.Math.floor;
@@ -25,6 +26,12 @@ import static java.lang.Math.floor;
 public class HeapFile implements DbFile {
     private File heapFile;
     private TupleDesc tupleDesc;
+    /* 整个文件生命周期内复用的文件通道，按位置读写页 */
+    private final PageChannel channel;
+    /* 读页时直接在文件的内存映射上解析，而不是先读进byte[] */
+    private final boolean memoryMapped;
+    /* 记录哪些页已满，插入时跳过它们 */
+    private final FreeSpaceMap freeSpace;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -34,9 +41,33 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally in
+     * memory-mapped mode. In that mode pages are taken from a read-only
+     * mapping of the file instead of being read with a system call, so
+     * reading a page that is in the OS page cache costs one memory copy
+     * out of the mapping and nothing else. The page keeps its own copy
+     * because it decodes its tuples lazily, and the mapping changes when
+     * the page is written back. This suits tables that are loaded once, e.g.
+     * with HeapFileEncoder, and then mostly scanned. Writes still go through
+     * the file channel and show up in the mapping.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param memoryMapped
+     *            whether to read pages through a memory mapping of the file
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
         // some code goes here
         this.heapFile = f;
         this.tupleDesc = td;
+        this.channel = new PageChannel(f);
+        this.memoryMapped = memoryMapped;
+        this.freeSpace = new FreeSpaceMap(f);
     }
 
     /**
@@ -49,6 +80,13 @@ public class HeapFile implements DbFile {
         return this.heapFile;
     }
 
+    /**
+     * @return true if pages of this file are read through a memory mapping
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -81,42 +119,73 @@ public class HeapFile implements DbFile {
         // some code goes here
         int tableId = pid.getTableId();
         int pgNo = pid.getPageNumber();
-        try(RandomAccessFile raf = new RandomAccessFile(heapFile,"r")) {
-            byte[] data = new byte[BufferPool.getPageSize()];
+        try {
             int pageSize = BufferPool.getPageSize();
-            int offset = pgNo * pageSize;
-            raf.seek(offset);
-            int num = raf.read(data,0, pageSize);
-            if (num != pageSize)
-                throw new IllegalArgumentException(String.format("table %d page %d does not exist in this file!",tableId,pgNo));
+            long offset = (long) pgNo * pageSize;
+            byte[] data = new byte[pageSize];
+            // 映射覆盖不到（超出文件或超过2GB）时退回普通读
+            ByteBuffer mapped = memoryMapped ? channel.map(offset, pageSize) : null;
+            if (mapped != null) {
+                // 页不能直接引用映射：元组在读取时才从页数据解码，而页写回文件后映射中的内容就变了
+                mapped.get(data);
+            } else {
+                int num = channel.read(data, offset);
+                if (num != pageSize)
+                    throw new IllegalArgumentException(String.format("table %d page %d does not exist in this file!",tableId,pgNo));
+            }
             //创建该页
             HeapPageId pageId = new HeapPageId(tableId, pgNo);
             HeapPage page = new HeapPage(pageId,data);
-            return page;
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
+            return noteFreeSpace(page);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /* 从磁盘读入的页（例如回滚后重新读入）有空位时，空闲空间映射里不应再记为已满 */
+    private HeapPage noteFreeSpace(HeapPage page) {
+        if (page.getNumEmptySlots() > 0)
+            freeSpace.update(page.getId().getPageNumber(), true);
+        return page;
+    }
+
+    /**
+     * Tells the free-space map that page was rolled back to the given
+     * contents, so that a full-page hint left by an aborted insert does not
+     * keep later inserts away from it.
+     */
+    public void noteRestored(Page page) {
+        if (page instanceof HeapPage)
+            freeSpace.update(page.getId().getPageNumber(), ((HeapPage) page).getNumEmptySlots() > 0);
+    }
+
     // see DbFile.java for javadocs
     // TODO
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
         int pgNo = page.getId().getPageNumber();
-        try(RandomAccessFile raf = new RandomAccessFile(heapFile,"rw")){
+        try {
             int pageSize = BufferPool.getPageSize();
-            int offset = pgNo * pageSize;
-            raf.seek(offset);
+            long offset = (long) pgNo * pageSize;
             byte[] data = page.getPageData();
-            raf.write(data);
+            /* 写页与更新空闲空间映射一起进行，映射头部记录的是写之后的文件状态 */
+            synchronized (freeSpace) {
+                freeSpace.load();
+                channel.write(data, offset);
+                if (page instanceof HeapPage)
+                    freeSpace.persist(pgNo, ((HeapPage) page).getNumEmptySlots() > 0);
+            }
         }catch (IOException e){
-            throw new IOException("write fail.");
+            throw new IOException("write fail.", e);
         }
     }
 
+    @Override
+    public void sync() throws IOException {
+        channel.force();
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
@@ -129,48 +198,56 @@ public class HeapFile implements DbFile {
     public List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        /* 找所有已存在的页，存在空闲插槽则插入，并标记页易发生修改
-        *  否则创建新页，插入元组，写新页加入文件结尾 */
+        /* 只找空闲空间映射中可能有空位的页，已知已满的页不再加锁检查
+        *  都没有空位则在文件结尾追加新页，插入元组 */
         List<Page> modifiedPages = new ArrayList<>();
-        for (int i = 0; i < numPages();i++){
+        freeSpace.load();
+        int numPages = numPages();
+        for (int i = freeSpace.nextCandidate(0); i < numPages; i = freeSpace.nextCandidate(i + 1)){
             /* 获取某页 */
             HeapPageId pid = new HeapPageId(getId(), i);
             HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
 
             if (page.getNumEmptySlots() == 0){
+                /* 页是干净的，说明磁盘上的内容也是满的，可以持久化 */
+                if (page.isDirty() == null)
+                    fullOnDisk(i);
+                else
+                    freeSpace.update(i, false);
                 Database.getBufferPool().unsafeReleasePage(tid, pid);
                 continue;
             }
             page.insertTuple(t);
+            freeSpace.update(i, page.getNumEmptySlots() > 0);
             modifiedPages.add(page);
             return modifiedPages;
         }
 
         /* 新建页 */
-//        System.out.println("numPages_before:"+numPages());
         byte[] emptyData = HeapPage.createEmptyPageData();
-        BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(heapFile,true));
-        bw.write(emptyData);
-        bw.close();
+        long offset;
+        synchronized (freeSpace) {
+            offset = channel.append(emptyData);
+            freeSpace.persist((int) (offset / BufferPool.getPageSize()), true);
+        }
         // 加载进BufferPool
         HeapPage newPage = (HeapPage) Database.getBufferPool().getPage(tid,
-                new HeapPageId(getId(),numPages()-1),Permissions.READ_WRITE);
+                new HeapPageId(getId(),(int) (offset / BufferPool.getPageSize())),Permissions.READ_WRITE);
         newPage.insertTuple(t);
         newPage.markDirty(true, tid);
-//        System.out.println("numPages_before:"+numPages());
-//        HeapPageId newPid = new HeapPageId(getId(), numPages());
-//        HeapPage newPage = new HeapPage(newPid, emptyData);
-//        newPage.insertTuple(t);
-//        try(RandomAccessFile raf = new RandomAccessFile(heapFile, "rw")){
-//            raf.seek(raf.length());
-//            raf.write(newPage.getPageData());
-//        }
-//        System.out.println("numPages_after:"+numPages());
+        freeSpace.update(newPage.getId().getPageNumber(), newPage.getNumEmptySlots() > 0);
         modifiedPages.add(newPage);
         return modifiedPages;
         // not necessary for lab1
     }
 
+    /* 把磁盘上已满的页记入空闲空间映射文件 */
+    private void fullOnDisk(int pgNo) throws IOException {
+        synchronized (freeSpace) {
+            freeSpace.persist(pgNo, false);
+        }
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -185,6 +262,7 @@ public class HeapFile implements DbFile {
         if (!page.isSlotUsed(rid.getTupleNumber()))
             throw new DbException("Tuple slot is already empty.");
         page.deleteTuple(t);
+        freeSpace.update(pid.getPageNumber(), true);
         modifiedPages.add(page);
         return modifiedPages;
         // not necessary for lab1
@@ -200,6 +278,13 @@ public class HeapFile implements DbFile {
         private TransactionId tid;
         private Iterator<Tuple> tupleIterator;
         private int index;
+        /* 大表顺序扫描使用私有的扫描环，避免把其他查询的热页挤出缓冲池 */
+        private ScanRing scanRing;
+        /* 按页号顺序预读后续的页 */
+        private ReadAheadStream readAhead;
+        /* 批量读取停在页中间时，当前页和下一个要读的槽位 */
+        private HeapPage batchPage;
+        private int batchSlot;
         public HeapFileItertor(HeapFile heapFile,TransactionId tid){
             this.heapFile = heapFile;
             this.tid = tid;
@@ -208,19 +293,34 @@ public class HeapFile implements DbFile {
         @Override
         public void open() throws DbException, TransactionAbortedException {
             index = 0;
+            scanRing = Database.getBufferPool().scanRingFor(heapFile.numPages());
+            readAhead = Database.getBufferPool().readAheadStream(page -> {
+                int next = page.getId().getPageNumber() + 1;
+                return next < heapFile.numPages() ? new HeapPageId(heapFile.getId(), next) : null;
+            });
             tupleIterator = getTupleIterator(index);
         }
 
         private Iterator<Tuple> getTupleIterator(int pgNo) throws DbException, TransactionAbortedException {
+            return getPage(pgNo).iterator();
+        }
+
+        private HeapPage getPage(int pgNo) throws DbException, TransactionAbortedException {
             if (pgNo >= 0 && pgNo < heapFile.numPages()){
                 HeapPageId pid = new HeapPageId(heapFile.getId(),pgNo);
-                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-                return page.iterator();
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY, scanRing);
+                readAhead.accessed(page);
+                return page;
             }else throw new DbException(String.format("heapFile %d  does not exist in page[%d]!", pgNo,heapFile.getId()));
         }
 
         @Override
         public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (batchPage != null) {
+                // 从批量读取停下的槽位继续逐行读
+                tupleIterator = batchPage.iterator(batchSlot);
+                batchPage = null;
+            }
             if(tupleIterator == null)
                 return false;
             if(tupleIterator.hasNext())
@@ -236,11 +336,41 @@ public class HeapFile implements DbFile {
 
         @Override
         public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (batchPage != null)
+                hasNext();
             if(tupleIterator == null || !tupleIterator.hasNext())
                 throw new NoSuchElementException();
             return tupleIterator.next();
         }
 
+        /**
+         * Copies the tuples of each page straight into the batch instead of
+         * going through the page's tuple iterator.
+         */
+        @Override
+        public int nextBatch(TupleBatch batch) throws DbException, TransactionAbortedException {
+            int start = batch.size();
+            // 先取完逐行读取时已经取出的当前页
+            while (tupleIterator != null && tupleIterator.hasNext() && !batch.isFull())
+                batch.add(tupleIterator.next());
+            if (tupleIterator == null || batch.isFull())
+                return batch.size() - start;
+            tupleIterator = Collections.emptyIterator();
+            while (!batch.isFull()) {
+                if (batchPage == null) {
+                    index++;
+                    if (index >= heapFile.numPages())
+                        break;
+                    batchPage = getPage(index);
+                    batchSlot = 0;
+                }
+                batchSlot = batchPage.readInto(batch, batchSlot);
+                if (batchSlot >= batchPage.numSlots)
+                    batchPage = null;
+            }
+            return batch.size() - start;
+        }
+
         @Override
         public void rewind() throws DbException, TransactionAbortedException {
             close();
@@ -250,6 +380,12 @@ public class HeapFile implements DbFile {
         @Override
         public void close() {
             tupleIterator = null;
+            batchPage = null;
+            scanRing = null;
+            if (readAhead != null) {
+                readAhead.close();
+                readAhead = null;
+            }
         }
     }
 
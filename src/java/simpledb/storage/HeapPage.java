@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Catalog;
+import simpledb.common.Type;
 import simpledb.transaction.TransactionId;
 
 import java.util.*;
@@ -25,10 +26,16 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte[] header;
+    /* 从磁盘读入的原始页数据，构造后不再修改；未物化的元组直接从这里按偏移解码 */
+    final byte[] data;
+    /* 已物化的元组（页上元组的视图或插入的元组）；已使用但为null的槽位尚未物化 */
     final Tuple[] tuples;
     final int numSlots;
+    /* 各字段在一条元组内的字节偏移 */
+    final int[] fieldOffsets;
     private boolean isDirty;
     private TransactionId dirtyTid;
+    private volatile long lsn = NO_LSN;
 
     byte[] oldData;
     private final Byte oldDataLock= (byte) 0;
@@ -53,24 +60,20 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < getHeaderSize() + numSlots * td.getSize())
+            throw new EOFException("page data is too short for its slots");
+        this.data = data;
 
         // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        header = Arrays.copyOf(data, getHeaderSize());
+
+        // 元组不在这里反序列化，第一次访问某个槽位时才建立它的视图，字段在读取时才解码
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
 
-        setBeforeImage();
+        setBeforeImage(data);
     }
 
     /** Retrieve the number of tuples on this page.
@@ -111,9 +114,14 @@ public class HeapPage implements Page {
     }
     
     public void setBeforeImage() {
+        setBeforeImage(getPageData());
+    }
+
+    /* getPageData每次返回新数组，构造时的data也不会被修改，所以都不用再复制 */
+    private void setBeforeImage(byte[] image) {
         synchronized(oldDataLock)
         {
-            oldData = getPageData().clone();
+            oldData = image;
         }
     }
 
@@ -127,43 +135,28 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the tuple in slot i, creating a view of it over the page data
+     *   the first time it is asked for; null if the slot is empty
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-//        System.out.println("numTuples:"+getNumTuples());
-//        System.out.println("header size:"+getHeaderSize());
-//        System.out.println("tuples length:"+tuples.length);
-//        System.out.println("soltId:"+slotId);
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
+    private Tuple getTuple(int i) {
+        if (!isSlotUsed(i))
             return null;
+        Tuple t = tuples[i];
+        if (t == null) {
+            // 多个读线程可能同时建立视图，结果相同，谁留在数组里都可以
+            t = new HeapPageTuple(this, i);
+            tuples[i] = t;
         }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
-
         return t;
     }
 
+    /**
+     * @return the offset of slot i in the page data
+     */
+    int slotOffset(int i) {
+        return header.length + i * td.getSize();
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -176,64 +169,44 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        // 从原始页数据出发，只重写头部和内存中改动过的槽位
+        byte[] out = Arrays.copyOf(data, BufferPool.getPageSize());
+        System.arraycopy(header, 0, out, 0, header.length);
 
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
         for (int i=0; i<tuples.length; i++) {
+            int offset = slotOffset(i);
 
             // empty slot
             if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
+                Arrays.fill(out, offset, offset + td.getSize(), (byte) 0);
                 continue;
             }
 
+            // 未物化或未修改的视图，原始数据里就是它的内容
+            Tuple t = tuples[i];
+            if (t == null || (t instanceof HeapPageTuple && ((HeapPageTuple) t).isUnchangedOn(this, i)))
+                continue;
+
             // non-empty slot
+            baos.reset();
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
+                Field f = t.getField(j);
                 try {
                     f.serialize(dos);
-                
                 } catch (IOException e) {
+                    // this really shouldn't happen
                     e.printStackTrace();
                 }
             }
+            System.arraycopy(baos.toByteArray(), 0, out, offset, td.getSize());
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        int end = slotOffset(tuples.length);
+        Arrays.fill(out, end, out.length, (byte) 0);
+        return out;
     }
 
     /**
@@ -317,6 +290,14 @@ public class HeapPage implements Page {
         return isDirty ? dirtyTid:null;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
@@ -364,13 +345,66 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
+        return iterator(0);
+    }
+
+    /**
+     * @return an iterator over the tuples in slot from and the slots after it
+     */
+    Iterator<Tuple> iterator(int from) {
+        // 只建立元组视图，字段等到读取时才解码
         List<Tuple> tupleList = new ArrayList<>();
-        for(int i = 0;i < tuples.length;i++){
+        for(int i = from;i < tuples.length;i++){
             if(isSlotUsed(i))
-                tupleList.add(tuples[i]);
+                tupleList.add(getTuple(i));
         }
         return tupleList.iterator();
     }
 
+    /**
+     * Adds the tuples in slot from and the slots after it to batch, in slot
+     * order, until the batch is full. Values that are unchanged since the
+     * page was read are copied straight from the page data into the column
+     * vectors of the batch, without creating Tuples or Fields.
+     *
+     * @return the slot to continue from, numSlots if the page is done
+     */
+    int readInto(TupleBatch batch, int from) {
+        int room = batch.capacity() - batch.size();
+        /* 先确定要读的行，未修改的记下槽位偏移，之后逐列从页数据拷贝 */
+        int[] rows = new int[room];
+        int[] offsets = new int[room];
+        int n = 0;
+        int i = from;
+        for (; i < numSlots && !batch.isFull(); i++) {
+            if (!isSlotUsed(i))
+                continue;
+            Tuple t = tuples[i];
+            int row;
+            if (t == null || (t instanceof HeapPageTuple && ((HeapPageTuple) t).isUnchangedOn(this, i))) {
+                row = batch.addRow();
+                rows[n] = row;
+                offsets[n++] = slotOffset(i);
+            } else {
+                row = batch.size();
+                batch.add(t);
+            }
+            batch.setRecordId(row, pid, i);
+        }
+        for (int c = 0; c < fieldOffsets.length; c++) {
+            int fieldOffset = fieldOffsets[c];
+            if (td.getFieldType(c) == Type.INT_TYPE) {
+                int[] v = batch.getInts(c);
+                for (int k = 0; k < n; k++)
+                    v[rows[k]] = Type.readInt(data, offsets[k] + fieldOffset);
+            } else {
+                String[] v = batch.getStrings(c);
+                for (int k = 0; k < n; k++)
+                    v[rows[k]] = Type.readString(data, offsets[k] + fieldOffset);
+            }
+        }
+        return i;
+    }
+
 }
 
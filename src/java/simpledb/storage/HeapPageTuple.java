@@ -0,0 +1,80 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+/**
+ * HeapPageTuple is a tuple that lives in a slot of a HeapPage. It does not
+ * copy anything out of the page when it is created: each field is decoded
+ * from the page data at its computed offset the first time it is read, and
+ * then kept. A query that only looks at one column of a few rows therefore
+ * never builds Field objects for the rest of the page, and {@link #getInt(int)}
+ * reads an integer column without building one at all.
+ * <p>
+ * Setting a field works like for any tuple; the page notices the change and
+ * serializes the tuple again when it writes its data out.
+ *
+ * @see HeapPage#iterator()
+ */
+class HeapPageTuple extends Tuple {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient HeapPage page;
+    private final int slot;
+    /* 是否被setField修改过；未修改的元组在页数据中的内容就是它本身 */
+    private boolean modified = false;
+
+    HeapPageTuple(HeapPage page, int slot) {
+        super(page.td);
+        this.page = page;
+        this.slot = slot;
+        setRecordId(new RecordId(page.pid, slot));
+    }
+
+    @Override
+    public Field getField(int i) {
+        Field f = super.getField(i);
+        if (f == null) {
+            f = page.td.getFieldType(i).parse(page.data, page.slotOffset(slot) + page.fieldOffsets[i]);
+            super.setField(i, f);
+        }
+        return f;
+    }
+
+    /* 字段还没解码过时直接从页数据读取，不创建IntField */
+    @Override
+    public int getInt(int i) {
+        Field f = super.getField(i);
+        if (f != null)
+            return ((IntField) f).getValue();
+        return Type.readInt(page.data, page.slotOffset(slot) + page.fieldOffsets[i]);
+    }
+
+    /* 未修改过的元组每个字段在页数据中都有值 */
+    @Override
+    public boolean isSet(int i) {
+        return !modified || getField(i) != null;
+    }
+
+    @Override
+    public void setField(int i, Field f) {
+        modified = true;
+        super.setField(i, f);
+    }
+
+    /**
+     * @return true if the page data of slot in p still holds exactly this tuple
+     */
+    boolean isUnchangedOn(HeapPage p, int s) {
+        return page == p && slot == s && !modified;
+    }
+
+    /* 序列化时没有页可以解码，先把所有字段解码出来，换成普通元组 */
+    private Object writeReplace() {
+        Tuple t = new Tuple(getTupleDesc());
+        for (int i = 0; i < getTupleDesc().numFields(); i++)
+            t.setField(i, getField(i));
+        t.setRecordId(getRecordId());
+        return t;
+    }
+}
@@ -0,0 +1,665 @@
+package simpledb.storage;
+
+import simpledb.storage.BufferPool.LockType;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockManager keeps the locks of the BufferPool: shared and exclusive page
+ * locks, and above them table locks in the modes IS, IX, S, SIX and X.
+ * <p>
+ * Before a transaction locks a page, it takes an intention lock on the table
+ * of the page: IS for a shared page lock, IX for an exclusive one. A table
+ * lock in mode S or SIX covers shared locks on all pages of the table, and
+ * one in mode X covers all page locks; a page request that is covered needs
+ * no page lock. When a transaction holds page locks on a multiple of the
+ * escalation threshold pages of one table, the manager tries to escalate
+ * them to a single table lock: S if all of them are shared, X otherwise. If
+ * the table lock cannot be granted at once, the transaction keeps its page
+ * locks and the manager tries again after as many more pages.
+ * <p>
+ * The lock table is split by the hash of the page or table id into
+ * stripes, each with its own latch, so that requests for different pages
+ * and tables mostly do not block each other. A thread holds at most one
+ * stripe latch at a time. Next to the table, the manager keeps the pages and
+ * tables each transaction holds locks on, so that committing or aborting a
+ * transaction only visits its own locks.
+ * <p>
+ * A request that conflicts with the current holders of a page or table, or
+ * that arrives while other requests for it are already waiting, is put in
+ * its FIFO wait queue. Upgrades of a lock a transaction already holds go to
+ * the front of the queue. Whenever a lock is released, the waiters at the
+ * head of the queue that can now be granted get the lock and are woken;
+ * nobody else is.
+ * <p>
+ * A waiter waits for the holders that conflict with it and for the requests
+ * queued before it. What happens when a request would have to wait depends
+ * on the {@link DeadlockPolicy}. Under DETECT, the default, the wait-for
+ * graph is searched for a cycle through the requesting transaction every
+ * time a request has to wait. Since a new cycle always runs through the
+ * transaction that just started waiting, and the searches run one at a time
+ * after the request is queued, this finds every deadlock as soon as it
+ * forms. The youngest transaction on the cycle is the victim; its request
+ * fails, and nobody else is aborted. The search is repeated until no cycle
+ * through the requesting transaction is left. The search takes the stripe
+ * latches one at a time, so it may also see a cycle that a concurrent
+ * release has just broken, and abort a victim needlessly. The other
+ * policies decide from the ages of the transactions involved instead.
+ */
+class LockManager {
+
+    /** Number of stripes the lock table is split into. */
+    static final int STRIPES = 64;
+
+    /** Number of page locks on one table after which they are escalated, unless set otherwise. */
+    static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    /* 锁的模式；页锁只用S和X */
+    private enum Mode {
+        IS, IX, S, SIX, X;
+
+        /* 两个事务是否可以同时持有这两种模式的锁，下标按ordinal */
+        private static final boolean[][] COMPATIBLE = {
+                //          IS     IX     S      SIX    X
+                /* IS  */ {true,  true,  true,  true,  false},
+                /* IX  */ {true,  true,  false, false, false},
+                /* S   */ {true,  false, true,  false, false},
+                /* SIX */ {true,  false, false, false, false},
+                /* X   */ {false, false, false, false, false},
+        };
+
+        boolean compatible(Mode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return the weakest mode that allows everything both modes allow */
+        Mode sup(Mode other) {
+            if (this == other || other == IS)
+                return this;
+            if (this == IS)
+                return other;
+            if (this == X || other == X)
+                return X;
+            // IX、S、SIX中两个不同的模式
+            return SIX;
+        }
+
+        /** @return true if a table lock in this mode covers a page lock in the given mode */
+        boolean coversPages(Mode page) {
+            return this == X || (page == S && (this == S || this == SIX));
+        }
+    }
+
+    /* 表锁在锁表中的键，与页号区分开 */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return tableId;
+        }
+    }
+
+    /* 一个页或表上的锁：持有者及其模式，和按到达顺序排队的等待请求 */
+    private static class LockState {
+        final Map<TransactionId, Mode> holders = new LinkedHashMap<>();
+        final ArrayDeque<Request> waiters = new ArrayDeque<>();
+    }
+
+    /* 锁表的一个分段，段内各页和表的锁和等待请求由它的latch保护 */
+    private static class Stripe {
+        final ReentrantLock latch = new ReentrantLock();
+        final Map<Object, LockState> locks = new HashMap<>();
+    }
+
+    /* 一个正在等待的加锁请求，每个请求有自己的条件变量，只在它能获得锁或被选为牺牲者时唤醒；
+    *  granted和aborted由所在分段的latch保护 */
+    private static class Request {
+        final TransactionId tid;
+        final Object resource;
+        final Mode mode;
+        final Stripe stripe;
+        final Condition ready;
+        boolean granted = false;
+        boolean aborted = false;
+
+        Request(TransactionId tid, Object resource, Mode mode, Stripe stripe) {
+            this.tid = tid;
+            this.resource = resource;
+            this.mode = mode;
+            this.stripe = stripe;
+            this.ready = stripe.latch.newCondition();
+        }
+    }
+
+    /* 一个事务持有的锁；只在held.compute中修改，tables可以不加锁读取 */
+    private static class HeldLocks {
+        /* 持有锁的页和表 */
+        final Set<Object> resources = new HashSet<>();
+        /* 各表上的表锁模式 */
+        final Map<Integer, Mode> tables = new ConcurrentHashMap<>();
+        /* 各表上持有页锁的页数，和其中排它锁的页数 */
+        final Map<Integer, int[]> pageCounts = new HashMap<>();
+    }
+
+    private final Stripe[] stripes;
+    /* 每个事务持有的锁，释放事务的锁时只访问这些页和表 */
+    private final Map<TransactionId, HeldLocks> held = new ConcurrentHashMap<>();
+    /* 正在等待的事务及其请求，即等待图中出边的起点；同一事务可以有多个线程在等待 */
+    private final Map<TransactionId, Set<Request>> waiting = new ConcurrentHashMap<>();
+    /* WOUND_WAIT下被更老的事务伤害的事务，它们的下一次加锁请求失败 */
+    private final Set<TransactionId> wounded = ConcurrentHashMap.newKeySet();
+    /* 死锁检测一次只做一个，后开始等待的事务一定能看到先开始等待的事务的请求；
+    *  加锁顺序是先detector后分段latch */
+    private final ReentrantLock detector = new ReentrantLock();
+    private volatile DeadlockPolicy policy = DeadlockPolicy.DETECT;
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+
+    LockManager() {
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe();
+    }
+
+    private Stripe stripeFor(Object resource) {
+        int h = resource.hashCode();
+        h ^= (h >>> 16);
+        return stripes[(h & 0x7fffffff) % stripes.length];
+    }
+
+    public DeadlockPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Sets the policy for requests that conflict with other transactions.
+     * Requests that are already waiting are not affected.
+     */
+    public void setPolicy(DeadlockPolicy policy) {
+        this.policy = policy;
+    }
+
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /**
+     * Sets the number of page locks on one table after which a transaction's
+     * page locks are escalated to a table lock; 0 turns escalation off.
+     */
+    public void setEscalationThreshold(int threshold) {
+        this.escalationThreshold = threshold;
+    }
+
+    /**
+     * Return true if the specified transaction has a lock on the specified
+     * page, either on the page itself or through a table lock
+     */
+    public boolean holdsLock(TransactionId tid, PageId p) {
+        Mode table = tableMode(tid, p.getTableId());
+        if (table != null && table.coversPages(Mode.S))
+            return true;
+        Stripe stripe = stripeFor(p);
+        stripe.latch.lock();
+        try {
+            LockState state = stripe.locks.get(p);
+            return state != null && state.holders.containsKey(tid);
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /**
+     * @return the mode of the table lock tid holds on the table, or null
+     */
+    private Mode tableMode(TransactionId tid, int tableId) {
+        HeldLocks locks = held.get(tid);
+        return locks == null ? null : locks.tables.get(tableId);
+    }
+
+    /**
+     * Acquires a lock of the given type on pid for tid, together with the
+     * intention lock on its table, unless a table lock of tid already covers
+     * it. If a lock conflicts with other transactions, the policy decides
+     * whether tid waits for it.
+     *
+     * @return false if the policy made the request fail, or tid was chosen
+     *   as the victim of a deadlock; the caller must then abort tid
+     */
+    public boolean acquireLock(PageId pid, TransactionId tid, LockType type) throws InterruptedException {
+        Mode mode = type == LockType.EXCLUSIVE_LOCK ? Mode.X : Mode.S;
+        Mode intention = type == LockType.EXCLUSIVE_LOCK ? Mode.IX : Mode.IS;
+        int tableId = pid.getTableId();
+        Mode table = tableMode(tid, tableId);
+        if (table != null && table.coversPages(mode))
+            return !wounded.contains(tid);
+        if (table == null || table.sup(intention) != table) {
+            if (!acquire(new TableKey(tableId), tid, intention, true))
+                return false;
+        }
+        if (!acquire(pid, tid, mode, true))
+            return false;
+        escalate(tid, tableId);
+        return true;
+    }
+
+    /**
+     * Escalates the page locks of tid on the table to a table lock if it
+     * holds a multiple of the threshold of them and the table lock can be
+     * granted at once, and then releases the page locks.
+     */
+    private void escalate(TransactionId tid, int tableId) throws InterruptedException {
+        int threshold = escalationThreshold;
+        if (threshold <= 0)
+            return;
+        int[] counts = new int[2];
+        held.computeIfPresent(tid, (k, locks) -> {
+            int[] c = locks.pageCounts.get(tableId);
+            if (c != null)
+                System.arraycopy(c, 0, counts, 0, 2);
+            return locks;
+        });
+        if (counts[0] == 0 || counts[0] % threshold != 0)
+            return;
+        // 升级只在不用等待时进行，不会因此造成死锁或中止事务
+        if (!acquire(new TableKey(tableId), tid, counts[1] > 0 ? Mode.X : Mode.S, false))
+            return;
+        List<Object> resources = new ArrayList<>();
+        held.computeIfPresent(tid, (k, locks) -> {
+            resources.addAll(locks.resources);
+            return locks;
+        });
+        for (Object resource : resources) {
+            if (resource instanceof PageId && ((PageId) resource).getTableId() == tableId)
+                release(tid, resource);
+        }
+    }
+
+    /**
+     * Acquires a lock in the given mode on resource for tid. If tid already
+     * holds a lock on it, the lock is upgraded to cover both modes.
+     *
+     * @param mayWait if false, fail instead of waiting or aborting anybody
+     * @return false if the lock was not acquired
+     */
+    private boolean acquire(Object resource, TransactionId tid, Mode mode, boolean mayWait)
+            throws InterruptedException {
+        if (wounded.contains(tid))
+            return false;
+        DeadlockPolicy policy = mayWait ? this.policy : DeadlockPolicy.NO_WAIT;
+        Stripe stripe = stripeFor(resource);
+        List<TransactionId> victims = new ArrayList<>();
+        Request request;
+        stripe.latch.lock();
+        try {
+            LockState state = stripe.locks.computeIfAbsent(resource, k -> new LockState());
+            Mode current = state.holders.get(tid);
+            // 已持有的锁已经包含了请求的模式：不需要做任何事，也不能把锁降级
+            if (current != null && current.sup(mode) == current)
+                return true;
+            boolean upgrade = current != null;
+            Mode target = upgrade ? current.sup(mode) : mode;
+            if ((upgrade || state.waiters.isEmpty()) && grantable(state, tid, target)) {
+                grant(state, tid, resource, target);
+                return true;
+            }
+            if (!mayWait(policy, state, tid, target, upgrade, victims)) {
+                if (state.holders.isEmpty() && state.waiters.isEmpty())
+                    stripe.locks.remove(resource);
+                return false;
+            }
+
+            request = new Request(tid, resource, target, stripe);
+            if (upgrade)
+                state.waiters.addFirst(request);
+            else
+                state.waiters.addLast(request);
+            waiting.compute(tid, (k, requests) -> {
+                if (requests == null)
+                    requests = ConcurrentHashMap.newKeySet();
+                requests.add(request);
+                return requests;
+            });
+        } finally {
+            stripe.latch.unlock();
+        }
+
+        // 牺牲者的请求可能在别的分段，放开本段的latch后再中止它们
+        if (policy == DeadlockPolicy.DETECT) {
+            detector.lock();
+            try {
+                // 经过tid的环可能不止一个，逐个打破，直到没有环或tid自己成为牺牲者
+                List<TransactionId> cycle;
+                while ((cycle = findCycle(tid)) != null) {
+                    TransactionId victim = youngest(cycle);
+                    abortWaiting(victim);
+                    if (victim.equals(tid))
+                        break;
+                }
+            } finally {
+                detector.unlock();
+            }
+        }
+        for (TransactionId victim : victims) {
+            if (policy == DeadlockPolicy.WOUND_WAIT)
+                wounded.add(victim);
+            abortWaiting(victim);
+        }
+
+        stripe.latch.lock();
+        try {
+            // 在排队的同时被伤害时，伤害者可能没有看到这个请求
+            if (!request.granted && !request.aborted && wounded.contains(tid))
+                withdraw(request);
+            try {
+                while (!request.granted && !request.aborted)
+                    request.ready.await();
+            } catch (InterruptedException e) {
+                if (request.granted) {
+                    Thread.currentThread().interrupt();
+                    return true;
+                }
+                throw e;
+            } finally {
+                // await返回或被中断时都已重新持有latch；等待被中断时撤回请求，不再唤醒这个线程
+                if (!request.granted && !request.aborted)
+                    withdraw(request);
+            }
+            return request.granted;
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /**
+     * Applies the policy to a request of tid that cannot be granted now, and
+     * adds the transactions the policy sacrifices for it to victims.
+     *
+     * @return true if tid may wait for the lock
+     */
+    private static boolean mayWait(DeadlockPolicy policy, LockState state, TransactionId tid, Mode mode,
+                                   boolean upgrade, List<TransactionId> victims) {
+        if (policy == DeadlockPolicy.NO_WAIT)
+            return false;
+        if (policy == DeadlockPolicy.DETECT)
+            return true;
+        // 请求排队后tid要等待的事务；升级请求排在队首，队列中的其他请求转而等待tid
+        List<TransactionId> blockers = conflictingHolders(state, tid, mode);
+        List<TransactionId> behind = new ArrayList<>();
+        for (Request r : state.waiters) {
+            if (!r.tid.equals(tid))
+                (upgrade ? behind : blockers).add(r.tid);
+        }
+        if (policy == DeadlockPolicy.WAIT_DIE) {
+            // 年轻的事务不能等待更老的事务
+            for (TransactionId other : blockers) {
+                if (other.getId() < tid.getId())
+                    return false;
+            }
+            for (TransactionId other : behind) {
+                if (other.getId() > tid.getId())
+                    victims.add(other);
+            }
+        } else {
+            // 更老的事务不等待年轻的事务，而是伤害它
+            for (TransactionId other : behind) {
+                if (other.getId() < tid.getId())
+                    return false;
+            }
+            for (TransactionId other : blockers) {
+                if (other.getId() > tid.getId())
+                    victims.add(other);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the transactions other than tid that hold a lock conflicting
+     *   with a lock in the given mode
+     */
+    private static List<TransactionId> conflictingHolders(LockState state, TransactionId tid, Mode mode) {
+        List<TransactionId> result = new ArrayList<>();
+        for (Map.Entry<TransactionId, Mode> e : state.holders.entrySet()) {
+            if (!e.getKey().equals(tid) && !mode.compatible(e.getValue()))
+                result.add(e.getKey());
+        }
+        return result;
+    }
+
+    /**
+     * @return true if tid may hold a lock in the given mode next to the
+     *   current holders
+     */
+    private static boolean grantable(LockState state, TransactionId tid, Mode mode) {
+        for (Map.Entry<TransactionId, Mode> e : state.holders.entrySet()) {
+            if (!e.getKey().equals(tid) && !mode.compatible(e.getValue()))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records that tid holds a lock in the given mode on resource.
+     */
+    private void grant(LockState state, TransactionId tid, Object resource, Mode mode) {
+        Mode old = state.holders.put(tid, mode);
+        held.compute(tid, (k, locks) -> {
+            if (locks == null)
+                locks = new HeldLocks();
+            locks.resources.add(resource);
+            if (resource instanceof TableKey) {
+                locks.tables.put(((TableKey) resource).tableId, mode);
+            } else {
+                int[] c = locks.pageCounts.computeIfAbsent(((PageId) resource).getTableId(), t -> new int[2]);
+                if (old == null)
+                    c[0]++;
+                if (mode == Mode.X)
+                    c[1]++;
+            }
+            return locks;
+        });
+    }
+
+    /**
+     * Grants the locks of the waiters at the head of the queue of resource
+     * that no longer conflict, in queue order, and wakes them. The latch of
+     * the stripe must be held.
+     */
+    private void grantWaiters(Stripe stripe, Object resource, LockState state) {
+        while (!state.waiters.isEmpty()) {
+            Request head = state.waiters.peekFirst();
+            if (!grantable(state, head.tid, head.mode))
+                break;
+            state.waiters.pollFirst();
+            stopWaiting(head);
+            grant(state, head.tid, resource, head.mode);
+            head.granted = true;
+            head.ready.signal();
+        }
+        if (state.holders.isEmpty() && state.waiters.isEmpty())
+            stripe.locks.remove(resource);
+    }
+
+    /**
+     * Takes all waiting requests of tid out of their queues and wakes their
+     * threads, which then fail. No stripe latch may be held.
+     */
+    private void abortWaiting(TransactionId tid) {
+        Set<Request> requests = waiting.get(tid);
+        if (requests == null)
+            return;
+        for (Request request : new ArrayList<>(requests)) {
+            request.stripe.latch.lock();
+            try {
+                // 拿到latch之前请求可能已经获得了锁
+                if (!request.granted && !request.aborted) {
+                    withdraw(request);
+                    request.ready.signal();
+                }
+            } finally {
+                request.stripe.latch.unlock();
+            }
+        }
+    }
+
+    /**
+     * Takes request out of its queue and marks it as failed. The latch of
+     * its stripe must be held.
+     */
+    private void withdraw(Request request) {
+        LockState state = request.stripe.locks.get(request.resource);
+        state.waiters.remove(request);
+        stopWaiting(request);
+        request.aborted = true;
+        // 排在它后面的请求可能因此可以获得锁
+        grantWaiters(request.stripe, request.resource, state);
+    }
+
+    private void stopWaiting(Request request) {
+        waiting.computeIfPresent(request.tid, (k, requests) -> {
+            requests.remove(request);
+            return requests.isEmpty() ? null : requests;
+        });
+    }
+
+    /**
+     * @return the transactions that the waiting transaction tid waits for
+     */
+    private List<TransactionId> waitsFor(TransactionId tid) {
+        List<TransactionId> result = new ArrayList<>();
+        Set<Request> requests = waiting.get(tid);
+        if (requests == null)
+            return result;
+        for (Request request : new ArrayList<>(requests)) {
+            request.stripe.latch.lock();
+            try {
+                if (request.granted || request.aborted)
+                    continue;
+                LockState state = request.stripe.locks.get(request.resource);
+                result.addAll(conflictingHolders(state, tid, request.mode));
+                for (Request r : state.waiters) {
+                    if (r == request)
+                        break;
+                    if (!r.tid.equals(tid))
+                        result.add(r.tid);
+                }
+            } finally {
+                request.stripe.latch.unlock();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the transactions on a cycle of the wait-for graph through
+     *   start, or null if there is none
+     */
+    private List<TransactionId> findCycle(TransactionId start) {
+        List<TransactionId> path = new ArrayList<>();
+        path.add(start);
+        return findCycle(start, start, path, new HashSet<>()) ? path : null;
+    }
+
+    private boolean findCycle(TransactionId start, TransactionId tid, List<TransactionId> path,
+                              Set<TransactionId> visited) {
+        for (TransactionId next : waitsFor(tid)) {
+            if (next.equals(start))
+                return true;
+            if (!visited.add(next))
+                continue;
+            path.add(next);
+            if (findCycle(start, next, path, visited))
+                return true;
+            path.remove(path.size() - 1);
+        }
+        return false;
+    }
+
+    private static TransactionId youngest(List<TransactionId> cycle) {
+        TransactionId victim = cycle.get(0);
+        for (TransactionId tid : cycle) {
+            if (tid.getId() > victim.getId())
+                victim = tid;
+        }
+        return victim;
+    }
+
+    /**
+     * Releases the lock of tid on pid, if it has one, and grants the locks
+     * that become free to the waiters. A table lock that covers the page is
+     * not released.
+     */
+    public void releasePage(TransactionId tid, PageId pid) {
+        release(tid, pid);
+    }
+
+    private void release(TransactionId tid, Object resource) {
+        Stripe stripe = stripeFor(resource);
+        stripe.latch.lock();
+        try {
+            LockState state = stripe.locks.get(resource);
+            Mode mode;
+            if (state == null || (mode = state.holders.remove(tid)) == null)
+                return;
+            held.computeIfPresent(tid, (k, locks) -> {
+                locks.resources.remove(resource);
+                if (resource instanceof TableKey) {
+                    locks.tables.remove(((TableKey) resource).tableId);
+                } else {
+                    int[] c = locks.pageCounts.get(((PageId) resource).getTableId());
+                    c[0]--;
+                    if (mode == Mode.X)
+                        c[1]--;
+                }
+                return locks;
+            });
+            grantWaiters(stripe, resource, state);
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /**
+     * Releases all locks held by tid, which is done. Only the pages and
+     * tables tid holds locks on are visited.
+     */
+    public void releasePagesByTid(TransactionId tid) {
+        HeldLocks locks;
+        // 释放期间仍在等待的请求可能获得新的锁，直到索引中不再有tid
+        while ((locks = held.remove(tid)) != null) {
+            for (Object resource : locks.resources) {
+                Stripe stripe = stripeFor(resource);
+                stripe.latch.lock();
+                try {
+                    LockState state = stripe.locks.get(resource);
+                    if (state != null && state.holders.remove(tid) != null)
+                        grantWaiters(stripe, resource, state);
+                } finally {
+                    stripe.latch.unlock();
+                }
+            }
+        }
+        wounded.remove(tid);
+    }
+}
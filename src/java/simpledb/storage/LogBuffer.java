@@ -0,0 +1,115 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * LogBuffer serializes log records into a direct ByteBuffer and appends
+ * them to the log segments in large writes, instead of one small write per
+ * field of every record.
+ * <p>
+ * The buffer keeps its own count of the LSN of the next byte, so a record's
+ * LSN is known as soon as it is buffered, whether or not it has been
+ * written out yet, and no file pointer is involved. Records may
+ * be larger than the buffer; the buffer is written out whenever it fills up.
+ * <p>
+ * Values are encoded like {@link java.io.DataOutput} encodes them, so the
+ * log can be read back with a {@link LogReader} once it is flushed.
+ * LogBuffer is not thread safe; LogFile only uses it under its own lock.
+ */
+class LogBuffer {
+
+    private final ByteBuffer buffer;
+    private LogSegments segments;
+    /* 缓冲区第一个字节的LSN */
+    private long start;
+
+    LogBuffer(int capacity) {
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Appends to segments from position on, dropping whatever was buffered
+     * and not flushed.
+     */
+    void open(LogSegments segments, long position) {
+        this.segments = segments;
+        this.start = position;
+        buffer.clear();
+    }
+
+    /**
+     * @return the LSN of the next byte appended
+     */
+    long position() {
+        return start + buffer.position();
+    }
+
+    void writeInt(int v) throws IOException {
+        ensure(Integer.BYTES);
+        buffer.putInt(v);
+    }
+
+    void writeLong(long v) throws IOException {
+        ensure(Long.BYTES);
+        buffer.putLong(v);
+    }
+
+    void write(byte[] data) throws IOException {
+        int off = 0;
+        while (off < data.length) {
+            if (!buffer.hasRemaining())
+                flush();
+            int n = Math.min(buffer.remaining(), data.length - off);
+            buffer.put(data, off, n);
+            off += n;
+        }
+    }
+
+    /**
+     * Writes s in the modified UTF-8 encoding of DataOutput.writeUTF, so that
+     * LogReader.readUTF can read it.
+     */
+    void writeUTF(String s) throws IOException {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            length += (c >= 0x0001 && c <= 0x007f) ? 1 : (c > 0x07ff ? 3 : 2);
+        }
+        if (length > 0xffff)
+            throw new UTFDataFormatException("encoded string too long: " + length + " bytes");
+        ensure(Short.BYTES);
+        buffer.putShort((short) length);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            ensure(3);
+            if (c >= 0x0001 && c <= 0x007f) {
+                buffer.put((byte) c);
+            } else if (c > 0x07ff) {
+                buffer.put((byte) (0xe0 | ((c >> 12) & 0x0f)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            } else {
+                buffer.put((byte) (0xc0 | ((c >> 6) & 0x1f)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    /**
+     * Writes everything buffered to the segments. Does not force it to disk.
+     */
+    void flush() throws IOException {
+        buffer.flip();
+        int length = buffer.remaining();
+        segments.write(buffer, start);
+        start += length;
+        buffer.clear();
+    }
+
+    private void ensure(int n) throws IOException {
+        if (buffer.remaining() < n)
+            flush();
+    }
+}
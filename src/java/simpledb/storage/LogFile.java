@@ -6,7 +6,9 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.lang.reflect.*;
 
 /*
@@ -39,24 +41,37 @@ must not be declared synchronized and must begin with a block like:
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is stored in segment files of a fixed size next to a small
+manifest, the file the LogFile is given (see {@link LogSegments}).  The
+manifest holds the segment size, the log sequence number (LSN) of the
+last written checkpoint, or -1 if there are no checkpoints, and the LSN
+of the first record still in the log.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The LSN of a byte is its position in the log as a whole, counting
+from the first byte ever written; it is also what locates the byte's
+segment.  Truncating the log deletes the segments before the first
+record still needed and nothing else, so the LSN of a record never
+changes and LSNs are never reused.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> All data in the segments consists of log records.  Log records are
+variable length and may span segments.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record begins with an integer type, a long integer
+transaction id, and the LSN of the previous record of the same
+transaction, or -1 for a BEGIN record and for records of no transaction.
+These LSNs chain the records of every transaction backwards, so that
+rollback and undo read a transaction's own records only, however much
+other transactions have logged in between.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> Each log record ends with a long integer, the LSN at which the
+record began.
+
+<li> There are seven record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+CHECKPOINT, and FLUSH
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -65,18 +80,88 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li>DELTA RECORDS describe the same change as an UPDATE record, but
+only hold the page class name, the page id, and a {@link PageDelta}
+against the previous record of the same page: the byte ranges that
+changed, with their old and new contents.  The log writes an UPDATE
+record the first time it sees a page, and DELTA records after that for as
+long as it remembers the page's last logged image.  It remembers a bounded
+number of images.  Before it forgets the image of a page that a running
+transaction logged last, it logs that image as an UPDATE record of the
+transaction with equal before and after images, so that rollback and
+recovery rebuild the page from the transaction's own records instead of
+keeping it in memory.
+
+<li>The previous image of a DELTA record is whatever the log last wrote
+for the page, whichever transaction wrote it.  That is why rollback
+logs DELTA records (compensation records) for the pages it restores,
+and why recovery repeats history rather than redoing committed
+transactions only.
+
+<li>FLUSH records consist of a page id and the LSN of the version of the
+page that was written to disk: every UPDATE and DELTA record of the page
+up to that LSN is on disk.  Pages carry their LSN in memory only (see
+{@link Page#getLSN()}), so the log is where recovery finds the LSN of a
+page on disk.  The log keeps the dirty page table up to date as it
+appends records, for the next checkpoint.  The buffer pool writes a page only after the log is
+forced to disk up to the page's LSN.  A written page may still sit in the
+operating system's cache, so its FLUSH record waits for the next
+checkpoint, which syncs the data files written since the last one and only
+then appends their FLUSH records.  FLUSH records have no transaction; they are not
+counted by {@link #getTotalRecords()}.
+
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed by
+the dirty page table.  The format of the record is an integer count of
+the number of transactions, as well as a long integer transaction id,
+the LSN of its first record, and the LSN of its last record for each
+active transaction; then an
+integer count of dirty pages, and for each a page id, the LSN of its
+first record since it was last written (recLSN), and the LSN of its last
+record.  Checkpoints are fuzzy: they write no pages, so they only hold
+the log's own lock for as long as it takes to append the record.
 
 </ul>
+
+<p> Recovery works in the three passes of ARIES.  Analysis reads the log
+from the last checkpoint on and builds the transaction table, the
+transactions that neither committed nor aborted, and the dirty page
+table, the pages that may be older on disk than in the log, with the
+LSN of the first record that may be missing (recLSN), starting from
+the tables saved in the checkpoint.  A page leaves
+the dirty page table when a FLUSH record shows it was written after its
+last change; since FLUSH records are only appended once the data file is
+synced, a write that was lost from the operating system's cache never
+counts.  Redo repeats history from the smallest recLSN on, skipping
+records of pages that are not in the dirty page table, that come before
+the page's recLSN, or that the page's on-disk LSN already covers; only
+the pages redone are held in memory.  Undo follows the record chains of
+the losers backwards from their last records, always taking the record
+with the largest LSN next, and undoes their changes.  It logs a compensating DELTA record for every page it
+undoes and an ABORT record for every loser, so that a second crash does
+not undo them again.
+
+<p> Records are serialized into an in-memory {@link LogBuffer} and
+appended to the segments in large writes when the buffer fills up, when
+the log is forced, and before the log is read back. The LSN of a record
+is counted by the buffer, whether or not the record has been written out.
+
+<p> Commits are made durable by group commit: a committing transaction
+appends its COMMIT record and then waits, outside the log's lock, until
+the log is forced past it. The first waiter becomes the leader, forces
+the log once for every commit appended so far, and releases the others.
+The leader can be told to wait a little for more commits to join its
+group, see {@link #setGroupCommitSize(int)} and
+{@link #setGroupCommitWait(long)}. The buffer pool commits through
+{@link #appendCommit(TransactionId)} and {@link #awaitDurable(long)}: it
+appends the COMMIT record while it publishes the transaction's pages,
+and only releases the transaction's locks and makes its changes visible
+to snapshots once the record is durable.
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final LogSegments segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -84,16 +169,121 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int FLUSH_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
+    /* 事务的第一条记录和不属于事务的记录的prevLSN */
+    static final long NO_PREV_RECORD = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    /* 新日志的段大小；已有的日志用清单中记的 */
+    static final int DEFAULT_SEGMENT_SIZE = 1 << 22;
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
 
     long currentOffset = -1;//protected by this
+    /* 日志记录先写入缓冲区，攒成大块再写文件；由this保护 */
+    static final int LOG_BUFFER_SIZE = 1 << 17;
+    static final int UNDO_READ_SIZE = 1 << 12;
+    private final LogBuffer buffer = new LogBuffer(LOG_BUFFER_SIZE);
+    /* 在此之前开始的记录都已写到日志段并刷盘，写页之前不用再刷日志 */
+    private volatile long durableLSN = 0;
+    /* 已写盘、还没记FLUSH记录的页 -> 写盘的版本的LSN；数据文件可能还没刷盘，
+    *  检查点把文件刷盘后再补记。不持有日志的锁也能加入 */
+    private final Map<PageId, Long> flushedPages = new ConcurrentHashMap<>();
+    /* 脏页表：记了日志、还没写盘的页，写进检查点，恢复时从这里开始分析；由this保护 */
+    private final Map<PageId, DirtyPage> dirtyPageTable = new HashMap<>();
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
+    /* 每个未结束事务最后一条记录的LSN，下一条记录的prevLSN；由this保护 */
+    final Map<Long,Long> tidToLastLogRecord = new HashMap<>();
+
+    /* 每页最后一次记入日志的内容，新的修改只记与它的差异；按访问顺序淘汰，最多记loggedImagePages页；
+    *  由this保护 */
+    static final int LOGGED_IMAGE_PAGES = 1024;
+    private int loggedImagePages = LOGGED_IMAGE_PAGES;
+    private final LinkedHashMap<PageId, LoggedImage> loggedImages = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static class LoggedImage {
+        final long tid;
+        final String pageClassName;
+        final byte[] data;
+
+        LoggedImage(long tid, String pageClassName, byte[] data) {
+            this.tid = tid;
+            this.pageClassName = pageClassName;
+            this.data = data;
+        }
+    }
+
+    /* 一页自上次写盘后第一条和最后一条记录的LSN */
+    private static class DirtyPage {
+        final long recLSN;
+        long lastLSN;
+
+        DirtyPage(long recLSN) {
+            this.recLSN = recLSN;
+            this.lastLSN = recLSN;
+        }
+    }
+
+    /* 日志中的一条UPDATE或DELTA记录 */
+    private static class LoggedUpdate {
+        final long tid;
+        final String pageClassName;
+        final PageId pid;
+        /* UPDATE记录的前后镜像 */
+        final Page before;
+        final Page after;
+        /* DELTA记录与该页上一条记录的差异 */
+        final PageDelta delta;
+
+        LoggedUpdate(long tid, Page before, Page after) {
+            this.tid = tid;
+            this.pageClassName = after.getClass().getName();
+            this.pid = after.getId();
+            this.before = before;
+            this.after = after;
+            this.delta = null;
+        }
+
+        LoggedUpdate(long tid, String pageClassName, PageId pid, PageDelta delta) {
+            this.tid = tid;
+            this.pageClassName = pageClassName;
+            this.pid = pid;
+            this.before = null;
+            this.after = null;
+            this.delta = delta;
+        }
+
+        /* 把页面数据从这条记录之前的内容改成之后的内容 */
+        byte[] redo(byte[] data) {
+            if (delta == null)
+                return after.getPageData();
+            delta.redo(data);
+            return data;
+        }
+
+        /* 把页面数据从这条记录之后的内容改回之前的内容 */
+        byte[] undo(byte[] data) {
+            if (delta == null)
+                return before.getPageData();
+            delta.undo(data);
+            return data;
+        }
+    }
+
+    /* 组提交：appendedCommits是已写入日志的COMMIT记录个数（在this下修改），
+    *  durableCommits是其中已刷盘的个数，flushing表示是否已有leader在刷盘，这两个由groupCommit保护 */
+    private volatile long appendedCommits = 0;
+    private final Object groupCommit = new Object();
+    private long durableCommits = 0;
+    private boolean flushing = false;
+    /* leader刷盘前最多等多少个提交凑成一组，以及最多等多久（微秒）；默认不等待 */
+    private volatile int groupCommitSize = 16;
+    private volatile long groupCommitWaitMicros = 0;
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -104,11 +294,14 @@ public class LogFile {
         do it, while if someone starts adding log file entries, then first
         throw out the initial log file contents.
 
-        @param f The log file's name
+        @param f The log's manifest file; the log segments are kept
+        next to it, named after it
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f);
+        segments.load();
+        buffer.open(segments, segments.end());
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,19 +320,100 @@ public class LogFile {
     // the log.
     void preAppend() throws IOException {
         totalRecords++;
+        startAppend();
+    }
+
+    // FLUSH records are not counted in totalRecords
+    private void startAppend() throws IOException {
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.create(segmentSize);
+            buffer.open(segments, 0);
+            loggedImages.clear();
+            flushedPages.clear();
+            dirtyPageTable.clear();
+            durableLSN = 0;
+            currentOffset = buffer.position();
         }
     }
 
+    /* 取出已写盘的页，把它们所在的数据文件刷盘；不持有日志的锁，刷盘期间其他事务照常写日志 */
+    private Map<PageId, Long> syncFlushedPages() throws IOException {
+        Map<PageId, Long> synced = new HashMap<>();
+        for (Map.Entry<PageId, Long> entry : flushedPages.entrySet()) {
+            // 取出之后该页又写了盘的，留给下一个检查点
+            if (flushedPages.remove(entry.getKey(), entry.getValue()))
+                synced.put(entry.getKey(), entry.getValue());
+        }
+        Set<Integer> tables = new HashSet<>();
+        for (PageId pid : synced.keySet())
+            tables.add(pid.getTableId());
+        for (int table : tables)
+            Database.getCatalog().getDatabaseFile(table).sync();
+        return synced;
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /**
+     * Sets the size in bytes of the segment files of the log. The size
+     * applies to logs started from now on; a log being recovered keeps the
+     * size it was written with.
+     */
+    public synchronized void setSegmentSize(int bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("segment size must be positive: " + bytes);
+        this.segmentSize = bytes;
+    }
+
+    public synchronized int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Sets how many pages the log remembers the last logged image of, to
+     * log later changes of them as DELTA records.
+     */
+    public synchronized void setLoggedImagePages(int pages) {
+        if (pages < 1)
+            throw new IllegalArgumentException("logged image pages must be positive: " + pages);
+        this.loggedImagePages = pages;
+    }
+
+    public synchronized int getLoggedImagePages() {
+        return loggedImagePages;
+    }
+
+    /**
+     * Sets how many commits the group commit leader waits for before it
+     * forces the log, if a wait is set with {@link #setGroupCommitWait(long)}.
+     */
+    public void setGroupCommitSize(int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("group commit size must be positive: " + size);
+        this.groupCommitSize = size;
+    }
+
+    public int getGroupCommitSize() {
+        return groupCommitSize;
+    }
+
+    /**
+     * Sets how long, in microseconds, the group commit leader waits for
+     * its group to fill up before it forces the log. The default, 0, forces
+     * at once: commits that arrive during a force still share the next one.
+     */
+    public void setGroupCommitWait(long micros) {
+        if (micros < 0)
+            throw new IllegalArgumentException("group commit wait must not be negative: " + micros);
+        this.groupCommitWaitMicros = micros;
+    }
+
+    public long getGroupCommitWait() {
+        return groupCommitWaitMicros;
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -160,12 +434,12 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                writeRecordHeader(ABORT_RECORD, tid.getId());
+                buffer.writeLong(currentOffset);
+                currentOffset = buffer.position();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLogRecord.remove(tid.getId());
             }
         }
     }
@@ -175,17 +449,85 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
+    public void logCommit(TransactionId tid) throws IOException {
+        awaitDurable(appendCommit(tid));
+    }
+
+    /**
+     * Appends a commit record for the specified tid without forcing the log;
+     * the commit is durable once {@link #awaitDurable(long)} returns.
+     *
+     * @return the number of the commit record, to pass to awaitDurable
+     */
+    synchronized long appendCommit(TransactionId tid) throws IOException {
         preAppend();
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
+        writeRecordHeader(COMMIT_RECORD, tid.getId());
+        buffer.writeLong(currentOffset);
+        currentOffset = buffer.position();
         tidToFirstLogRecord.remove(tid.getId());
+        tidToLastLogRecord.remove(tid.getId());
+        return ++appendedCommits;
+    }
+
+    /**
+     * 等待第commit个COMMIT记录刷盘。没有leader时自己当leader：按配置等其他提交凑成一组，
+     * 然后不持有任何锁刷一次盘，刷盘期间其他事务可以继续写日志、排队等下一组
+     */
+    void awaitDurable(long commit) throws IOException {
+        synchronized (groupCommit) {
+            // leader可能在等待凑组，告诉它又来了一个提交
+            groupCommit.notifyAll();
+            while (durableCommits < commit && flushing) {
+                waitUninterruptibly(groupCommit, 0);
+            }
+            if (durableCommits >= commit) {
+                return;
+            }
+            flushing = true;
+            long deadline = System.nanoTime() + groupCommitWaitMicros * 1000;
+            while (appendedCommits - durableCommits < groupCommitSize) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    break;
+                waitUninterruptibly(groupCommit, remaining);
+            }
+        }
+
+        long target = 0;
+        boolean forced = false;
+        try {
+            FileChannel channel;
+            synchronized (this) {
+                flushBuffer();
+                target = appendedCommits;
+                // 写满的段已经刷过盘，只需刷最后一段
+                channel = segments.current();
+            }
+            if (channel != null)
+                channel.force(true);
+            forced = true;
+        } finally {
+            synchronized (groupCommit) {
+                if (forced)
+                    durableCommits = Math.max(durableCommits, target);
+                flushing = false;
+                groupCommit.notifyAll();
+            }
+        }
+    }
+
+    private static void waitUninterruptibly(Object monitor, long nanos) {
+        try {
+            if (nanos > 0)
+                monitor.wait(nanos / 1000000, (int) (nanos % 1000000));
+            else
+                monitor.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -199,29 +541,242 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
-        /* update record conists of
-
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        Debug.log("WRITE, offset = " + currentOffset);
+        long lsn = currentOffset;
+        byte[] afterData = after.getPageData();
+        LoggedImage last = loggedImages.get(after.getId());
+        if (last != null) {
+            // 记过这一页，只记与上次记录的差异
+            appendDelta(tid.getId(), after.getClass().getName(), after.getId(),
+                    PageDelta.between(last.data, afterData));
+        } else {
+            /* update record conists of
+
+               record type
+               transaction id
+               LSN of the transaction's previous record
+               before page data (see writePageData)
+               after page data
+               start offset
+            */
+            writeRecordHeader(UPDATE_RECORD, tid.getId());
+
+            writePageData(buffer,before);
+            writePageData(buffer,after);
+            buffer.writeLong(currentOffset);
+            currentOffset = buffer.position();
+        }
+        rememberImage(after.getId(), tid.getId(), after.getClass().getName(), afterData);
+        noteUpdate(after.getId(), lsn);
+        after.setLSN(lsn);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
+    /* 写一条DELTA记录，格式同UPDATE记录的页头，之后是PageDelta；返回记录的LSN */
+    private long appendDelta(long tid, String pageClassName, PageId pid, PageDelta delta)
+        throws IOException {
+        long lsn = currentOffset;
+        writeRecordHeader(DELTA_RECORD, tid);
+        writeDeltaData(buffer, pageClassName, pid, delta);
+        buffer.writeLong(currentOffset);
+        currentOffset = buffer.position();
+        noteUpdate(pid, lsn);
+        return lsn;
+    }
+
+    /* 写记录头：类型、事务号、该事务上一条记录的LSN，这条记录成为事务的最后一条 */
+    private void writeRecordHeader(int type, long tid) throws IOException {
+        buffer.writeInt(type);
+        buffer.writeLong(tid);
+        Long prev = tid == -1 ? null : tidToLastLogRecord.put(tid, currentOffset);
+        buffer.writeLong(prev == null ? NO_PREV_RECORD : prev);
+    }
+
+    /* 页面记了一条修改记录，加入脏页表 */
+    private void noteUpdate(PageId pid, long lsn) {
+        DirtyPage dirty = dirtyPageTable.get(pid);
+        if (dirty == null)
+            dirtyPageTable.put(pid, new DirtyPage(lsn));
+        else
+            dirty.lastLSN = lsn;
+    }
+
+    void writeDeltaData(LogBuffer out, String pageClassName, PageId pid, PageDelta delta)
+        throws IOException {
+        out.writeUTF(pageClassName);
+        writePageId(out, pid);
+        delta.writeTo(out);
+    }
+
+    void writePageId(LogBuffer out, PageId pid) throws IOException {
+        out.writeUTF(pid.getClass().getName());
+        int[] pageInfo = pid.serialize();
+        out.writeInt(pageInfo.length);
+        for (int j : pageInfo) {
+            out.writeInt(j);
+        }
+    }
+
+    /* 写一条FLUSH记录：页号和写盘的那个版本的LSN */
+    private void appendFlush(PageId pid, long lsn) throws IOException {
+        writeRecordHeader(FLUSH_RECORD, -1); // no tid
+        writePageId(buffer, pid);
+        buffer.writeLong(lsn);
+        buffer.writeLong(currentOffset);
+        currentOffset = buffer.position();
+        // 最后一次修改之后写过盘，不再是脏页
+        DirtyPage dirty = dirtyPageTable.get(pid);
+        if (dirty != null && dirty.lastLSN <= lsn)
+            dirtyPageTable.remove(pid);
+    }
+
+    /**
+     * Writes the log out and forces it to disk at least up to the record
+     * with the given LSN. The buffer pool calls this before it writes a page
+     * to disk, with the LSN of the page, so that no change reaches the disk
+     * before its log record does, even if the machine crashes. Returns at
+     * once if that part of the log is on disk already.
+     */
+    public void flushTo(long lsn) throws IOException {
+        if (isDurable(lsn))
+            return;
+        synchronized (this) {
+            if (lsn >= durableLSN)
+                force();
+        }
+    }
+
+    /**
+     * @return whether the log is on disk up to the record with the given
+     *   LSN, so that {@link #flushTo(long)} returns without taking the log's
+     *   lock
+     */
+    public boolean isDurable(long lsn) {
+        return lsn < durableLSN;
+    }
+
+    /* 把缓冲区写到日志段，此前开始的记录都已写出，但不一定已刷盘 */
+    private void flushBuffer() throws IOException {
+        buffer.flush();
+    }
+
+    /**
+     * Notes that page was written to disk. The next checkpoint syncs the
+     * page's data file and then appends a FLUSH record with the page's LSN;
+     * until then the page stays in the dirty page table. This does not wait
+     * for the log's lock, so the buffer pool may call it with its latches
+     * held.
+     */
+    public void logFlush(Page page) {
+        if (page.getLSN() != Page.NO_LSN)
+            flushedPages.merge(page.getId(), page.getLSN(), Math::max);
+    }
+
+    /* 回滚和恢复直接写数据文件：先把日志刷盘，再写页；FLUSH记录同缓冲池写的页一样，
+    *  等检查点把数据文件刷盘后再记，恢复时才不会跳过还在操作系统缓存中的写 */
+    private void writeLoggedPage(Page page) throws IOException {
+        flushTo(page.getLSN());
+        Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+        logFlush(page);
+    }
+
+    /* 记下页面最后一次记入日志的内容，超出容量时淘汰最久未用的页；最后一次由未结束事务记录的页，
+    *  淘汰前把内容记成该事务的一条UPDATE记录，回滚和恢复从这条记录重建页面 */
+    private void rememberImage(PageId pid, long tid, String pageClassName, byte[] data) throws IOException {
+        loggedImages.put(pid, new LoggedImage(tid, pageClassName, data));
+        Iterator<Map.Entry<PageId, LoggedImage>> it = loggedImages.entrySet().iterator();
+        while (loggedImages.size() > loggedImagePages) {
+            Map.Entry<PageId, LoggedImage> eldest = it.next();
+            it.remove();
+            LoggedImage image = eldest.getValue();
+            if (tidToFirstLogRecord.containsKey(image.tid))
+                appendImage(image.tid, image.pageClassName, eldest.getKey(), image.data);
+        }
+    }
+
+    /* 写一条前后镜像都是data的UPDATE记录：页面没有改变，只是记下它在日志中的内容 */
+    private void appendImage(long tid, String pageClassName, PageId pid, byte[] data) throws IOException {
+        preAppend();
+        long lsn = currentOffset;
+        writeRecordHeader(UPDATE_RECORD, tid);
+        writePageData(buffer, pageClassName, pid, data);
+        writePageData(buffer, pageClassName, pid, data);
+        buffer.writeLong(currentOffset);
+        currentOffset = buffer.position();
+        noteUpdate(pid, lsn);
+    }
+
+    /*
+     * 页面在日志中最新的内容，updates是tid对该页的记录（从新到旧）：记得就用记下的，否则从tid对该页
+     * 最新的UPDATE记录的after image开始重做它之后的记录；tid持有该页的写锁，这期间只有它记录这一页。
+     * 都没有时就是磁盘上的（写盘之前一定先记了日志）
+     */
+    private byte[] latestImage(PageId pid, List<LoggedUpdate> updates) {
+        LoggedImage last = loggedImages.get(pid);
+        if (last != null)
+            return last.data.clone();
+        for (int i = 0; i < updates.size(); i++) {
+            if (updates.get(i).delta == null) {
+                byte[] data = updates.get(i).after.getPageData();
+                for (int j = i - 1; j >= 0; j--)
+                    data = updates.get(j).redo(data);
+                return data;
+            }
+        }
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid).getPageData();
+    }
+
+    /* 读出一条UPDATE或DELTA记录，type和tid已经读过 */
+    private LoggedUpdate readUpdate(DataInput in, int type, long tid) throws IOException {
+        if (type == UPDATE_RECORD) {
+            Page before = readPageData(in);
+            Page after = readPageData(in);
+            return new LoggedUpdate(tid, before, after);
+        }
+        String pageClassName = in.readUTF();
+        PageId pid = readPageId(in, in.readUTF());
+        return new LoggedUpdate(tid, pageClassName, pid, PageDelta.readFrom(in));
+    }
+
+    /* 把tid对一页的修改（从新到旧）从current倒推回去，得到它修改之前的内容 */
+    private byte[] undoAll(List<LoggedUpdate> updates, byte[] current) {
+        byte[] data = current;
+        for (LoggedUpdate update : updates)
+            data = update.undo(data);
+        return data;
+    }
+
+    /* 从tid的最后一条记录沿prevLSN往回读，按页收集tid的UPDATE和DELTA记录，从新到旧；
+    *  只读tid自己的记录，与其他事务写了多少日志无关 */
+    private Map<PageId, List<LoggedUpdate>> updatesOf(long tid) throws IOException {
+        Map<PageId, List<LoggedUpdate>> updates = new LinkedHashMap<>();
+        Long last = tidToLastLogRecord.get(tid);
+        if (last == null)
+            return updates;
+        // 先把缓冲区写到日志段再读
+        flushBuffer();
+        // 每次只读一条记录，不用大块读入
+        LogReader in = new LogReader(segments, last, UNDO_READ_SIZE);
+        for (long lsn = last; lsn != NO_PREV_RECORD; ) {
+            in.seek(lsn);
+            int type = in.readInt();
+            in.readLong();
+            lsn = in.readLong();
+            if (type == UPDATE_RECORD || type == DELTA_RECORD) {
+                LoggedUpdate update = readUpdate(in, type, tid);
+                updates.computeIfAbsent(update.pid, k -> new ArrayList<>()).add(update);
+            }
+        }
+        return updates;
+    }
+
+    void writePageData(LogBuffer out, Page p) throws IOException{
+        writePageData(out, p.getClass().getName(), p.getId(), p.getPageData());
+    }
+
+    void writePageData(LogBuffer out, String pageClassName, PageId pid, byte[] pageData) throws IOException{
         int[] pageInfo = pid.serialize();
 
         //page data is:
@@ -232,60 +787,64 @@ public class LogFile {
         // page class bytes
         // page class data
 
-        String pageClassName = p.getClass().getName();
         String idClassName = pid.getClass().getName();
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        out.writeUTF(pageClassName);
+        out.writeUTF(idClassName);
 
-        raf.writeInt(pageInfo.length);
+        out.writeInt(pageInfo.length);
         for (int j : pageInfo) {
-            raf.writeInt(j);
+            out.writeInt(j);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
+        out.writeInt(pageData.length);
+        out.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
+    Page readPageData(DataInput raf) throws IOException {
         String pageClassName = raf.readUTF();
         String idClassName = raf.readUTF();
 
+        PageId pid = readPageId(raf, idClassName);
+        int pageSize = raf.readInt();
+
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData); //read before image
+
+        //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+        return makePage(pageClassName, pid, pageData);
+    }
+
+    PageId readPageId(DataInput raf, String idClassName) throws IOException {
         try {
             Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
             int numIdArgs = raf.readInt();
             Object[] idArgs = new Object[numIdArgs];
             for (int i = 0; i<numIdArgs;i++) {
                 idArgs[i] = raf.readInt();
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            return (PageId)idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
+            e.printStackTrace();
+            throw new IOException();
+        }
+    }
 
+    Page makePage(String pageClassName, PageId pid, byte[] pageData) throws IOException {
+        try {
+            Class<?> pageClass = Class.forName(pageClassName);
             Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+            return (Page)pageConsts[0].newInstance(pageArgs);
         } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
             e.printStackTrace();
             throw new IOException();
         }
-        return newPage;
-
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -300,51 +859,92 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        writeRecordHeader(BEGIN_RECORD, tid.getId());
+        buffer.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = buffer.position();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /**
+     * @return true if tid has begun and has not committed or aborted yet, as
+     *   far as the log knows
+     */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
+    /**
+     * Returns the page as it was before the first UPDATE or DELTA record of
+     * an active transaction for it, which is the page as last committed
+     * before the transaction changed it.
+     *
+     * @return the before image, or null if the transaction has not logged
+     *   an update of the page
+     */
+    public synchronized Page firstBeforeImage(TransactionId tid, PageId pid) throws IOException {
+        if (!tidToFirstLogRecord.containsKey(tid.getId()))
+            return null;
+        List<LoggedUpdate> updates = updatesOf(tid.getId()).get(pid);
+        if (updates == null)
+            return null;
+        LoggedUpdate first = updates.get(updates.size() - 1);
+        if (first.delta == null)
+            return first.before;
+        return makePage(first.pageClassName, pid, undoAll(updates, latestImage(pid, updates)));
+    }
+
+    /** Checkpoint the log and write a checkpoint record.
+        The checkpoint is fuzzy: it records the active transactions and the
+        dirty page table instead of flushing the buffer pool, so it does not
+        stop transactions that use the pool.  Pages reach the disk through
+        eviction, commit, or the buffer pool's background writer; the
+        checkpoint syncs the data files they were written to, and only then
+        do they leave the dirty page table, so the log is never truncated
+        past a change that is not on disk yet. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        Map<PageId, Long> synced = syncFlushedPages();
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + currentOffset);
+            preAppend();
+            // 先补记已刷盘的页，脏页表才是最新的
+            for (Map.Entry<PageId, Long> entry : synced.entrySet())
+                appendFlush(entry.getKey(), entry.getValue());
+            long startCpOffset, endCpOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            startCpOffset = currentOffset;
+            writeRecordHeader(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            buffer.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                buffer.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                buffer.writeLong(tidToFirstLogRecord.get(key));
+                // 恢复时从最后一条记录开始沿prevLSN撤销
+                buffer.writeLong(tidToLastLogRecord.get(key));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            buffer.writeInt(dirtyPageTable.size());
+            for (Map.Entry<PageId, DirtyPage> entry : dirtyPageTable.entrySet()) {
+                writePageId(buffer, entry.getKey());
+                buffer.writeLong(entry.getValue().recLSN);
+                buffer.writeLong(entry.getValue().lastLSN);
             }
+
+            //once the CP is written, make sure the CP location in the
+            // manifest is updated
+            // 检查点记录刷盘之后，清单才能指向它
+            buffer.writeLong(currentOffset);
+            currentOffset = buffer.position();
+            force();
+            segments.setCheckpoint(startCpOffset);
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
@@ -354,95 +954,50 @@ public class LogFile {
         consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        flushBuffer();
+        long cpLoc = segments.checkpoint();
 
+        // 没有检查点时没有可以截掉的
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return;
         long minLogRecord = cpLoc;
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
+        LogReader in = new LogReader(segments, cpLoc, LOG_BUFFER_SIZE);
+        int cpType = in.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = in.readLong();
+        in.readLong(); // no previous record
 
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+        int numOutstanding = in.readInt();
 
-            } catch (EOFException e) {
-                break;
+        for (int i = 0; i < numOutstanding; i++) {
+            @SuppressWarnings("unused")
+            long tid = in.readLong();
+            long firstLogRecord = in.readLong();
+            in.readLong(); // last record
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        // 脏页重做要从recLSN开始
+        int numDirty = in.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            readPageId(in, in.readUTF());
+            long recLSN = in.readLong();
+            in.readLong();
+            minLogRecord = Math.min(minLogRecord, recLSN);
+        }
 
-        currentOffset = raf.getFilePointer();
+        // we can truncate everything before minLogRecord
+        // LSN不随截断改变，只需删掉整段都在minLogRecord之前的段，不用搬动记录
+        Debug.log("TRUNCATING LOG;  WAS " + (segments.end() - segments.start()) + " BYTES ; NEW START : "
+                + minLogRecord + " NEW LENGTH: " + (segments.end() - minLogRecord));
+        segments.truncate(minLogRecord);
         //print();
     }
 
@@ -464,42 +1019,25 @@ public class LogFile {
                 // some code goes here
                 if(!tidToFirstLogRecord.containsKey(tid.getId()))
                     return;
-                // 获取第一个日志记录偏移
-                long startOffset = tidToFirstLogRecord.get(tid.getId());
-                raf.seek(startOffset);
-                Set<PageId> rollbackPage = new HashSet<>();
-                while (true){
-                    try {
-                        int type = raf.readInt(); // log record type
-                        long logTid = raf.readLong(); // transaction Id
-
-                        if (type == UPDATE_RECORD ){// 只针对update_record 进行rollback
-                            Page beforePage = readPageData(raf);
-                            Page afterPage = readPageData(raf);
-                            if (!rollbackPage.contains(beforePage.getId()) && logTid == tid.getId()){// 写回before_record
-                                rollbackPage.add(beforePage.getId());
-                                DbFile tableFile = Database.getCatalog().getDatabaseFile(beforePage.getId().getTableId());
-                                tableFile.writePage(beforePage);
-                                // 从缓冲池删掉
-                                Database.getBufferPool().discardPage(afterPage.getId());
-                            }
-                        } else if (type == CHECKPOINT_RECORD) {
-                            int keySize = raf.readInt();
-                            while (keySize-- > 0) {
-                                raf.readLong();
-                                raf.readLong();
-                            }
-                        }
-
-
-                        raf.readLong();
-
-
-                    } catch (IOException e) {
-                        // end of log file
-                        break;
-                    }
-
+                // 沿事务自己的记录链往回收集它的修改
+                Map<PageId, List<LoggedUpdate>> updates = updatesOf(tid.getId());
+                for (Map.Entry<PageId, List<LoggedUpdate>> entry : updates.entrySet()) {
+                    // 从日志中该页最新的内容倒推出事务修改之前的内容
+                    PageId pid = entry.getKey();
+                    String pageClassName = entry.getValue().get(0).pageClassName;
+                    byte[] latest = latestImage(pid, entry.getValue());
+                    byte[] restored = undoAll(entry.getValue(), latest.clone());
+                    // 补偿记录：之后的DELTA记录以回滚后的内容为准，恢复时重做它；先记日志再写页
+                    preAppend();
+                    long lsn = appendDelta(tid.getId(), pageClassName, pid,
+                            PageDelta.between(latest, restored));
+                    Page beforePage = makePage(pageClassName, pid, restored);
+                    beforePage.setLSN(lsn);
+                    writeLoggedPage(beforePage);
+                    BufferPool.noteRestored(beforePage);
+                    Database.getBufferPool().discardPage(pid);
+                    // 忘掉这一页，下一次修改记UPDATE记录；不在这里淘汰其他页，它们的记录上面已经读出
+                    loggedImages.remove(pid);
                 }
 //                raf.seek(tidToFirstLogRecord.get(tid.getId()));
 //                Set<PageId> rollbackPage = new HashSet<>();
@@ -543,10 +1081,14 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // 检查点不写页，先把缓冲池写盘，启动时就没有要重做的
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                segments.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -563,160 +1105,277 @@ public class LogFile {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
-                raf = new RandomAccessFile(logFile, "rw");
-                Map<Long, List<Page>> beforePage = new HashMap<>();
-                Map<Long, List<Page>> afterPage = new HashMap<>();
-                HashSet<Long> committed = new HashSet<>();
-                long recoverOffset = getRecoverOffset();
-                if(recoverOffset != -1L){
-                    raf.seek(recoverOffset);
+                loggedImages.clear();
+                flushedPages.clear();
+                dirtyPageTable.clear();
+                if (!segments.load()) {
+                    // 没有日志，从一个空日志开始
+                    segments.create(segmentSize);
+                    buffer.open(segments, 0);
+                    currentOffset = 0;
+                    durableLSN = 0;
+                    return;
                 }
-
-                while (true){
+                long logEnd = segments.end();
+                long checkpoint = segments.checkpoint();
+
+                // 分析：从检查点开始读日志，得到没有结束的事务（事务表：事务 -> 最后一条记录的LSN）
+                // 和磁盘上可能比日志旧的页（脏页表：页 -> recLSN，第一条可能没写盘的记录的LSN）
+                Map<Long, Long> transactions = new HashMap<>();
+                Map<PageId, Long> dirtyPages = new HashMap<>();
+                // 每页最后一条记录的LSN，以及FLUSH记录给出的磁盘上（已刷盘的）版本的LSN
+                Map<PageId, Long> lastUpdates = new HashMap<>();
+                Map<PageId, Long> diskOffsets = new HashMap<>();
+                // 顺序读的两遍经过LogReader成块读入
+                LogReader in = new LogReader(segments,
+                        checkpoint != NO_CHECKPOINT_ID ? checkpoint : segments.start(), LOG_BUFFER_SIZE);
+                while (in.position() < logEnd) {
+                    long offset = in.position();
                     try {
-                        int curType = raf.readInt();
-                        long curTid = raf.readLong();
-                        switch (curType){
+                        int type = in.readInt();
+                        long tid = in.readLong();
+                        in.readLong(); // prevLSN
+                        switch (type) {
+                            case BEGIN_RECORD:
+                                transactions.put(tid, offset);
+                                break;
 
                             case COMMIT_RECORD:
-                                committed.add(curTid);
+                            case ABORT_RECORD:
+                                // 中止的事务回滚时记了补偿记录，重做它们就撤销了
+                                transactions.remove(tid);
                                 break;
 
                             case CHECKPOINT_RECORD:
-                                int keySize = raf.readInt();
+                                // 事务表和脏页表从检查点中保存的开始
+                                int keySize = in.readInt();
                                 while (keySize-- > 0) {
-                                    raf.readLong();
-                                    raf.readLong();
+                                    long activeTid = in.readLong();
+                                    in.readLong(); // first record
+                                    transactions.put(activeTid, in.readLong());
+                                }
+                                int dirtySize = in.readInt();
+                                while (dirtySize-- > 0) {
+                                    PageId dirty = readPageId(in, in.readUTF());
+                                    dirtyPages.put(dirty, in.readLong());
+                                    lastUpdates.put(dirty, in.readLong());
                                 }
                                 break;
 
                             case UPDATE_RECORD:
-                                Page beforeImg = readPageData(raf);
-                                Page afterImg = readPageData(raf);
-                                List<Page> undoList = beforePage.getOrDefault(curTid,new ArrayList<>());
-                                List<Page> redoList = afterPage.getOrDefault(curTid,new ArrayList<>());
-                                undoList.add(beforeImg);
-                                redoList.add(afterImg);
-                                beforePage.put(curTid,undoList);
-                                afterPage.put(curTid,redoList);
+                            case DELTA_RECORD:
+                                PageId pid = readUpdate(in, type, tid).pid;
+                                transactions.put(tid, offset);
+                                dirtyPages.putIfAbsent(pid, offset);
+                                lastUpdates.put(pid, offset);
+                                break;
 
+                            case FLUSH_RECORD:
+                                PageId flushed = readPageId(in, in.readUTF());
+                                long diskOffset = in.readLong();
+                                diskOffsets.merge(flushed, diskOffset, Math::max);
+                                // 最后一次修改之后写过盘，磁盘上已是最新的
+                                if (lastUpdates.getOrDefault(flushed, -1L) <= diskOffset)
+                                    dirtyPages.remove(flushed);
+                                break;
                         }
-                        // 略过offset
-                        raf.readLong();
-                    }catch (EOFException e){
-                        break;
+                        in.readLong();
+                    } catch (EOFException e) {
+                        // 崩溃时没写完的最后一条记录，丢掉它
+                        logEnd = offset;
+                        segments.setEnd(logEnd);
                     }
-
                 }
-                // uncommited:利用before进行undo
-                for (long tid :beforePage.keySet()) {
-                    if (!committed.contains(tid)) {
-                        List<Page> pages = beforePage.get(tid);
-                        for (Page undo : pages) {
-                            Database.getCatalog().getDatabaseFile(undo.getId().getTableId()).writePage(undo);
+                // 恢复之后的日志接在原有日志后面
+                currentOffset = logEnd;
+                buffer.open(segments, currentOffset);
+                durableLSN = logEnd;
+
+                // 重做：从最小的recLSN开始重放脏页表中的页的修改，包括未提交事务的（repeat history）；
+                // 页的recLSN之前的记录、磁盘上已有的记录都跳过。只有重做的页放在内存中，最后一起写回
+                Map<PageId, byte[]> pages = new HashMap<>();
+                Map<PageId, String> pageClasses = new HashMap<>();
+                Map<PageId, Long> pageLSNs = new HashMap<>();
+                if (!dirtyPages.isEmpty()) {
+                    in = new LogReader(segments, Collections.min(dirtyPages.values()), LOG_BUFFER_SIZE);
+                    while (in.position() < logEnd) {
+                        long offset = in.position();
+                        int type = in.readInt();
+                        long tid = in.readLong();
+                        in.readLong(); // prevLSN
+                        if (type == UPDATE_RECORD || type == DELTA_RECORD) {
+                            LoggedUpdate update = readUpdate(in, type, tid);
+                            Long recOffset = dirtyPages.get(update.pid);
+                            if (recOffset != null && offset >= recOffset
+                                    && offset > diskOffsets.getOrDefault(update.pid, -1L)) {
+                                // UPDATE记录带着完整的after image，不用读磁盘
+                                byte[] data = update.delta == null ? null : recoveringPage(pages, update.pid);
+                                pages.put(update.pid, update.redo(data));
+                                pageClasses.put(update.pid, update.pageClassName);
+                                pageLSNs.put(update.pid, offset);
+                            }
+                        } else {
+                            skipRecord(in, type);
                         }
+                        in.readLong();
                     }
                 }
 
-                // commited:利用after进行redo
-                for (long tid : committed) {
-                    if (afterPage.containsKey(tid)) {
-                        List<Page> pages = afterPage.get(tid);
-                        for (Page redo : pages) {
-                            Database.getCatalog().getDatabaseFile(redo.getId().getTableId()).writePage(redo);
+                // 撤销：沿每个loser的prevLSN往回读它自己的记录，所有loser的记录按LSN从大到小撤销，
+                // 其他事务的记录不用读
+                Map<PageId, Long> undoneBy = new LinkedHashMap<>();
+                Map<PageId, byte[]> redone = new HashMap<>();
+                TreeMap<Long, Long> toUndo = new TreeMap<>();
+                for (Map.Entry<Long, Long> loser : transactions.entrySet())
+                    toUndo.put(loser.getValue(), loser.getKey());
+                // 往回读每次只读一条记录，不用大块读入
+                in = new LogReader(segments, logEnd, UNDO_READ_SIZE);
+                while (!toUndo.isEmpty()) {
+                    Map.Entry<Long, Long> next = toUndo.pollLastEntry();
+                    in.seek(next.getKey());
+                    int type = in.readInt();
+                    long tid = in.readLong();
+                    long prev = in.readLong();
+                    if (prev != NO_PREV_RECORD)
+                        toUndo.put(prev, tid);
+                    if (type == UPDATE_RECORD || type == DELTA_RECORD) {
+                        LoggedUpdate update = readUpdate(in, type, tid);
+                        byte[] data = recoveringPage(pages, update.pid);
+                        if (!undoneBy.containsKey(update.pid)) {
+                            undoneBy.put(update.pid, tid);
+                            redone.put(update.pid, data.clone());
+                            pageClasses.put(update.pid, update.pageClassName);
                         }
+                        pages.put(update.pid, update.undo(data));
                     }
                 }
 
+                // 为撤销的页记补偿记录、为loser记ABORT记录，之后再恢复时不会重复撤销；
+                // 这些记录接在loser的记录链上
+                tidToLastLogRecord.putAll(transactions);
+                for (Map.Entry<PageId, Long> entry : undoneBy.entrySet()) {
+                    PageId pid = entry.getKey();
+                    preAppend();
+                    pageLSNs.put(pid, appendDelta(entry.getValue(), pageClasses.get(pid), pid,
+                            PageDelta.between(redone.get(pid), pages.get(pid))));
+                }
+                for (long tid : transactions.keySet()) {
+                    preAppend();
+                    writeRecordHeader(ABORT_RECORD, tid);
+                    buffer.writeLong(currentOffset);
+                    currentOffset = buffer.position();
+                    tidToLastLogRecord.remove(tid);
+                }
 
-
-
+                // 日志写出去之后再写页
+                for (Map.Entry<PageId, byte[]> entry : pages.entrySet()) {
+                    PageId pid = entry.getKey();
+                    Page page = makePage(pageClasses.get(pid), pid, entry.getValue());
+                    page.setLSN(pageLSNs.get(pid));
+                    writeLoggedPage(page);
+                }
+                force();
             }
          }
     }
 
-    public synchronized long getRecoverOffset(){
-        try {
-            raf.seek(0);
-            long checkPoint = raf.readLong();
-            if(checkPoint == -1){
-                return -1L;
-            }else {
-                // 移动到检查点,并略过日志头（type,tid信息）
-                raf.seek(checkPoint);
-                raf.readInt();
-                raf.readLong();
-                int keySize = raf.readInt();
-                long recoverOffset = Long.MAX_VALUE;
-                while (keySize-- > 0) {
-                    raf.readLong();
-                    long offset = raf.readLong();
-                    if(offset < recoverOffset){
-                        recoverOffset = offset;
-                    }
-                }
-                return recoverOffset;
+    /* 恢复过程中页面当前的内容：内存中重做或撤销过的，否则是磁盘上的 */
+    private byte[] recoveringPage(Map<PageId, byte[]> pages, PageId pid) {
+        byte[] data = pages.get(pid);
+        if (data != null)
+            return data;
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid).getPageData();
+    }
 
+    /* 略过UPDATE和DELTA以外的记录的内容，type和tid已经读过 */
+    private void skipRecord(DataInput in, int type) throws IOException {
+        if (type == CHECKPOINT_RECORD) {
+            int keySize = in.readInt();
+            while (keySize-- > 0) {
+                in.readLong();
+                in.readLong();
+                in.readLong();
             }
-
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            int dirtySize = in.readInt();
+            while (dirtySize-- > 0) {
+                readPageId(in, in.readUTF());
+                in.readLong();
+                in.readLong();
+            }
+        } else if (type == FLUSH_RECORD) {
+            readPageId(in, in.readUTF());
+            in.readLong();
         }
     }
 
 
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
-
-        raf.seek(0);
+        synchronized (this) {
+            flushBuffer();
+        }
 
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+        System.out.println("segment size " + segments.segmentSize());
+        System.out.println("checkpoint record at LSN " + segments.checkpoint());
+        System.out.println("log starts at LSN " + segments.start());
+        LogReader in = new LogReader(segments, segments.start(), LOG_BUFFER_SIZE);
 
         while (true) {
             try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
+                int cpType = in.readInt();
+                long cpTid = in.readLong();
 
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
+                System.out.println((in.position() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
+                System.out.println((in.position() - LONG_SIZE) + ": TID " + cpTid);
+                System.out.println(in.position() + ": PREVIOUS RECORD OF TID: " + in.readLong());
 
                 switch (cpType) {
                 case BEGIN_RECORD:
                     System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.position() + ": RECORD START OFFSET: " + in.readLong());
                     break;
                 case ABORT_RECORD:
                     System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.position() + ": RECORD START OFFSET: " + in.readLong());
                     break;
                 case COMMIT_RECORD:
                     System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.position() + ": RECORD START OFFSET: " + in.readLong());
                     break;
 
                 case CHECKPOINT_RECORD:
                     System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
+                    int numTransactions = in.readInt();
+                    System.out.println((in.position() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
 
                     while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                        long tid = in.readLong();
+                        long firstRecord = in.readLong();
+                        long lastRecord = in.readLong();
+                        System.out.println((in.position() - 3 * LONG_SIZE) + ": TID: " + tid);
+                        System.out.println((in.position() - 2 * LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                        System.out.println((in.position() - LONG_SIZE) + ": LAST LOG RECORD: " + lastRecord);
+                    }
+                    int numDirty = in.readInt();
+                    System.out.println((in.position() - INT_SIZE) + ": NUMBER OF DIRTY PAGES: " + numDirty);
+
+                    while (numDirty-- > 0) {
+                        PageId dirty = readPageId(in, in.readUTF());
+                        System.out.println(in.position() + ": table id " + dirty.getTableId()
+                                + ", page number " + dirty.getPageNumber() + ", recLSN " + in.readLong()
+                                + ", last LSN " + in.readLong());
                     }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.position() + ": RECORD START OFFSET: " + in.readLong());
 
                     break;
                 case UPDATE_RECORD:
                     System.out.println(" (UPDATE)");
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
+                    long start = in.position();
+                    Page before = readPageData(in);
 
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
+                    long middle = in.position();
+                    Page after = readPageData(in);
 
                     System.out.println(start + ": before image table id " + before.getId().getTableId());
                     System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
@@ -724,9 +1383,31 @@ public class LogFile {
 
                     System.out.println(middle + ": after image table id " + after.getId().getTableId());
                     System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+                    System.out.println((middle + INT_SIZE) + " TO " + (in.position()) + ": page data");
 
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.position() + ": RECORD START OFFSET: " + in.readLong());
+
+                    break;
+                case DELTA_RECORD:
+                    System.out.println(" (DELTA)");
+
+                    long deltaStart = in.position();
+                    LoggedUpdate update = readUpdate(in, cpType, cpTid);
+                    System.out.println(deltaStart + ": table id " + update.pid.getTableId()
+                            + ", page number " + update.pid.getPageNumber());
+                    System.out.println(deltaStart + " TO " + in.position() + ": "
+                            + update.delta.changedBytes() + " changed bytes");
+
+                    System.out.println(in.position() + ": RECORD START OFFSET: " + in.readLong());
+
+                    break;
+                case FLUSH_RECORD:
+                    System.out.println(" (FLUSH)");
+
+                    PageId pid = readPageId(in, in.readUTF());
+                    System.out.println(in.position() + ": table id " + pid.getTableId()
+                            + ", page number " + pid.getPageNumber() + ", page LSN " + in.readLong());
+                    System.out.println(in.position() + ": RECORD START OFFSET: " + in.readLong());
 
                     break;
                 }
@@ -736,13 +1417,17 @@ public class LogFile {
                 break;
             }
         }
-
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        flushBuffer();
+        segments.force();
+        durableLSN = buffer.position();
+        // 已写入的提交都刷了盘，等待组提交的事务不用再等
+        synchronized (groupCommit) {
+            durableCommits = Math.max(durableCommits, appendedCommits);
+            groupCommit.notifyAll();
+        }
     }
 
 }
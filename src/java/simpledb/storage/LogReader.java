@@ -0,0 +1,158 @@
+package simpledb.storage;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * LogReader reads the log forward from a given LSN through a direct
+ * ByteBuffer filled by large reads from the log segments, across segment
+ * boundaries. Reading the log record by record through a RandomAccessFile
+ * costs a system call for every byte of every integer; recovery reads the
+ * whole log since the last checkpoint this way.
+ * <p>
+ * LogReader is the reading counterpart of {@link LogBuffer}: it decodes
+ * values like {@link DataInput} does and knows the LSN of the next byte to
+ * read. It can be moved to another LSN with {@link #seek(long)}, which
+ * drops what was read ahead.
+ */
+class LogReader implements DataInput {
+
+    private final ByteBuffer buffer;
+    private final LogSegments segments;
+    /* 下一次读入的LSN，即缓冲区末尾的LSN */
+    private long filePosition;
+
+    LogReader(LogSegments segments, long position, int capacity) {
+        this.segments = segments;
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+        seek(position);
+    }
+
+    /**
+     * @return the LSN of the next byte to read
+     */
+    long position() {
+        return filePosition - buffer.remaining();
+    }
+
+    /**
+     * Goes on reading from position.
+     */
+    void seek(long position) {
+        filePosition = position;
+        buffer.clear();
+        buffer.limit(0);
+    }
+
+    /* 保证缓冲区中至少有n个字节，日志不够长时抛出EOFException */
+    private void ensure(int n) throws IOException {
+        if (buffer.remaining() >= n)
+            return;
+        buffer.compact();
+        while (buffer.position() < n) {
+            int read = segments.read(buffer, filePosition);
+            if (read < 0) {
+                buffer.flip();
+                throw new EOFException();
+            }
+            filePosition += read;
+        }
+        buffer.flip();
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ensure(1);
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        int skipped = 0;
+        while (skipped < n) {
+            ensure(1);
+            int step = Math.min(n - skipped, buffer.remaining());
+            buffer.position(buffer.position() + step);
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        ensure(Byte.BYTES);
+        return buffer.get();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xff;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        ensure(Short.BYTES);
+        return buffer.getShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xffff;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        ensure(Character.BYTES);
+        return buffer.getChar();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        ensure(Integer.BYTES);
+        return buffer.getInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        ensure(Long.BYTES);
+        return buffer.getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    @Override
+    public String readLine() {
+        throw new UnsupportedOperationException("the log has no lines");
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+}
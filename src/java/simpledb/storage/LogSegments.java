@@ -0,0 +1,276 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * LogSegments stores the log in segment files of a fixed size, next to a
+ * small manifest file. The log is a single range of LSNs: segment n holds
+ * the bytes with LSNs from n * segmentSize up to (n + 1) * segmentSize, so
+ * the LSN of a byte tells where to find it, and a record may run over from
+ * one segment into the next. Segments are named after the manifest with
+ * the segment number appended, as in log.00000003.
+ * <p>
+ * The manifest holds the segment size, the LSN of the last checkpoint, and
+ * the LSN of the first record still needed, the start of the log.
+ * Truncating the log moves the start forward and deletes the segments that
+ * lie entirely before it; no record is copied and LSNs never change.
+ * <p>
+ * A segment that fills up is forced to disk before the log moves on to the
+ * next one, so forcing the log only has to force the last segment.
+ * Like LogBuffer, LogSegments is not thread safe; LogFile only uses it
+ * under its own lock.
+ */
+class LogSegments {
+
+    /* 清单：段大小、最后一个检查点的LSN、日志开头的LSN */
+    static final int MANIFEST_SIZE = Integer.BYTES + 2 * Long.BYTES;
+
+    private final File manifest;
+    private final File directory;
+    private final String prefix;
+
+    private int segmentSize;
+    private long checkpoint = LogFile.NO_CHECKPOINT_ID;
+    private long start;
+    /* 已写入段文件的日志末尾 */
+    private long end;
+    /* 打开的段：段号 -> 文件 */
+    private final TreeMap<Long, RandomAccessFile> segments = new TreeMap<>();
+
+    LogSegments(File manifest) {
+        this.manifest = manifest;
+        this.directory = manifest.getAbsoluteFile().getParentFile();
+        this.prefix = manifest.getName() + ".";
+    }
+
+    /**
+     * Reads the manifest and finds the end of the log in its last segment.
+     *
+     * @return false if there is no log to read
+     */
+    boolean load() throws IOException {
+        close();
+        if (manifest.length() < MANIFEST_SIZE)
+            return false;
+        try (RandomAccessFile raf = new RandomAccessFile(manifest, "r")) {
+            segmentSize = raf.readInt();
+            checkpoint = raf.readLong();
+            start = raf.readLong();
+        }
+        end = start;
+        List<Long> numbers = segmentNumbers();
+        if (!numbers.isEmpty()) {
+            long last = numbers.get(numbers.size() - 1);
+            end = Math.max(start, last * segmentSize + segmentFile(last).length());
+        }
+        return true;
+    }
+
+    /**
+     * Starts a new, empty log with segments of the given size, deleting the
+     * segments of the old one.
+     */
+    void create(int segmentSize) throws IOException {
+        close();
+        for (long n : segmentNumbers())
+            delete(n);
+        this.segmentSize = segmentSize;
+        checkpoint = LogFile.NO_CHECKPOINT_ID;
+        start = 0;
+        end = 0;
+        writeManifest();
+    }
+
+    int segmentSize() {
+        return segmentSize;
+    }
+
+    long checkpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * @return the LSN of the first record in the log
+     */
+    long start() {
+        return start;
+    }
+
+    /**
+     * @return the LSN after the last byte written to the segments
+     */
+    long end() {
+        return end;
+    }
+
+    /**
+     * Records the LSN of the last checkpoint in the manifest. The
+     * checkpoint record must be on disk already.
+     */
+    void setCheckpoint(long lsn) throws IOException {
+        checkpoint = lsn;
+        writeManifest();
+    }
+
+    /**
+     * Drops the log before lsn: the manifest moves the start of the log
+     * there first, then the segments entirely before it are deleted.
+     */
+    void truncate(long lsn) throws IOException {
+        if (lsn <= start)
+            return;
+        start = lsn;
+        writeManifest();
+        // 崩溃后残留的旧段也一并删掉
+        for (long n : segmentNumbers()) {
+            if ((n + 1) * segmentSize > lsn)
+                break;
+            delete(n);
+        }
+    }
+
+    /**
+     * Cuts the log off at lsn, such as after a record torn by a crash.
+     */
+    void setEnd(long lsn) throws IOException {
+        long last = lsn / segmentSize;
+        for (long n : segmentNumbers()) {
+            if (n > last)
+                delete(n);
+        }
+        segment(last).setLength(lsn - last * segmentSize);
+        end = lsn;
+    }
+
+    /**
+     * Reads bytes from lsn on into dst, at most up to the end of the segment
+     * holding lsn.
+     *
+     * @return the number of bytes read, or -1 at the end of the log
+     */
+    int read(ByteBuffer dst, long lsn) throws IOException {
+        if (lsn >= end)
+            return -1;
+        long n = lsn / segmentSize;
+        long offset = lsn - n * segmentSize;
+        if (!segments.containsKey(n) && !segmentFile(n).exists())
+            return -1;
+        int limit = dst.limit();
+        dst.limit(dst.position() + (int) Math.min(dst.remaining(), Math.min(segmentSize - offset, end - lsn)));
+        try {
+            return segment(n).getChannel().read(dst, offset);
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    /**
+     * Writes all of src to the log from lsn on, going on into new segments
+     * as the old ones fill up. Does not force the last segment to disk.
+     */
+    void write(ByteBuffer src, long lsn) throws IOException {
+        int limit = src.limit();
+        try {
+            while (src.hasRemaining()) {
+                long n = lsn / segmentSize;
+                long offset = lsn - n * segmentSize;
+                int length = (int) Math.min(src.remaining(), segmentSize - offset);
+                src.limit(src.position() + length);
+                FileChannel channel = segment(n).getChannel();
+                while (src.hasRemaining())
+                    offset += channel.write(src, offset);
+                src.limit(limit);
+                lsn += length;
+                end = Math.max(end, lsn);
+                // 写满的段不会再写，现在刷盘，之后刷盘只需刷最后一段
+                if (offset == segmentSize)
+                    channel.force(true);
+            }
+        } finally {
+            src.limit(limit);
+        }
+    }
+
+    /**
+     * @return the channel of the segment holding the end of the log, the
+     *   only segment that may not be on disk yet, or null if there is none
+     */
+    FileChannel current() {
+        if (end == 0)
+            return null;
+        RandomAccessFile raf = segments.get((end - 1) / segmentSize);
+        return raf == null ? null : raf.getChannel();
+    }
+
+    /**
+     * Forces the log written so far to disk.
+     */
+    void force() throws IOException {
+        FileChannel channel = current();
+        if (channel != null)
+            channel.force(true);
+    }
+
+    void close() throws IOException {
+        for (RandomAccessFile raf : segments.values())
+            raf.close();
+        segments.clear();
+    }
+
+    private RandomAccessFile segment(long n) throws IOException {
+        RandomAccessFile raf = segments.get(n);
+        if (raf == null) {
+            raf = new RandomAccessFile(segmentFile(n), "rw");
+            segments.put(n, raf);
+        }
+        return raf;
+    }
+
+    private void delete(long n) throws IOException {
+        RandomAccessFile raf = segments.remove(n);
+        if (raf != null)
+            raf.close();
+        File file = segmentFile(n);
+        if (!file.delete() && file.exists())
+            throw new IOException("cannot delete log segment " + file);
+    }
+
+    private File segmentFile(long n) {
+        return new File(directory, prefix + String.format("%08d", n));
+    }
+
+    /* 目录中这个日志的所有段号，从小到大 */
+    private List<Long> segmentNumbers() {
+        TreeSet<Long> found = new TreeSet<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.length() > prefix.length() && name.startsWith(prefix)
+                        && name.substring(prefix.length()).chars().allMatch(Character::isDigit))
+                    found.add(Long.parseLong(name.substring(prefix.length())));
+            }
+        }
+        return new ArrayList<>(found);
+    }
+
+    /* 清单只有几十个字节，原地改写后刷盘 */
+    private void writeManifest() throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(MANIFEST_SIZE);
+        data.putInt(segmentSize).putLong(checkpoint).putLong(start).flip();
+        try (RandomAccessFile raf = new RandomAccessFile(manifest, "rw")) {
+            FileChannel channel = raf.getChannel();
+            while (data.hasRemaining())
+                channel.write(data, data.position());
+            channel.force(true);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package simpledb.storage;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K replacement (O'Neil et al.). The victim is the page whose K-th most
+ * recent access lies furthest in the past. Pages referenced fewer than K
+ * times have an infinite backward K-distance and are evicted first, in LRU
+ * order, which keeps one-off scan pages from pushing out the working set.
+ * <p>
+ * Pages with fewer than K references live in an access-ordered set (O(1)
+ * per access); the others are ordered by their K-th most recent access
+ * time, which costs O(log n) per access since that order cannot be kept by
+ * appending to a list.
+ */
+public class LruKReplacementPolicy implements ReplacementPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private static class History {
+        final PageId pid;
+        /* 最近K次访问的时间，环形存放 */
+        final long[] times;
+        int count;
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.times = new long[k];
+        }
+
+        void access(long now) {
+            times[count % times.length] = now;
+            count++;
+        }
+
+        /* 倒数第K次访问的时间，访问不足K次时没有意义 */
+        long kthTime() {
+            return times[count % times.length];
+        }
+    }
+
+    private final int k;
+    /* 逻辑时钟，每次访问加一，保证各页的访问时间互不相同 */
+    private long clock = 0;
+    private final Map<PageId, History> histories = new HashMap<>();
+    /* 访问不足K次的页，最近访问位于尾部 */
+    private final LinkedHashSet<PageId> cold = new LinkedHashSet<>();
+    /* 访问达到K次的页，按倒数第K次访问时间排序 */
+    private final TreeMap<Long, PageId> hot = new TreeMap<>();
+
+    public LruKReplacementPolicy(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("K must be at least 1");
+        this.k = k;
+    }
+
+    public void recordAccess(PageId pid) {
+        History h = histories.get(pid);
+        if (h == null)
+            return;
+        if (h.count >= k) {
+            hot.remove(h.kthTime());
+        } else {
+            cold.remove(pid);
+        }
+        h.access(++clock);
+        if (h.count >= k) {
+            hot.put(h.kthTime(), pid);
+        } else {
+            cold.add(pid);
+        }
+    }
+
+    public void recordInsert(PageId pid) {
+        if (histories.containsKey(pid)) {
+            recordAccess(pid);
+            return;
+        }
+        History h = new History(pid, k);
+        histories.put(pid, h);
+        h.access(++clock);
+        if (h.count >= k) {
+            hot.put(h.kthTime(), pid);
+        } else {
+            cold.add(pid);
+        }
+    }
+
+    public void remove(PageId pid) {
+        History h = histories.remove(pid);
+        if (h == null)
+            return;
+        if (h.count >= k) {
+            hot.remove(h.kthTime());
+        } else {
+            cold.remove(pid);
+        }
+    }
+
+    public PageId evict(Predicate<PageId> evictable) {
+        Iterator<PageId> it = cold.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.test(pid)) {
+                it.remove();
+                histories.remove(pid);
+                return pid;
+            }
+        }
+        Iterator<PageId> hotIt = hot.values().iterator();
+        while (hotIt.hasNext()) {
+            PageId pid = hotIt.next();
+            if (evictable.test(pid)) {
+                hotIt.remove();
+                histories.remove(pid);
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return histories.size();
+    }
+}
@@ -0,0 +1,45 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * Least-recently-used replacement. The access order is kept in a
+ * LinkedHashSet, so hits, loads and removals are all O(1).
+ */
+public class LruReplacementPolicy implements ReplacementPolicy {
+
+    /* 最近访问位于尾部 */
+    private final LinkedHashSet<PageId> order = new LinkedHashSet<>();
+
+    public void recordAccess(PageId pid) {
+        if (order.remove(pid))
+            order.add(pid);
+    }
+
+    public void recordInsert(PageId pid) {
+        order.remove(pid);
+        order.add(pid);
+    }
+
+    public void remove(PageId pid) {
+        order.remove(pid);
+    }
+
+    public PageId evict(Predicate<PageId> evictable) {
+        Iterator<PageId> it = order.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.test(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return order.size();
+    }
+}
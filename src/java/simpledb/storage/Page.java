@@ -35,6 +35,27 @@ public interface Page {
    */
   void markDirty(boolean dirty, TransactionId tid);
 
+    /**
+     * Returns the log sequence number of the last log record that describes
+     * this page, or {@link #NO_LSN} if none was logged since the page was
+     * read from disk.
+     * <p>
+     * The LSN is kept in memory only: the page formats have no room for it
+     * without changing how many tuples or entries fit on a page. The LSN of
+     * the version on disk is recorded in the log instead, whenever the page
+     * is written; see {@link LogFile}.
+     */
+    long getLSN();
+
+    /**
+     * Sets the log sequence number of the last log record that describes
+     * this page. Called by the log when it logs a change of the page.
+     */
+    void setLSN(long lsn);
+
+    /** The LSN of a page that no log record describes. */
+    long NO_LSN = -1;
+
   /**
    * Generates a byte array representing the contents of this page.
    * Used to serialize this page to disk.
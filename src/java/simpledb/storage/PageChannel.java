@@ -0,0 +1,183 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * PageChannel is the long-lived handle a DbFile uses for its page I/O. It
+ * wraps one FileChannel that is opened on first use and kept open, instead
+ * of opening and closing a RandomAccessFile for every page.
+ * <p>
+ * All reads and writes are positional, so they never touch a shared file
+ * pointer and any number of threads may read and write pages concurrently.
+ * Appends are serialized so that each caller learns where its data went.
+ * <p>
+ * A FileChannel is closed for everybody when a thread blocked in it is
+ * interrupted. The channel is then reopened transparently; only the
+ * interrupted caller sees the failure.
+ * <p>
+ * For read-mostly files the channel can also hand out read-only views of a
+ * memory mapping of the file, see {@link #map(long, int)}.
+ */
+public class PageChannel {
+
+    private final File file;
+    private FileChannel channel;
+    /* 整个文件的只读映射，文件变长后按需重新映射 */
+    private MappedByteBuffer mapping;
+
+    public PageChannel(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null || !channel.isOpen())
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        return channel;
+    }
+
+    /**
+     * Reads data.length bytes starting at position, or as many as there are
+     * before the end of the file.
+     *
+     * @return the number of bytes read, -1 if position is at or past the end
+     *   of the file
+     */
+    public int read(byte[] data, long position) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (true) {
+            try {
+                FileChannel ch = channel();
+                while (buf.hasRemaining()) {
+                    int n = ch.read(buf, position + buf.position());
+                    if (n < 0)
+                        break;
+                }
+                return buf.position() == 0 && data.length > 0 ? -1 : buf.position();
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // 通道被其他线程的中断关闭，重新打开后重试
+            }
+        }
+    }
+
+    /**
+     * Writes all of data starting at position, extending the file if needed.
+     */
+    public void write(byte[] data, long position) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (true) {
+            try {
+                FileChannel ch = channel();
+                while (buf.hasRemaining())
+                    ch.write(buf, position + buf.position());
+                return;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // 同上，buf的位置保留，只补写剩下的部分
+            }
+        }
+    }
+
+    /**
+     * Writes data at the current end of the file.
+     *
+     * @return the position data was written at
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        long position = size();
+        write(data, position);
+        return position;
+    }
+
+    /**
+     * @return the current size of the file in bytes
+     */
+    public long size() throws IOException {
+        while (true) {
+            try {
+                return channel().size();
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // 重新打开后重试
+            }
+        }
+    }
+
+    /**
+     * Forces everything written to the file so far to disk.
+     */
+    public void force() throws IOException {
+        while (true) {
+            try {
+                // fsync作用于文件本身，通道被重新打开过也会把之前写的内容刷盘
+                channel().force(false);
+                return;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // 重新打开后重试
+            }
+        }
+    }
+
+    /**
+     * Cuts the file down to size bytes.
+     */
+    public synchronized void truncate(long size) throws IOException {
+        channel().truncate(size);
+        if (mapping != null && mapping.capacity() > size)
+            mapping = null;
+    }
+
+    /**
+     * Returns a read-only view of length bytes of the file starting at
+     * position, backed directly by a memory mapping of the file, without
+     * copying. Writes made through this channel later are visible in the
+     * view. The mapping is extended when the file has grown past it.
+     *
+     * @return the view, or null if the range is not completely inside the
+     *   file or lies beyond what a single mapping can cover
+     */
+    public ByteBuffer map(long position, int length) throws IOException {
+        long end = position + length;
+        if (end > Integer.MAX_VALUE)
+            return null;
+        MappedByteBuffer m;
+        synchronized (this) {
+            if (mapping == null || end > mapping.capacity()) {
+                long size = Math.min(size(), Integer.MAX_VALUE);
+                if (end > size)
+                    return null;
+                mapping = channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            m = mapping;
+        }
+        // slice(index, length)不改变m的position，多线程共用同一映射是安全的
+        return m.slice((int) position, length);
+    }
+
+    /**
+     * Closes the underlying channel. It is reopened by the next operation.
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null)
+            channel.close();
+        channel = null;
+        mapping = null;
+    }
+}
@@ -0,0 +1,128 @@
+package simpledb.storage;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PageDelta is the difference between two versions of a page: the byte
+ * ranges in which they differ, with the bytes of the old and of the new
+ * version. It turns the old version into the new one and back again, so a
+ * log record holding it serves for redo as well as for undo, at a fraction
+ * of the size of two page images when only a few tuples changed.
+ * <p>
+ * Ranges that are only a few bytes apart are merged, since every range
+ * costs its own offset and length in the log.
+ */
+class PageDelta {
+
+    /* 相隔不超过这么多字节的两个区间合并成一个，省下一个区间头 */
+    static final int MERGE_GAP = 8;
+
+    private final int[] offsets;
+    private final byte[][] oldBytes;
+    private final byte[][] newBytes;
+
+    private PageDelta(int[] offsets, byte[][] oldBytes, byte[][] newBytes) {
+        this.offsets = offsets;
+        this.oldBytes = oldBytes;
+        this.newBytes = newBytes;
+    }
+
+    /**
+     * @return the difference between two versions of a page, which must be
+     *   of the same length
+     */
+    static PageDelta between(byte[] oldData, byte[] newData) {
+        if (oldData.length != newData.length)
+            throw new IllegalArgumentException("page versions differ in length: "
+                    + oldData.length + " and " + newData.length);
+        List<int[]> ranges = new ArrayList<>();
+        int start = -1, end = -1;
+        for (int i = 0; i < oldData.length; i++) {
+            if (oldData[i] == newData[i])
+                continue;
+            if (start >= 0 && i - end <= MERGE_GAP) {
+                end = i + 1;
+            } else {
+                if (start >= 0)
+                    ranges.add(new int[]{start, end});
+                start = i;
+                end = i + 1;
+            }
+        }
+        if (start >= 0)
+            ranges.add(new int[]{start, end});
+
+        int[] offsets = new int[ranges.size()];
+        byte[][] oldBytes = new byte[ranges.size()][];
+        byte[][] newBytes = new byte[ranges.size()][];
+        for (int i = 0; i < ranges.size(); i++) {
+            int[] range = ranges.get(i);
+            offsets[i] = range[0];
+            oldBytes[i] = Arrays.copyOfRange(oldData, range[0], range[1]);
+            newBytes[i] = Arrays.copyOfRange(newData, range[0], range[1]);
+        }
+        return new PageDelta(offsets, oldBytes, newBytes);
+    }
+
+    /**
+     * Turns data from the old version of the page into the new one.
+     */
+    void redo(byte[] data) {
+        apply(data, newBytes);
+    }
+
+    /**
+     * Turns data from the new version of the page back into the old one.
+     */
+    void undo(byte[] data) {
+        apply(data, oldBytes);
+    }
+
+    private void apply(byte[] data, byte[][] bytes) {
+        for (int i = 0; i < offsets.length; i++)
+            System.arraycopy(bytes[i], 0, data, offsets[i], bytes[i].length);
+    }
+
+    /**
+     * @return the number of bytes that differ, counting merged gaps
+     */
+    int changedBytes() {
+        int n = 0;
+        for (byte[] b : newBytes)
+            n += b.length;
+        return n;
+    }
+
+    /*
+     * 格式：区间个数，之后每个区间依次是偏移、长度、旧内容、新内容
+     */
+    void writeTo(LogBuffer out) throws IOException {
+        out.writeInt(offsets.length);
+        for (int i = 0; i < offsets.length; i++) {
+            out.writeInt(offsets[i]);
+            out.writeInt(oldBytes[i].length);
+            out.write(oldBytes[i]);
+            out.write(newBytes[i]);
+        }
+    }
+
+    static PageDelta readFrom(DataInput in) throws IOException {
+        int count = in.readInt();
+        int[] offsets = new int[count];
+        byte[][] oldBytes = new byte[count][];
+        byte[][] newBytes = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = in.readInt();
+            int length = in.readInt();
+            oldBytes[i] = new byte[length];
+            in.readFully(oldBytes[i]);
+            newBytes[i] = new byte[length];
+            in.readFully(newBytes[i]);
+        }
+        return new PageDelta(offsets, oldBytes, newBytes);
+    }
+}
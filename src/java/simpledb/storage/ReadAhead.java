@@ -0,0 +1,168 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * ReadAhead keeps the pages that sequential scans asked to be prefetched.
+ * Prefetched pages are read on a background I/O executor into a small
+ * staging area next to the buffer pool. When a scan then misses on such a
+ * page, BufferPool.getPage takes it from the staging area instead of going
+ * to disk, after the usual lock acquisition.
+ * <p>
+ * Staged pages are read without holding any lock, so they may become stale:
+ * every write of a page to disk, and every discard of a page from the pool,
+ * must invalidate it here first. Since writes happen while the writer holds
+ * an exclusive lock, a reader that gets its lock afterwards never sees an
+ * out of date staged copy.
+ *
+ * @see ReadAheadStream
+ */
+class ReadAhead {
+
+    /* 所有缓冲池共用的后台I/O线程，守护线程，不阻止JVM退出 */
+    private static final ExecutorService IO_EXECUTOR = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "read-ahead-io");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static class Staged {
+        final FutureTask<Page> task;
+        final ReadAheadStream stream;
+
+        Staged(FutureTask<Page> task, ReadAheadStream stream) {
+            this.task = task;
+            this.stream = stream;
+        }
+    }
+
+    private final BufferPool pool;
+    private final int maxStaged;
+    /* 已预读（或正在预读）但还没被取走的页，按加入顺序 */
+    private final LinkedHashMap<PageId, Staged> staged = new LinkedHashMap<>();
+    /* 前台线程正在装入缓冲池的页（及装入它的线程数），这些页不再预读，避免读两次 */
+    private final Map<PageId, Integer> loading = new HashMap<>();
+
+    ReadAhead(BufferPool pool, int maxStaged) {
+        this.pool = pool;
+        this.maxStaged = Math.max(1, maxStaged);
+    }
+
+    BufferPool getPool() {
+        return pool;
+    }
+
+    int getMaxStaged() {
+        return maxStaged;
+    }
+
+    /**
+     * Start reading pid in the background on behalf of stream.
+     *
+     * @return false if pid could not be staged (already staged, or being
+     *   loaded into the pool by a foreground thread)
+     */
+    boolean stage(ReadAheadStream stream, PageId pid, int generation) {
+        FutureTask<Page> task = new FutureTask<>(() -> {
+            try {
+                Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                stream.prefetched(page, generation);
+                return page;
+            } catch (RuntimeException e) {
+                stream.prefetchFailed(generation);
+                throw e;
+            }
+        });
+        synchronized (this) {
+            if (staged.containsKey(pid) || loading.containsKey(pid))
+                return false;
+            // 暂存区满时丢弃最早的预读页；不取消其读取，否则它所在的预读链会停住
+            if (staged.size() >= maxStaged) {
+                Iterator<Staged> it = staged.values().iterator();
+                Staged oldest = it.next();
+                it.remove();
+                oldest.stream.dropped();
+            }
+            staged.put(pid, new Staged(task, stream));
+        }
+        IO_EXECUTOR.execute(task);
+        return true;
+    }
+
+    /**
+     * Start loading pid into the pool on a buffer pool miss: remove pid from
+     * the staging area and return its contents, waiting for the read if it
+     * is still in flight; if the read has not started yet the caller
+     * performs it itself. Until the caller calls {@link #loaded(PageId)},
+     * pid is not prefetched again.
+     *
+     * @return the prefetched page, or null if pid was not staged or its read
+     *   failed, in which case the caller reads pid from disk
+     */
+    Page take(PageId pid) {
+        Staged s;
+        synchronized (this) {
+            loading.merge(pid, 1, Integer::sum);
+            s = staged.remove(pid);
+        }
+        if (s == null)
+            return null;
+        boolean behind = !s.task.isDone();
+        s.task.run();
+        try {
+            Page page = s.task.get();
+            s.stream.consumed(behind);
+            return page;
+        } catch (InterruptedException | ExecutionException | CancellationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The load of pid started with {@link #take(PageId)} is over, whether
+     * or not the page made it into the pool.
+     */
+    synchronized void loaded(PageId pid) {
+        loading.computeIfPresent(pid, (p, n) -> n == 1 ? null : n - 1);
+    }
+
+    /**
+     * Forget any staged copy of pid; called before pid is written to disk
+     * or dropped from the pool.
+     */
+    void invalidate(PageId pid) {
+        Staged s;
+        synchronized (this) {
+            s = staged.remove(pid);
+        }
+        if (s != null) {
+            s.stream.dropped();
+        }
+    }
+
+    /**
+     * Forget the staged pages of a closed stream.
+     */
+    void release(ReadAheadStream stream) {
+        synchronized (this) {
+            Iterator<Staged> it = staged.values().iterator();
+            while (it.hasNext()) {
+                Staged s = it.next();
+                if (s.stream == stream) {
+                    s.task.cancel(false);
+                    it.remove();
+                }
+            }
+        }
+    }
+}
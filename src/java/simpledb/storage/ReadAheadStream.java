@@ -0,0 +1,158 @@
+package simpledb.storage;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * ReadAheadStream follows one scan and prefetches the pages it is about to
+ * read. The scan reports every page it gets from the buffer pool through
+ * {@link #accessed(Page)}; once it has followed the successor chain twice
+ * in a row the stream starts reading the next pages on a background thread,
+ * one after the other along the chain, keeping up to a window of them staged
+ * ahead of the scan.
+ * <p>
+ * The window starts small and doubles every time the scan reaches a page
+ * whose read is still in flight, i.e. when the scan consumes pages faster
+ * than they are prefetched; it halves when staged pages are thrown away
+ * before the scan gets to them. A non sequential access stops prefetching
+ * until the scan is sequential again.
+ * <p>
+ * The successor function gives the page after a given page: the next page
+ * number for heap files, the right sibling for B+ tree leaves. It may return
+ * null at the end of the chain.
+ *
+ * @see BufferPool#readAheadStream(Function)
+ */
+public class ReadAheadStream {
+
+    public static final int MIN_WINDOW = 2;
+    public static final int MAX_WINDOW = 32;
+    /* 连续顺序访问达到这个次数后才开始预读 */
+    static final int SEQUENTIAL_THRESHOLD = 2;
+
+    private final ReadAhead readAhead;
+    private final Function<Page, PageId> successor;
+
+    private PageId expected;
+    private int sequentialRuns = 0;
+    private int window = 0;
+    /* 预读链的末端，下一次从它的后继开始预读 */
+    private Page tail;
+    /* 本流已经提交预读、还没被扫描取走的页 */
+    private final Set<PageId> pending = new HashSet<>();
+    /* 是否有预读正在进行，同一时间每个流只有一个 */
+    private boolean chainActive = false;
+    /* 预读链每次重置加一，旧链上完成的预读不再继续 */
+    private int generation = 0;
+    private boolean closed = false;
+    /* 预读的页在被取走前就被丢弃的次数；由持有其他锁的线程累加，不加本对象的锁 */
+    private final AtomicInteger drops = new AtomicInteger(0);
+
+    ReadAheadStream(ReadAhead readAhead, Function<Page, PageId> successor) {
+        this.readAhead = readAhead;
+        this.successor = successor;
+    }
+
+    /**
+     * The scan got page from the buffer pool.
+     */
+    public synchronized void accessed(Page page) {
+        if (closed)
+            return;
+        // 预读的页还没用上就被丢弃，缩小窗口
+        int dropped = drops.getAndSet(0);
+        if (dropped > 0 && window > 0)
+            window = Math.max(MIN_WINDOW, window >> Math.min(dropped, 5));
+        PageId pid = page.getId();
+        boolean sequential = pid.equals(expected);
+        expected = successor.apply(page);
+        pending.remove(pid);
+        if (!sequential) {
+            sequentialRuns = 0;
+            reset();
+            return;
+        }
+        if (++sequentialRuns < SEQUENTIAL_THRESHOLD)
+            return;
+        if (window == 0)
+            window = MIN_WINDOW;
+        if (!chainActive) {
+            if (pending.isEmpty())
+                tail = page;
+            extend();
+        }
+    }
+
+    /**
+     * Stop prefetching and drop the pages staged for this stream.
+     */
+    public synchronized void close() {
+        closed = true;
+        reset();
+    }
+
+    /** @return the current prefetch window in pages; 0 while not prefetching */
+    public synchronized int getWindow() {
+        return window;
+    }
+
+    private void reset() {
+        generation++;
+        window = 0;
+        tail = null;
+        chainActive = false;
+        if (!pending.isEmpty()) {
+            pending.clear();
+            readAhead.release(this);
+        }
+    }
+
+    /* 沿后继链向前预读，直到窗口内的页都已提交；调用者需持有本对象的锁 */
+    private void extend() {
+        int steps = 0;
+        // 超过暂存区容量的预读只会挤掉本流自己还没用上的页
+        int limit = Math.min(window, readAhead.getMaxStaged());
+        while (tail != null && pending.size() < limit && steps++ < window) {
+            PageId next = successor.apply(tail);
+            if (next == null)
+                break;
+            Page resident = readAhead.getPool().peekPage(next);
+            if (resident != null) {
+                // 已在缓冲池中，不用预读，继续往后看
+                tail = resident;
+                continue;
+            }
+            if (!readAhead.stage(this, next, generation))
+                break;
+            pending.add(next);
+            chainActive = true;
+            return;
+        }
+        chainActive = false;
+    }
+
+    synchronized void prefetched(Page page, int gen) {
+        if (closed || gen != generation)
+            return;
+        tail = page;
+        extend();
+    }
+
+    synchronized void prefetchFailed(int gen) {
+        if (gen == generation)
+            chainActive = false;
+    }
+
+    synchronized void consumed(boolean behind) {
+        // 扫描赶上了预读，说明消费速度快于预读，扩大窗口
+        if (behind && window > 0)
+            window = Math.min(window * 2, MAX_WINDOW);
+    }
+
+    /* 被丢弃的页仍留在pending中，直到扫描访问到它 */
+    void dropped() {
+        drops.incrementAndGet();
+    }
+}
@@ -0,0 +1,67 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * ReplacementPolicy decides which page of a buffer pool segment should be
+ * evicted when the pool is full. The BufferPool reports every hit, load and
+ * removal of a page to the policy of the segment the page lives in; the
+ * policy keeps whatever bookkeeping it needs to pick a victim.
+ * <p>
+ * A policy instance belongs to a single segment and is only called while the
+ * segment latch is held, so implementations need not be thread safe.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /** The replacement policies a BufferPool can be constructed with. */
+    enum Kind {
+        LRU, CLOCK, LRU_K, TWO_Q;
+
+        /**
+         * Create a policy of this kind for a segment holding about
+         * capacity pages.
+         */
+        public ReplacementPolicy create(int capacity) {
+            switch (this) {
+                case CLOCK:
+                    return new ClockReplacementPolicy();
+                case LRU_K:
+                    return new LruKReplacementPolicy(LruKReplacementPolicy.DEFAULT_K);
+                case TWO_Q:
+                    return new TwoQueueReplacementPolicy(capacity);
+                default:
+                    return new LruReplacementPolicy();
+            }
+        }
+    }
+
+    /**
+     * A page that is already tracked by the policy has been accessed.
+     */
+    void recordAccess(PageId pid);
+
+    /**
+     * A page has been loaded into the segment.
+     */
+    void recordInsert(PageId pid);
+
+    /**
+     * A page has been removed from the segment without being chosen as a
+     * victim (e.g., discarded by the recovery manager).
+     */
+    void remove(PageId pid);
+
+    /**
+     * Choose a page to evict among the pages for which evictable returns
+     * true, and stop tracking it.
+     *
+     * @param evictable tells whether a page may be evicted (e.g., it is clean)
+     * @return the victim, or null if no tracked page is evictable
+     */
+    PageId evict(Predicate<PageId> evictable);
+
+    /** @return the number of pages tracked by the policy */
+    int size();
+}
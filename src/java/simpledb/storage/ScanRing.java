@@ -0,0 +1,50 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+
+/**
+ * ScanRing is a small, private set of buffer pool frames used by one large
+ * sequential scan. Pages the scan has to read from disk are remembered in
+ * the ring; once the ring is full, the oldest of them is dropped from the
+ * buffer pool to make room for the next one, instead of evicting pages from
+ * the shared pool. A scan over a table larger than the pool therefore only
+ * ever occupies a ring's worth of frames and leaves the working set of other
+ * queries alone.
+ * <p>
+ * Pages the scan finds already resident are used as is and never recycled.
+ *
+ * @see BufferPool#scanRingFor(int)
+ * @see BufferPool#getPage(simpledb.transaction.TransactionId, PageId, simpledb.common.Permissions, ScanRing)
+ */
+public class ScanRing {
+
+    private final int capacity;
+    /* 由本次扫描读入缓冲池的页，最早读入的在队头 */
+    private final ArrayDeque<PageId> loaded;
+
+    public ScanRing(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.loaded = new ArrayDeque<>(this.capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the oldest page loaded through this ring if the ring is full
+     *   and that page should be recycled, or null if there is still room
+     */
+    synchronized PageId nextVictim() {
+        if (loaded.size() < capacity)
+            return null;
+        return loaded.pollFirst();
+    }
+
+    /**
+     * Remember that pid was read from disk through this ring.
+     */
+    synchronized void add(PageId pid) {
+        loaded.addLast(pid);
+    }
+}
@@ -29,6 +29,15 @@ public class Tuple implements Serializable {
         fields = new Field[td.numFields()];
     }
 
+    /**
+     * Constructor for subclasses that keep their values in some other form
+     * and override getField and setField; no Field array is allocated.
+     */
+    protected Tuple(TupleDesc td, boolean withFields) {
+        this.tupleDesc = td;
+        fields = withFields ? new Field[td.numFields()] : null;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -82,6 +91,40 @@ public class Tuple implements Serializable {
         return fields[i];
     }
 
+    /**
+     * @return whether the ith field has been set, without creating a Field
+     */
+    public boolean isSet(int i) {
+        return getField(i) != null;
+    }
+
+    /**
+     * @return the value of the ith field, which must be an INT_TYPE field
+     *   that has been set. Subclasses that store values in primitive form
+     *   return it without creating a Field.
+     */
+    public int getInt(int i) {
+        return ((IntField) getField(i)).getValue();
+    }
+
+    /**
+     * @return the value of the ith field, which must be a STRING_TYPE field,
+     *   or null if it has not been set
+     */
+    public String getString(int i) {
+        Field f = getField(i);
+        return f == null ? null : ((StringField) f).getValue();
+    }
+
+    /**
+     * Set the ith field of this tuple to the value of field j of src.
+     * Subclasses that store values in primitive form copy the value without
+     * creating a Field.
+     */
+    public void setField(int i, Tuple src, int j) {
+        setField(i, src.getField(j));
+    }
+
     /**
      * Returns the contents of this Tuple as a string. Note that to pass the
      * system tests, the format needs to be as follows:
@@ -94,8 +137,8 @@ public class Tuple implements Serializable {
         // some code goes here
 //        throw new UnsupportedOperationException("Implement this");
         StringBuilder sb = new StringBuilder();
-        for(int i = 0;i < fields.length;i++){
-            sb.append(fields[i]).append("\t");
+        for(int i = 0;i < tupleDesc.numFields();i++){
+            sb.append(getField(i)).append("\t");
         }
         sb.deleteCharAt(sb.length()-1);
         return sb.toString();
@@ -108,7 +151,11 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
-        return Arrays.asList(fields).iterator();
+        // 通过getField取值，子类（如页上的元组视图）可以按需解码
+        Field[] all = new Field[tupleDesc.numFields()];
+        for (int i = 0; i < all.length; i++)
+            all[i] = getField(i);
+        return Arrays.asList(all).iterator();
     }
 
     /**
@@ -0,0 +1,364 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.util.Arrays;
+
+/**
+ * TupleBatch holds up to a fixed number of tuples of the same TupleDesc in
+ * columnar form: one int[] vector per INT_TYPE column and one String[] vector
+ * per STRING_TYPE column, with the value of row r of column c at index r of
+ * the vector of c. Batches are what operators exchange through
+ * {@link simpledb.execution.OpIterator#nextBatch()}; an operator working on
+ * a batch runs a plain loop over primitive arrays instead of one chain of
+ * virtual calls per tuple.
+ * <p>
+ * Rows are added at the end, either from a Tuple with {@link #add(Tuple)} or
+ * by {@link #addRow()} and writing the vectors directly. An INT_TYPE value
+ * that is null, such as a field of the Tuple that was never set, is marked
+ * in a separate vector, see {@link #isNull(int, int)}; its slot in the int
+ * vector holds 0. Rows can be dropped
+ * with {@link #select(int[], int)}. A batch that is handed to a caller
+ * belongs to that caller, who may change it in place.
+ */
+public class TupleBatch {
+
+    /** Number of rows in a batch unless specified otherwise. */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final TupleDesc td;
+    private final Type[] types;
+    /* 每个INT列一个向量，STRING列的位置为null */
+    private final int[][] ints;
+    /* 每个STRING列一个向量，INT列的位置为null */
+    private final String[][] strings;
+    /* INT列的空值标记，只在该列出现过空值时才分配 */
+    private final boolean[][] nulls;
+    /* 各行的RecordId，拆成页号和槽号两个向量；没有设置过时为null */
+    private PageId[] pageIds;
+    private int[] slots;
+    private final int capacity;
+    private int size;
+
+    /**
+     * Creates an empty batch of {@link #DEFAULT_SIZE} rows.
+     */
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_SIZE);
+    }
+
+    /**
+     * Creates an empty batch that can hold capacity rows.
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        this.types = new Type[td.numFields()];
+        this.ints = new int[types.length][];
+        this.strings = new String[types.length][];
+        this.nulls = new boolean[types.length][];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = td.getFieldType(i);
+            if (types[i] == Type.INT_TYPE)
+                ints[i] = new int[capacity];
+            else
+                strings[i] = new String[capacity];
+        }
+    }
+
+    private TupleBatch(TupleDesc td, Type[] types, int[][] ints, String[][] strings, boolean[][] nulls,
+                       PageId[] pageIds, int[] slots, int capacity, int size) {
+        this.td = td;
+        this.capacity = capacity;
+        this.types = types;
+        this.ints = ints;
+        this.strings = strings;
+        this.nulls = nulls;
+        this.pageIds = pageIds;
+        this.slots = slots;
+        this.size = size;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of rows in this batch
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of rows this batch can hold
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * @return the vector of the INT_TYPE column col; only the first
+     *   {@link #size()} entries are rows of this batch
+     */
+    public int[] getInts(int col) {
+        return ints[col];
+    }
+
+    /**
+     * @return the vector of the STRING_TYPE column col; only the first
+     *   {@link #size()} entries are rows of this batch
+     */
+    public String[] getStrings(int col) {
+        return strings[col];
+    }
+
+    /**
+     * @return whether the value of column col in row is null
+     */
+    public boolean isNull(int row, int col) {
+        if (types[col] == Type.INT_TYPE)
+            return nulls[col] != null && nulls[col][row];
+        return strings[col][row] == null;
+    }
+
+    /**
+     * @return whether the INT_TYPE column col has a null value in any row
+     */
+    public boolean hasNulls(int col) {
+        boolean[] v = nulls[col];
+        if (v == null)
+            return false;
+        for (int k = 0; k < size; k++) {
+            if (v[k])
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Marks the value of the INT_TYPE column col in row as null.
+     */
+    public void setNull(int row, int col) {
+        if (nulls[col] == null)
+            nulls[col] = new boolean[capacity];
+        nulls[col][row] = true;
+        ints[col][row] = 0;
+    }
+
+    /**
+     * @return the value of column col in row as a Field, or null if it is null
+     */
+    public Field getField(int row, int col) {
+        if (types[col] == Type.INT_TYPE)
+            return isNull(row, col) ? null : new IntField(ints[col][row]);
+        String s = strings[col][row];
+        return s == null ? null : new StringField(s, Type.STRING_LEN);
+    }
+
+    /**
+     * Adds an empty row at the end of the batch. The caller fills in its
+     * values by writing the column vectors.
+     *
+     * @return the index of the new row
+     */
+    public int addRow() {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        // 行可能在select之后被重用，清掉旧的空值标记
+        for (boolean[] v : nulls) {
+            if (v != null)
+                v[size] = false;
+        }
+        return size++;
+    }
+
+    /**
+     * Adds the values and the RecordId of t as a new row at the end of the
+     * batch.
+     */
+    public void add(Tuple t) {
+        int row = addRow();
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] != Type.INT_TYPE)
+                strings[i][row] = t.getString(i);
+            else if (t.isSet(i))
+                ints[i][row] = t.getInt(i);
+            else
+                setNull(row, i);
+        }
+        RecordId rid = t.getRecordId();
+        if (rid != null)
+            setRecordId(row, rid.getPageId(), rid.getTupleNumber());
+    }
+
+    /**
+     * Appends all rows of src, which must have the same column types, at the
+     * end of this batch.
+     */
+    public void addAll(TupleBatch src) {
+        if (size + src.size > capacity)
+            throw new IllegalStateException("batch is full");
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == Type.INT_TYPE) {
+                System.arraycopy(src.ints[i], 0, ints[i], size, src.size);
+                copyNulls(i, src.nulls[i], null, size, src.size);
+            } else
+                System.arraycopy(src.strings[i], 0, strings[i], size, src.size);
+        }
+        if (src.pageIds != null) {
+            ensureRecordIds();
+            System.arraycopy(src.pageIds, 0, pageIds, size, src.size);
+            System.arraycopy(src.slots, 0, slots, size, src.size);
+        }
+        size += src.size;
+    }
+
+    /**
+     * Sets columns firstCol, firstCol + 1, ... of the first n rows of this
+     * batch to the columns of src, taking row rows[k] of src for row k. The
+     * batch grows to n rows if it has fewer.
+     */
+    public void gather(int firstCol, TupleBatch src, int[] rows, int n) {
+        for (int i = 0; i < src.types.length; i++) {
+            if (src.types[i] == Type.INT_TYPE) {
+                int[] from = src.ints[i], to = ints[firstCol + i];
+                for (int k = 0; k < n; k++)
+                    to[k] = from[rows[k]];
+                copyNulls(firstCol + i, src.nulls[i], rows, 0, n);
+            } else {
+                String[] from = src.strings[i], to = strings[firstCol + i];
+                for (int k = 0; k < n; k++)
+                    to[k] = from[rows[k]];
+            }
+        }
+        size = Math.max(size, n);
+    }
+
+    /*
+     * 把空值标记from复制到本批col列的第to行起的n行，rows不为null时第k行取from[rows[k]]；
+     * from为null表示这些行都不是空值
+     */
+    private void copyNulls(int col, boolean[] from, int[] rows, int to, int n) {
+        if (from == null) {
+            if (nulls[col] != null)
+                Arrays.fill(nulls[col], to, to + n, false);
+            return;
+        }
+        if (nulls[col] == null)
+            nulls[col] = new boolean[capacity];
+        boolean[] v = nulls[col];
+        if (rows == null) {
+            System.arraycopy(from, 0, v, to, n);
+        } else {
+            for (int k = 0; k < n; k++)
+                v[to + k] = from[rows[k]];
+        }
+    }
+
+    /**
+     * Records that row is stored in slot of page pid.
+     */
+    public void setRecordId(int row, PageId pid, int slot) {
+        ensureRecordIds();
+        pageIds[row] = pid;
+        slots[row] = slot;
+    }
+
+    private void ensureRecordIds() {
+        if (pageIds == null) {
+            pageIds = new PageId[capacity];
+            slots = new int[capacity];
+        }
+    }
+
+    /**
+     * @return the RecordId of row, or null if it has none
+     */
+    public RecordId getRecordId(int row) {
+        if (pageIds == null || pageIds[row] == null)
+            return null;
+        return new RecordId(pageIds[row], slots[row]);
+    }
+
+    /**
+     * Keeps only the rows sel[0], ..., sel[n - 1], which must be in
+     * ascending order, and moves them to the front of the batch.
+     */
+    public void select(int[] sel, int n) {
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == Type.INT_TYPE) {
+                int[] v = ints[i];
+                for (int k = 0; k < n; k++)
+                    v[k] = v[sel[k]];
+                boolean[] z = nulls[i];
+                if (z != null) {
+                    for (int k = 0; k < n; k++)
+                        z[k] = z[sel[k]];
+                }
+            } else {
+                String[] v = strings[i];
+                for (int k = 0; k < n; k++)
+                    v[k] = v[sel[k]];
+            }
+        }
+        if (pageIds != null) {
+            for (int k = 0; k < n; k++) {
+                pageIds[k] = pageIds[sel[k]];
+                slots[k] = slots[sel[k]];
+            }
+        }
+        size = n;
+    }
+
+    /**
+     * Returns a batch with the rows of this batch and the given columns of
+     * it, described by td. The column vectors are shared with this batch, so
+     * this batch must not be used afterwards.
+     *
+     * @param td the TupleDesc of the result, with one field per entry of fields
+     * @param fields the columns of this batch to keep, in their new order
+     */
+    public TupleBatch project(TupleDesc td, int[] fields) {
+        Type[] t = new Type[fields.length];
+        int[][] is = new int[fields.length][];
+        String[][] ss = new String[fields.length][];
+        boolean[][] zs = new boolean[fields.length][];
+        boolean[] used = new boolean[types.length];
+        for (int i = 0; i < fields.length; i++) {
+            int f = fields[i];
+            t[i] = types[f];
+            // 同一列出现两次时复制一份，免得select在同一个向量上做两次
+            if (types[f] == Type.INT_TYPE) {
+                is[i] = used[f] ? ints[f].clone() : ints[f];
+                zs[i] = used[f] && nulls[f] != null ? nulls[f].clone() : nulls[f];
+            } else
+                ss[i] = used[f] ? strings[f].clone() : strings[f];
+            used[f] = true;
+        }
+        return new TupleBatch(td, t, is, ss, zs, pageIds, slots, capacity, size);
+    }
+
+    /**
+     * @return row as a Tuple, including its RecordId
+     */
+    public Tuple getTuple(int row) {
+        CompactTuple t = new CompactTuple(td);
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] != Type.INT_TYPE)
+                t.setString(i, strings[i][row]);
+            else if (!isNull(row, i))
+                t.setInt(i, ints[i][row]);
+        }
+        t.setRecordId(getRecordId(row));
+        return t;
+    }
+}
@@ -0,0 +1,101 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * 2Q replacement (Johnson and Shasha). Newly loaded pages enter the FIFO
+ * queue A1in; re-accessing them there does not promote them. When a page is
+ * evicted from A1in its id is remembered in the ghost queue A1out, and if it
+ * is loaded again while still remembered it goes straight to the LRU queue
+ * Am. Pages touched only once, like those of a large scan, therefore never
+ * displace the pages in Am. All operations are O(1).
+ */
+public class TwoQueueReplacementPolicy implements ReplacementPolicy {
+
+    private final int kin;
+    private final int kout;
+
+    /* 首次装入的页，FIFO */
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<>();
+    /* 从A1in淘汰的页id（不含页面），FIFO */
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<>();
+    /* 热页，最近访问位于尾部 */
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<>();
+
+    /**
+     * @param capacity the number of pages the segment is expected to hold;
+     *                 A1in gets a quarter of it and A1out remembers half of it
+     */
+    public TwoQueueReplacementPolicy(int capacity) {
+        this.kin = Math.max(1, capacity / 4);
+        this.kout = Math.max(1, capacity / 2);
+    }
+
+    public void recordAccess(PageId pid) {
+        if (am.remove(pid))
+            am.add(pid);
+        // A1in中的页被再次访问时不移动
+    }
+
+    public void recordInsert(PageId pid) {
+        if (am.contains(pid) || a1in.contains(pid)) {
+            recordAccess(pid);
+            return;
+        }
+        if (a1out.remove(pid)) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public void remove(PageId pid) {
+        a1in.remove(pid);
+        am.remove(pid);
+    }
+
+    public PageId evict(Predicate<PageId> evictable) {
+        PageId victim = null;
+        if (a1in.size() > kin || am.isEmpty()) {
+            victim = evictFrom(a1in, evictable);
+            if (victim != null) {
+                remember(victim);
+                return victim;
+            }
+        }
+        victim = evictFrom(am, evictable);
+        if (victim == null) {
+            victim = evictFrom(a1in, evictable);
+            if (victim != null)
+                remember(victim);
+        }
+        return victim;
+    }
+
+    public int size() {
+        return a1in.size() + am.size();
+    }
+
+    private void remember(PageId pid) {
+        a1out.add(pid);
+        if (a1out.size() > kout) {
+            Iterator<PageId> it = a1out.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static PageId evictFrom(LinkedHashSet<PageId> queue, Predicate<PageId> evictable) {
+        Iterator<PageId> it = queue.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.test(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+}
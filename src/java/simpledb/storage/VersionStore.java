@@ -0,0 +1,201 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * VersionStore lets read-only transactions read a snapshot of the database
+ * without taking locks.
+ * <p>
+ * Every commit gets a timestamp from a clock that only advances once all
+ * pages of the commit are written and their before images updated, so that
+ * a snapshot taken at timestamp s sees exactly the commits up to s. The
+ * pages of commits are written one commit at a time, but a commit is only
+ * published once its commit record is durable, so several commits may wait
+ * to be published at once; the clock then advances over them in timestamp
+ * order. A snapshot does not start while a commit is waiting to be
+ * published. When a commit
+ * with timestamp t overwrites the committed version of a page while
+ * snapshots are running, that version (the before image of the page) is
+ * kept here, tagged with t: it is the version that snapshots older than t
+ * must read. Without running snapshots nothing needs to be kept.
+ * <p>
+ * A snapshot first takes the current committed version of the page, and
+ * then looks here for a version overwritten after the snapshot was taken;
+ * since a commit keeps the old version before it writes the page, whichever
+ * version the snapshot took is replaced by the right one if a commit got in
+ * between.
+ * <p>
+ * Versions that no running snapshot can need any more, because they were
+ * overwritten before the oldest snapshot was taken, are dropped whenever a
+ * commit is published or a snapshot ends.
+ */
+class VersionStore {
+
+    /* 一个被覆盖的已提交版本，是时间戳早于supersededAt的快照应读到的版本 */
+    private static class Version {
+        final PageId pid;
+        final long supersededAt;
+        final Page image;
+
+        Version(PageId pid, long supersededAt, Page image) {
+            this.pid = pid;
+            this.supersededAt = supersededAt;
+            this.image = image;
+        }
+    }
+
+    /* 已发布的最新提交时间戳，快照开始时取这个值 */
+    private volatile long clock = 0;
+    /* 已分配的最大提交时间戳、开始了还没发布的提交个数、已发布但更早的提交还没发布的时间戳，
+     * 以及正在写页的提交是否要保存旧版本；都由this保护 */
+    private long issued = 0;
+    private int committing = 0;
+    private final Set<Long> published = new HashSet<>();
+    private boolean keepVersions = false;
+    /* 正在运行的快照事务及其时间戳 */
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    /* 每页被覆盖的版本，按时间戳从早到晚；以下两个结构都由this保护 */
+    private final Map<PageId, ArrayDeque<Version>> versions = new HashMap<>();
+    /* 所有版本按时间戳从早到晚排列，回收时从队首开始 */
+    private final ArrayDeque<Version> byTime = new ArrayDeque<>();
+
+    /**
+     * Starts a snapshot for tid, which sees all commits published so far.
+     *
+     * @return the timestamp of the snapshot
+     */
+    synchronized long begin(TransactionId tid) {
+        // 等正在发布的提交完成，它开始时没有快照，就不会为这个快照保存旧版本
+        boolean interrupted = false;
+        while (committing > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        long ts = clock;
+        snapshots.put(tid, ts);
+        return ts;
+    }
+
+    /**
+     * @return the timestamp of the snapshot of tid, or null if tid is not a
+     *   snapshot transaction
+     */
+    Long snapshotOf(TransactionId tid) {
+        return snapshots.get(tid);
+    }
+
+    /**
+     * Ends the snapshot of tid, if it has one.
+     *
+     * @return true if tid was a snapshot transaction
+     */
+    synchronized boolean end(TransactionId tid) {
+        if (snapshots.remove(tid) == null)
+            return false;
+        prune();
+        return true;
+    }
+
+    /**
+     * Starts a commit. The pages of commits must be written one commit at a
+     * time, in the order of their timestamps, and every beginCommit must be
+     * followed by {@link #publish(long)}.
+     *
+     * @return the timestamp of the commit
+     */
+    synchronized long beginCommit() {
+        committing++;
+        // 等待发布的提交开始时就没有快照，之后也不会有新快照开始，所以只看现在的快照即可
+        keepVersions = !snapshots.isEmpty();
+        return ++issued;
+    }
+
+    /**
+     * @return true if the commit being published must keep the versions it
+     *   overwrites, because snapshots are running
+     */
+    synchronized boolean keepsVersions() {
+        return keepVersions;
+    }
+
+    /**
+     * Keeps before, the committed version of its page that the commit with
+     * timestamp ts overwrites. Must be called before the page is written.
+     */
+    synchronized void supersede(Page before, long ts) {
+        Version version = new Version(before.getId(), ts, before);
+        versions.computeIfAbsent(version.pid, k -> new ArrayDeque<>()).addLast(version);
+        byTime.addLast(version);
+    }
+
+    /**
+     * Makes the commit with timestamp ts visible to snapshots taken from now
+     * on, once all its pages are written and it is durable. The commit only
+     * becomes visible when all commits with smaller timestamps are published
+     * too.
+     */
+    synchronized void publish(long ts) {
+        published.add(ts);
+        while (published.remove(clock + 1))
+            clock++;
+        committing--;
+        notifyAll();
+        prune();
+    }
+
+    /**
+     * Reads the version of pid that the snapshot with timestamp ts sees.
+     *
+     * @param committed reads the current committed version of the page
+     * @return a private copy of the page
+     */
+    Page read(PageId pid, long ts, Supplier<Page> committed) {
+        // 先读当前版本再查历史版本，读的过程中提交的版本一定已经保存在这里
+        Page page = committed.get();
+        synchronized (this) {
+            ArrayDeque<Version> chain = versions.get(pid);
+            if (chain != null) {
+                for (Version version : chain) {
+                    if (version.supersededAt > ts)
+                        // 同一个版本可能同时被多个快照读取，每次给出一个副本
+                        return version.image.getBeforeImage();
+                }
+            }
+        }
+        return page;
+    }
+
+    /**
+     * @return the number of overwritten versions kept
+     */
+    synchronized int size() {
+        return byTime.size();
+    }
+
+    /* 丢弃最早的快照也用不到的版本：它们在所有快照开始之前就已被覆盖 */
+    private void prune() {
+        long oldest = clock;
+        for (long ts : snapshots.values())
+            oldest = Math.min(oldest, ts);
+        while (!byTime.isEmpty() && byTime.peekFirst().supersededAt <= oldest) {
+            Version version = byTime.pollFirst();
+            ArrayDeque<Version> chain = versions.get(version.pid);
+            chain.pollFirst();
+            if (chain.isEmpty())
+                versions.remove(version.pid);
+        }
+    }
+}
@@ -11,15 +11,31 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly if true, the transaction reads a snapshot of the
+     *   database as of its start without taking locks, and cannot write
+     * @see simpledb.storage.BufferPool#beginSnapshot
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly) {
+            // 只读事务不写日志，也没有要回滚的修改
+            Database.getBufferPool().beginSnapshot(tid);
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -31,6 +47,10 @@ public class Transaction {
         return tid;
     }
 
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     /** Finish the transaction */
     public void commit() throws IOException {
         transactionComplete(false);
@@ -44,19 +64,21 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
+        if (started && readOnly) {
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+            return;
+        }
+
         if (started) {
             //write abort log record and rollback transaction
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } 
 
-            // Release locks and flush pages if needed
-            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-
-            // write commit log record
-            if (!abort) {
-            	Database.getLogFile().logCommit(tid);
-            }
+            // Flush pages if needed, write and force the commit log record,
+            // then release locks
+            Database.getBufferPool().transactionComplete(tid, !abort);
 
             //setting this here means we could possibly write multiple abort records -- OK?
             started = false;
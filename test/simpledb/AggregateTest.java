@@ -13,9 +13,15 @@ import simpledb.common.Utility;
 import simpledb.execution.Aggregate;
 import simpledb.execution.Aggregator;
 import simpledb.execution.OpIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
 import simpledb.systemtest.SimpleDbTestBase;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class AggregateTest extends SimpleDbTestBase {
 
   final int width1 = 2;
@@ -191,6 +197,30 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for Aggregate.getNext() over a child whose tuples leave an
+   * INT field that is not aggregated unset
+   */
+  @Test public void unsetIntField() throws Exception {
+    TupleDesc td = Utility.getTupleDesc(3);
+    List<Tuple> tuples = new ArrayList<>();
+    int[] values = { 1, 2, 1, 4, 3, 6 };
+    for (int i = 0; i < values.length; i += 2) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(values[i]));
+      t.setField(1, new IntField(values[i + 1]));
+      tuples.add(t);
+    }
+    Aggregate op = new Aggregate(new TupleIterator(td, tuples), 1, 0,
+        Aggregator.Op.SUM);
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(width1,
+        new int[] { 1, 6,
+                    3, 6 });
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+  }
+
   /**
    * JUnit suite target
    */
@@ -140,6 +140,53 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * Unit test for BufferPool.transactionComplete(): committing writes the
+     * pages the transaction dirtied and marks them clean, and leaves pages
+     * that other transactions dirtied alone.
+     */
+    @Test public void commitFlushesOnlyOwnPages() throws Exception {
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        TransactionId tid2 = new TransactionId();
+        Tuple t = Utility.getHeapTuple(1, 2);
+        Database.getBufferPool().insertTuple(tid, empty.getId(), t);
+        Tuple t2 = Utility.getHeapTuple(2, 2);
+        Database.getBufferPool().insertTuple(tid2, other.getId(), t2);
+        Database.getBufferPool().transactionComplete(tid, true);
+
+        PageId pid = t.getRecordId().getPageId();
+        assertEquals(503, ((HeapPage) empty.readPage(pid)).getNumEmptySlots());
+        assertNull(Database.getBufferPool().getPage(tid2, pid, Permissions.READ_ONLY).isDirty());
+
+        PageId pid2 = t2.getRecordId().getPageId();
+        assertEquals(tid2, Database.getBufferPool().getPage(tid2, pid2, Permissions.READ_ONLY).isDirty());
+        assertEquals(504 - 10, ((HeapPage) other.readPage(pid2)).getNumEmptySlots());
+        Database.getBufferPool().transactionComplete(tid2, false);
+    }
+
+    /**
+     * Unit test for BufferPool.setForceOnCommit(false): commit does not write
+     * the pages of the transaction, which are written when they are evicted.
+     */
+    @Test public void noForceCommit() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        BufferPool bp = Database.resetBufferPool(1);
+        bp.setForceOnCommit(false);
+        assertFalse(bp.isForceOnCommit());
+
+        PageId p0 = new HeapPageId(hf.getId(), 0);
+        Tuple t = ((HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY)).iterator().next();
+        bp.deleteTuple(tid, t);
+        bp.transactionComplete(tid, true);
+        assertEquals(0, ((HeapPage) hf.readPage(p0)).getNumEmptySlots());
+
+        // reading the other page evicts p0, which writes it
+        TransactionId tid2 = new TransactionId();
+        bp.getPage(tid2, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+        assertEquals(1, ((HeapPage) hf.readPage(p0)).getNumEmptySlots());
+        bp.transactionComplete(tid2);
+    }
+
     /**
      * JUnit suite target
      */
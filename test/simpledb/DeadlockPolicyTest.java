@@ -0,0 +1,208 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DeadlockPolicy;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class DeadlockPolicyTest extends TestUtil.CreateHeapFile {
+  private PageId p0;
+  private PageId p1;
+  /* tid1比tid2老 */
+  private TransactionId tid1, tid2;
+
+  /** Time to wait before checking the state of lock contention, in ms */
+  private static final int TIMEOUT = 100;
+
+  private BufferPool bp;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    // create a new empty HeapFile and populate it with three pages.
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 1025; ++i) {
+      empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+    }
+    assertEquals(3, empty.numPages());
+
+    this.p0 = new HeapPageId(empty.getId(), 0);
+    this.p1 = new HeapPageId(empty.getId(), 1);
+    PageId p2 = new HeapPageId(empty.getId(), 2);
+    this.tid1 = new TransactionId();
+    this.tid2 = new TransactionId();
+
+    bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.getPage(tid, p1, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.getPage(tid, p2, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.flushAllPages();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+  }
+
+  private TestUtil.LockGrabber startGrabber(TransactionId tid, PageId pid, Permissions perm) {
+    TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid, pid, perm);
+    t.start();
+    return t;
+  }
+
+  private void assertAborts(TransactionId tid, PageId pid, Permissions perm) throws Exception {
+    try {
+      bp.getPage(tid, pid, perm);
+      fail("expected TransactionAbortedException");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+  }
+
+  /**
+   * The policy can be read back, and is DETECT by default.
+   */
+  @Test public void defaultPolicy() {
+    assertEquals(DeadlockPolicy.DETECT, bp.getDeadlockPolicy());
+    bp.setDeadlockPolicy(DeadlockPolicy.WOUND_WAIT);
+    assertEquals(DeadlockPolicy.WOUND_WAIT, bp.getDeadlockPolicy());
+  }
+
+  /**
+   * Under NO_WAIT, any conflicting request fails at once, and requests
+   * that do not conflict are granted.
+   */
+  @Test public void noWait() throws Exception {
+    bp.setDeadlockPolicy(DeadlockPolicy.NO_WAIT);
+    bp.getPage(tid2, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    assertAborts(tid1, p0, Permissions.READ_WRITE);
+    bp.transactionComplete(tid1, false);
+
+    bp.getPage(tid2, p0, Permissions.READ_WRITE);
+    assertAborts(tid1, p0, Permissions.READ_ONLY);
+  }
+
+  /**
+   * Under WAIT_DIE, a younger transaction dies instead of waiting for an
+   * older one.
+   */
+  @Test public void waitDieYoungerDies() throws Exception {
+    bp.setDeadlockPolicy(DeadlockPolicy.WAIT_DIE);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    assertAborts(tid2, p0, Permissions.READ_ONLY);
+  }
+
+  /**
+   * Under WAIT_DIE, an older transaction waits for a younger one, and gets
+   * the lock when it is released.
+   */
+  @Test public void waitDieOlderWaits() throws Exception {
+    bp.setDeadlockPolicy(DeadlockPolicy.WAIT_DIE);
+    bp.getPage(tid2, p0, Permissions.READ_WRITE);
+    TestUtil.LockGrabber t = startGrabber(tid1, p0, Permissions.READ_WRITE);
+    Thread.sleep(TIMEOUT);
+    assertEquals(false, t.acquired());
+    assertNull(t.getError());
+
+    bp.transactionComplete(tid2);
+    t.join(10 * TIMEOUT);
+    assertEquals(true, t.acquired());
+  }
+
+  /**
+   * Under WAIT_DIE, of two transactions sharing a page, only the older one
+   * may wait to upgrade its lock.
+   */
+  @Test public void waitDieUpgrade() throws Exception {
+    bp.setDeadlockPolicy(DeadlockPolicy.WAIT_DIE);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid2, p0, Permissions.READ_ONLY);
+    assertAborts(tid2, p0, Permissions.READ_WRITE);
+
+    TestUtil.LockGrabber t = startGrabber(tid1, p0, Permissions.READ_WRITE);
+    Thread.sleep(TIMEOUT);
+    assertEquals(false, t.acquired());
+    bp.transactionComplete(tid2, false);
+    t.join(10 * TIMEOUT);
+    assertEquals(true, t.acquired());
+  }
+
+  /**
+   * Under WOUND_WAIT, a younger transaction waits for an older one.
+   */
+  @Test public void woundWaitYoungerWaits() throws Exception {
+    bp.setDeadlockPolicy(DeadlockPolicy.WOUND_WAIT);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    TestUtil.LockGrabber t = startGrabber(tid2, p0, Permissions.READ_ONLY);
+    Thread.sleep(TIMEOUT);
+    assertEquals(false, t.acquired());
+    assertNull(t.getError());
+
+    bp.transactionComplete(tid1);
+    t.join(10 * TIMEOUT);
+    assertEquals(true, t.acquired());
+  }
+
+  /**
+   * Under WOUND_WAIT, an older transaction wounds a younger holder: the
+   * next request of the younger transaction fails, and the older one gets
+   * the lock once the younger one has aborted.
+   */
+  @Test public void woundWaitWoundsHolder() throws Exception {
+    bp.setDeadlockPolicy(DeadlockPolicy.WOUND_WAIT);
+    bp.getPage(tid2, p0, Permissions.READ_WRITE);
+    TestUtil.LockGrabber t = startGrabber(tid1, p0, Permissions.READ_WRITE);
+    Thread.sleep(TIMEOUT);
+    assertEquals(false, t.acquired());
+
+    // tid2已被伤害，即使请求不冲突的锁也会失败
+    assertAborts(tid2, p1, Permissions.READ_ONLY);
+    bp.transactionComplete(tid2, false);
+    t.join(10 * TIMEOUT);
+    assertEquals(true, t.acquired());
+
+    // tid2结束后不再处于被伤害的状态
+    bp.getPage(tid2, p1, Permissions.READ_ONLY);
+  }
+
+  /**
+   * Under WOUND_WAIT, the deadlock of DeadlockTest.testReadWriteDeadlock
+   * is broken by aborting the waiting request of the younger transaction.
+   */
+  @Test public void woundWaitWoundsWaiter() throws Exception {
+    bp.setDeadlockPolicy(DeadlockPolicy.WOUND_WAIT);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid2, p1, Permissions.READ_ONLY);
+    TestUtil.LockGrabber young = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(TIMEOUT);
+    assertEquals(false, young.acquired());
+
+    TestUtil.LockGrabber old = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    young.join(10 * TIMEOUT);
+    assertNotNull(young.getError());
+    // LockGrabber在出错后中止tid2，释放p1
+    old.join(10 * TIMEOUT);
+    assertEquals(true, old.acquired());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(DeadlockPolicyTest.class);
+  }
+
+}
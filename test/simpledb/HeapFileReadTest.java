@@ -81,6 +81,66 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() from several threads at once: the
+     * file's channel is shared, every page must still come back intact
+     */
+    @Test
+    public void readPageConcurrently() throws Exception {
+        HeapFile bigFile = SystemTestUtil.createRandomHeapFile(2, 504 * 8, null, null);
+        int pages = bigFile.numPages();
+        byte[][] expected = new byte[pages][];
+        for (int i = 0; i < pages; i++)
+            expected[i] = bigFile.readPage(new HeapPageId(bigFile.getId(), i)).getPageData();
+
+        Thread[] readers = new Thread[4];
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                try {
+                    for (int pass = 0; pass < 20; pass++)
+                        for (int i = pages - 1; i >= 0; i--)
+                            assertArrayEquals(expected[i],
+                                    bigFile.readPage(new HeapPageId(bigFile.getId(), i)).getPageData());
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            readers[r].start();
+        }
+        for (Thread t : readers)
+            t.join();
+        assertEquals(Collections.emptyList(), failures);
+    }
+
+    /**
+     * Unit test for HeapFile.readPage() in memory-mapped mode: pages read
+     * through the mapping are the same as pages read through the channel,
+     * and pages written later are seen through the mapping too, without
+     * changing pages read before the write
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapFile bigFile = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        HeapFile mapped = Utility.openMappedHeapFile(2, bigFile.getFile());
+        assertTrue(mapped.isMemoryMapped());
+        assertEquals(bigFile.numPages(), mapped.numPages());
+        for (int i = 0; i < bigFile.numPages(); i++)
+            assertArrayEquals(bigFile.readPage(new HeapPageId(bigFile.getId(), i)).getPageData(),
+                    mapped.readPage(new HeapPageId(mapped.getId(), i)).getPageData());
+
+        HeapPage page = (HeapPage) mapped.readPage(new HeapPageId(mapped.getId(), 1));
+        HeapPage old = (HeapPage) mapped.readPage(new HeapPageId(mapped.getId(), 1));
+        byte[] oldData = old.getPageData();
+        Tuple t = page.iterator().next();
+        page.deleteTuple(t);
+        mapped.writePage(page);
+        assertArrayEquals(page.getPageData(),
+                mapped.readPage(new HeapPageId(mapped.getId(), 1)).getPageData());
+        assertArrayEquals(oldData, old.getPageData());
+        assertEquals(t.getField(0), old.iterator().next().getField(0));
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -7,6 +7,7 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
@@ -51,6 +52,83 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for the free-space map: once a page is known to be full,
+     * inserts no longer lock it, also after the file is reopened
+     */
+    @Test public void addTupleSkipsFullPages() throws Exception {
+        HeapFile full = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        full.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        assertEquals(5, full.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+
+        TransactionId tid2 = new TransactionId();
+        full.insertTuple(tid2, Utility.getHeapTuple(2, 2));
+        for (int i = 0; i < 4; i++)
+            assertFalse(Database.getBufferPool().holdsLock(tid2, new HeapPageId(full.getId(), i)));
+        assertTrue(Database.getBufferPool().holdsLock(tid2, new HeapPageId(full.getId(), 4)));
+        Database.getBufferPool().transactionComplete(tid2);
+
+        // the map survives reopening the file
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapFile reopened = Utility.openHeapFile(2, full.getFile());
+        TransactionId tid3 = new TransactionId();
+        reopened.insertTuple(tid3, Utility.getHeapTuple(3, 2));
+        for (int i = 0; i < 4; i++)
+            assertFalse(Database.getBufferPool().holdsLock(tid3, new HeapPageId(reopened.getId(), i)));
+        Database.getBufferPool().transactionComplete(tid3);
+
+        // a deleted tuple makes its page a candidate again
+        TransactionId tid4 = new TransactionId();
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid4,
+                new HeapPageId(reopened.getId(), 2), Permissions.READ_WRITE);
+        Tuple victim = page.iterator().next();
+        reopened.deleteTuple(tid4, victim);
+        reopened.insertTuple(tid4, Utility.getHeapTuple(4, 2));
+        assertEquals(0, page.getNumEmptySlots());
+        Database.getBufferPool().transactionComplete(tid4);
+    }
+
+    /**
+     * Unit test for the free-space map: an insert that fills a page and
+     * aborts leaves the page a candidate for the next insert
+     */
+    @Test public void abortedInsertKeepsPageCandidate() throws Exception {
+        HeapFile file = SystemTestUtil.createRandomHeapFile(2, 503, null, null);
+        TransactionId tid1 = new TransactionId();
+        Database.getBufferPool().insertTuple(tid1, file.getId(), Utility.getHeapTuple(1, 2));
+        Database.getBufferPool().transactionComplete(tid1, false);
+
+        TransactionId tid2 = new TransactionId();
+        Database.getBufferPool().insertTuple(tid2, file.getId(), Utility.getHeapTuple(2, 2));
+        assertEquals(1, file.numPages());
+        assertTrue(Database.getBufferPool().holdsLock(tid2, new HeapPageId(file.getId(), 0)));
+        Database.getBufferPool().transactionComplete(tid2, false);
+    }
+
+    /**
+     * Unit test for the free-space map: a page filled by an uncommitted
+     * insert is not marked full on disk when another page's bit is written
+     */
+    @Test public void uncommittedFullPageNotPersisted() throws Exception {
+        HeapFile file = SystemTestUtil.createRandomHeapFile(2, 503, null, null);
+        TransactionId tid1 = new TransactionId();
+        Database.getBufferPool().insertTuple(tid1, file.getId(), Utility.getHeapTuple(1, 2));
+        // page 0 looks full, so this insert appends page 1 and writes its bit
+        TransactionId tid2 = new TransactionId();
+        Database.getBufferPool().insertTuple(tid2, file.getId(), Utility.getHeapTuple(2, 2));
+        assertEquals(2, file.numPages());
+        Database.getBufferPool().transactionComplete(tid1, false);
+        Database.getBufferPool().transactionComplete(tid2);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapFile reopened = Utility.openHeapFile(2, file.getFile());
+        TransactionId tid3 = new TransactionId();
+        Database.getBufferPool().insertTuple(tid3, reopened.getId(), Utility.getHeapTuple(3, 2));
+        assertTrue(Database.getBufferPool().holdsLock(tid3, new HeapPageId(reopened.getId(), 0)));
+        Database.getBufferPool().transactionComplete(tid3);
+    }
+
     @Test
     public void testAlternateEmptyAndFullPagesThenIterate() throws Exception {
         // Create HeapFile/Table
@@ -102,6 +102,27 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for Tuple.getInt() on the tuples of a page, which read the
+     * page data directly
+     */
+    @Test public void testGetInt() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator();
+
+        int row = 0;
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            assertEquals(EXAMPLE_VALUES[row][0], tup.getInt(0));
+            assertEquals(EXAMPLE_VALUES[row][1], tup.getInt(1));
+            // after decoding the field, and after changing it
+            assertEquals(EXAMPLE_VALUES[row][1], ((IntField) tup.getField(1)).getValue());
+            tup.setField(1, new IntField(-row));
+            assertEquals(-row, tup.getInt(1));
+            row++;
+        }
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
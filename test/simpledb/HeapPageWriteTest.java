@@ -14,6 +14,7 @@ import simpledb.common.DbException;
 import simpledb.common.Utility;
 import simpledb.storage.HeapPage;
 import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
@@ -93,6 +94,26 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
     /**
      * Unit test for HeapPage.deleteTuple() with false tuples
      */
+    /**
+     * Tuples on a page are views over the page data: a field set on one of
+     * them is written out with the page, untouched tuples come back as is
+     */
+    @Test public void setFieldOnPageTuple() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator();
+        Tuple first = it.next();
+        Tuple second = it.next();
+        first.setField(1, new IntField(-1));
+
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        it = copy.iterator();
+        Tuple firstCopy = it.next();
+        assertEquals(first.getField(0), firstCopy.getField(0));
+        assertEquals(new IntField(-1), firstCopy.getField(1));
+        assertTrue(TestUtil.compareTuples(second, it.next()));
+        assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+    }
+
     @Test(expected=DbException.class)
         public void deleteNonexistentTuple() throws Exception {
         HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
@@ -0,0 +1,139 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.transaction.TransactionId;
+
+public class LockEscalationTest extends TestUtil.CreateHeapFile {
+  private static final int PAGES = 8;
+  private static final int THRESHOLD = 3;
+
+  private PageId[] pages;
+  private TransactionId tid1, tid2;
+
+  /** Time to wait before checking the state of lock contention, in ms */
+  private static final int TIMEOUT = 100;
+
+  private BufferPool bp;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    // create a new empty HeapFile with PAGES full pages
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 504 * PAGES; ++i) {
+      empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+    }
+    assertEquals(PAGES, empty.numPages());
+    bp.flushAllPages();
+
+    pages = new PageId[PAGES];
+    for (int i = 0; i < PAGES; i++)
+      pages[i] = new HeapPageId(empty.getId(), i);
+    this.tid1 = new TransactionId();
+    this.tid2 = new TransactionId();
+
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    bp.setLockEscalationThreshold(THRESHOLD);
+  }
+
+  /**
+   * Tries to grab a lock for tid in a new thread and checks whether it got
+   * it within TIMEOUT. A thread that is still waiting is interrupted, which
+   * aborts tid, and joined before the test goes on.
+   */
+  private void grabLock(TransactionId tid, PageId pid, Permissions perm,
+      boolean expected) throws Exception {
+    TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid, pid, perm);
+    t.start();
+    t.join(TIMEOUT);
+    assertEquals(expected, t.acquired());
+    t.interrupt();
+    t.join();
+  }
+
+  /**
+   * Reading THRESHOLD pages escalates to a shared table lock, which covers
+   * the other pages of the table, lets other readers in and keeps writers
+   * out.
+   */
+  @Test public void escalateShared() throws Exception {
+    assertEquals(THRESHOLD, bp.getLockEscalationThreshold());
+    for (int i = 0; i < THRESHOLD - 1; i++)
+      bp.getPage(tid1, pages[i], Permissions.READ_ONLY);
+    assertFalse(bp.holdsLock(tid1, pages[PAGES - 1]));
+    grabLock(tid2, pages[PAGES - 1], Permissions.READ_WRITE, true);
+    bp.transactionComplete(tid2, false);
+
+    bp.getPage(tid1, pages[THRESHOLD - 1], Permissions.READ_ONLY);
+    assertTrue(bp.holdsLock(tid1, pages[PAGES - 1]));
+    grabLock(tid2, pages[PAGES - 1], Permissions.READ_ONLY, true);
+    grabLock(tid2, pages[PAGES - 1], Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * If one of the page locks is exclusive, the table lock is exclusive too.
+   */
+  @Test public void escalateExclusive() throws Exception {
+    bp.getPage(tid1, pages[0], Permissions.READ_WRITE);
+    for (int i = 1; i < THRESHOLD; i++)
+      bp.getPage(tid1, pages[i], Permissions.READ_ONLY);
+    assertTrue(bp.holdsLock(tid1, pages[PAGES - 1]));
+    grabLock(tid2, pages[PAGES - 1], Permissions.READ_ONLY, false);
+
+    // the table lock goes away with the transaction
+    bp.transactionComplete(tid1);
+    grabLock(tid2, pages[PAGES - 1], Permissions.READ_WRITE, true);
+  }
+
+  /**
+   * Escalation does not wait for a conflicting intention lock; it is tried
+   * again after another THRESHOLD pages.
+   */
+  @Test public void escalationRetried() throws Exception {
+    bp.getPage(tid2, pages[PAGES - 1], Permissions.READ_WRITE);
+    for (int i = 0; i < THRESHOLD; i++)
+      bp.getPage(tid1, pages[i], Permissions.READ_ONLY);
+    assertFalse(bp.holdsLock(tid1, pages[PAGES - 2]));
+    grabLock(tid2, pages[PAGES - 2], Permissions.READ_WRITE, true);
+
+    bp.transactionComplete(tid2);
+    for (int i = THRESHOLD; i < 2 * THRESHOLD; i++)
+      bp.getPage(tid1, pages[i], Permissions.READ_ONLY);
+    assertTrue(bp.holdsLock(tid1, pages[PAGES - 1]));
+  }
+
+  /**
+   * A threshold of 0 turns escalation off.
+   */
+  @Test public void escalationOff() throws Exception {
+    bp.setLockEscalationThreshold(0);
+    for (int i = 0; i < PAGES - 1; i++)
+      bp.getPage(tid1, pages[i], Permissions.READ_ONLY);
+    assertFalse(bp.holdsLock(tid1, pages[PAGES - 1]));
+    grabLock(tid2, pages[PAGES - 1], Permissions.READ_WRITE, true);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LockEscalationTest.class);
+  }
+
+}
@@ -3,7 +3,9 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -193,6 +195,58 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * Asking for a read lock on a page that is already write-locked must not
+   * downgrade the write lock.
+   */
+  @Test public void readLockKeepsWriteLock() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    grabLock(tid2, p0, Permissions.READ_ONLY, false);
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A transaction that waits for a lock without being part of a deadlock
+   * is neither aborted nor given up on, however long it waits, and gets
+   * the lock as soon as it is released.
+   */
+  @Test public void waitWithoutDeadlock() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    t.start();
+
+    Thread.sleep(10 * TIMEOUT);
+    assertEquals(false, t.acquired());
+    assertNull(t.getError());
+
+    bp.transactionComplete(tid1);
+    t.join(10 * TIMEOUT);
+    assertEquals(true, t.acquired());
+    assertNull(t.getError());
+  }
+
+  /**
+   * Unit test for BufferPool.transactionComplete() assuming locking.
+   * Completing a transaction releases exactly its own locks, including
+   * after some of them were released one by one.
+   */
+  @Test public void completeReleasesOwnLocks() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    bp.getPage(tid2, p1, Permissions.READ_ONLY);
+    bp.unsafeReleasePage(tid1, p1);
+    bp.transactionComplete(tid1);
+
+    assertFalse(bp.holdsLock(tid1, p0));
+    assertFalse(bp.holdsLock(tid1, p1));
+    assertTrue(bp.holdsLock(tid2, p1));
+    TransactionId tid3 = new TransactionId();
+    grabLock(tid3, p0, Permissions.READ_WRITE, true);
+    grabLock(tid3, p1, Permissions.READ_WRITE, false);
+  }
+
   /**
    * JUnit suite target
    */
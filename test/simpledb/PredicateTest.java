@@ -4,7 +4,10 @@ import org.junit.Test;
 
 import simpledb.common.Utility;
 import simpledb.execution.Predicate;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
 import junit.framework.JUnit4TestAdapter;
@@ -57,6 +60,18 @@ public class PredicateTest extends SimpleDbTestBase{
     }
   }
 
+  /**
+   * Unit test for Predicate.filter() on a batch: null values match nothing
+   */
+  @Test public void filterBatchWithNulls() {
+    TupleBatch batch = new TupleBatch(Utility.getTupleDesc(1));
+    for (int i = 0; i < 4; i++)
+      batch.add(i % 2 == 0 ? Utility.getHeapTuple(0) : new Tuple(Utility.getTupleDesc(1)));
+    new Predicate(0, Predicate.Op.LESS_THAN_OR_EQ, TestUtil.getField(0)).filter(batch);
+    assertEquals(2, batch.size());
+    assertFalse(batch.hasNulls(0));
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,127 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private HeapPageId[] pids;
+
+    @Before public void createPids() {
+        pids = new HeapPageId[8];
+        for (int i = 0; i < pids.length; i++)
+            pids[i] = new HeapPageId(-1, i);
+    }
+
+    /**
+     * Unit test for LruReplacementPolicy: the least recently used page goes first
+     */
+    @Test public void lru() {
+        ReplacementPolicy policy = ReplacementPolicy.Kind.LRU.create(4);
+        policy.recordInsert(pids[0]);
+        policy.recordInsert(pids[1]);
+        policy.recordInsert(pids[2]);
+        policy.recordAccess(pids[0]);
+        assertEquals(pids[1], policy.evict(p -> true));
+        assertEquals(pids[2], policy.evict(p -> true));
+        assertEquals(pids[0], policy.evict(p -> true));
+        assertNull(policy.evict(p -> true));
+    }
+
+    /**
+     * Unit test for ClockReplacementPolicy: referenced pages get a second chance
+     */
+    @Test public void clock() {
+        ReplacementPolicy policy = ReplacementPolicy.Kind.CLOCK.create(4);
+        policy.recordInsert(pids[0]);
+        policy.recordInsert(pids[1]);
+        policy.recordInsert(pids[2]);
+        policy.recordAccess(pids[0]);
+        assertEquals(pids[1], policy.evict(p -> true));
+        policy.recordInsert(pids[3]);
+        assertEquals(pids[2], policy.evict(p -> true));
+        assertEquals(pids[0], policy.evict(p -> true));
+        assertEquals(1, policy.size());
+    }
+
+    /**
+     * Unit test for LruKReplacementPolicy: pages seen once go before pages seen K times
+     */
+    @Test public void lruK() {
+        ReplacementPolicy policy = ReplacementPolicy.Kind.LRU_K.create(4);
+        policy.recordInsert(pids[0]);
+        policy.recordAccess(pids[0]);
+        policy.recordInsert(pids[1]);
+        policy.recordAccess(pids[1]);
+        policy.recordInsert(pids[2]);
+        assertEquals(pids[2], policy.evict(p -> true));
+        policy.recordAccess(pids[0]);
+        policy.recordAccess(pids[0]);
+        assertEquals(pids[1], policy.evict(p -> true));
+        assertEquals(pids[0], policy.evict(p -> true));
+    }
+
+    /**
+     * Unit test for TwoQueueReplacementPolicy: a page reloaded from the ghost
+     * queue outlives pages loaded only once
+     */
+    @Test public void twoQueue() {
+        ReplacementPolicy policy = ReplacementPolicy.Kind.TWO_Q.create(4);
+        policy.recordInsert(pids[0]);
+        assertEquals(pids[0], policy.evict(p -> true));
+        policy.recordInsert(pids[0]);
+        for (int i = 1; i < 4; i++)
+            policy.recordInsert(pids[i]);
+        assertEquals(pids[1], policy.evict(p -> true));
+        assertEquals(pids[2], policy.evict(p -> true));
+        assertEquals(2, policy.size());
+        assertNull(policy.evict(p -> p.equals(pids[1])));
+    }
+
+    /**
+     * Every policy must skip pages that are not evictable
+     */
+    @Test public void skipsUnevictable() {
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+            ReplacementPolicy policy = kind.create(4);
+            for (int i = 0; i < 4; i++)
+                policy.recordInsert(pids[i]);
+            assertEquals(kind.name(), pids[3], policy.evict(p -> p.equals(pids[3])));
+            assertNull(kind.name(), policy.evict(p -> false));
+            policy.remove(pids[0]);
+            assertEquals(kind.name(), 2, policy.size());
+        }
+    }
+
+    /**
+     * The buffer pool works with every policy
+     */
+    @Test public void bufferPoolWithEachPolicy() throws Exception {
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+            BufferPool bp = new BufferPool(4, kind);
+            HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 512 * 10, null, null);
+            TransactionId tid = new TransactionId();
+            for (int pass = 0; pass < 2; pass++)
+                for (int i = 0; i < hf.numPages(); i++)
+                    assertNotNull(bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY));
+            bp.transactionComplete(tid);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
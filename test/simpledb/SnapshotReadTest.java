@@ -0,0 +1,189 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.util.Iterator;
+
+public class SnapshotReadTest extends TestUtil.CreateHeapFile {
+  private static final int TUPLES = 1025;
+
+  private PageId[] pages;
+  private TransactionId writer;
+
+  /** Time to wait before checking the state of lock contention, in ms */
+  private static final int TIMEOUT = 100;
+
+  private BufferPool bp;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    // create a new empty HeapFile and populate it with three pages.
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < TUPLES; ++i) {
+      empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+    }
+    assertEquals(3, empty.numPages());
+
+    pages = new PageId[empty.numPages()];
+    for (int i = 0; i < pages.length; i++) {
+      pages[i] = new HeapPageId(empty.getId(), i);
+      bp.getPage(tid, pages[i], Permissions.READ_WRITE).markDirty(true, tid);
+    }
+    bp.flushAllPages();
+    writer = new TransactionId();
+
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+  }
+
+  /**
+   * @return the number of tuples tid sees in the table
+   */
+  private int countTuples(TransactionId tid) throws Exception {
+    int count = 0;
+    for (PageId pid : pages) {
+      Iterator<Tuple> it = ((HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY)).iterator();
+      while (it.hasNext()) {
+        it.next();
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private void insert(TransactionId tid, int value) throws Exception {
+    bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(value, 2));
+  }
+
+  private TransactionId beginSnapshot() {
+    TransactionId tid = new TransactionId();
+    bp.beginSnapshot(tid);
+    return tid;
+  }
+
+  /**
+   * A snapshot reads pages that a writer holds exclusive locks on, without
+   * waiting and without seeing the uncommitted changes.
+   */
+  @Test public void ignoresUncommittedWrites() throws Exception {
+    insert(writer, -1);
+    TransactionId snapshot = beginSnapshot();
+    for (PageId pid : pages) {
+      TestUtil.LockGrabber t = new TestUtil.LockGrabber(snapshot, pid, Permissions.READ_ONLY);
+      t.start();
+      t.join(10 * TIMEOUT);
+      assertTrue(t.acquired());
+    }
+    assertEquals(TUPLES, countTuples(snapshot));
+    assertEquals(TUPLES + 1, countTuples(writer));
+  }
+
+  /**
+   * A snapshot takes no locks, so writers do not wait for it.
+   */
+  @Test public void writersDoNotWait() throws Exception {
+    TransactionId snapshot = beginSnapshot();
+    countTuples(snapshot);
+    for (PageId pid : pages) {
+      assertFalse(bp.holdsLock(snapshot, pid));
+      TestUtil.LockGrabber t = new TestUtil.LockGrabber(writer, pid, Permissions.READ_WRITE);
+      t.start();
+      t.join(10 * TIMEOUT);
+      assertTrue(t.acquired());
+    }
+  }
+
+  /**
+   * A snapshot keeps seeing the database as of its start after later
+   * transactions commit, while snapshots started after the commit see it.
+   * Old versions are dropped once no snapshot needs them.
+   */
+  @Test public void stableSnapshot() throws Exception {
+    TransactionId before = beginSnapshot();
+    assertEquals(TUPLES, countTuples(before));
+    insert(writer, -1);
+    bp.transactionComplete(writer, true);
+    assertTrue(bp.getSnapshotVersionCount() > 0);
+
+    TransactionId after = beginSnapshot();
+    assertEquals(TUPLES, countTuples(before));
+    assertEquals(TUPLES + 1, countTuples(after));
+
+    bp.transactionComplete(before);
+    assertEquals(0, bp.getSnapshotVersionCount());
+    assertEquals(TUPLES + 1, countTuples(after));
+    bp.transactionComplete(after);
+  }
+
+  /**
+   * Without running snapshots, commits keep no old versions, and aborted
+   * changes are never seen.
+   */
+  @Test public void abortAndCommitWithoutSnapshots() throws Exception {
+    insert(writer, -1);
+    bp.transactionComplete(writer, false);
+    TransactionId tid = new TransactionId();
+    insert(tid, -2);
+    bp.transactionComplete(tid, true);
+    assertEquals(0, bp.getSnapshotVersionCount());
+
+    TransactionId snapshot = beginSnapshot();
+    assertEquals(TUPLES + 1, countTuples(snapshot));
+  }
+
+  /**
+   * A snapshot cannot write.
+   */
+  @Test public void cannotWrite() throws Exception {
+    TransactionId snapshot = beginSnapshot();
+    try {
+      bp.getPage(snapshot, pages[0], Permissions.READ_WRITE);
+      fail("expected DbException");
+    } catch (DbException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Read-only Transactions run as snapshots.
+   */
+  @Test public void readOnlyTransaction() throws Exception {
+    Transaction t = new Transaction(true);
+    t.start();
+    insert(writer, -1);
+    bp.transactionComplete(writer, true);
+    assertEquals(TUPLES, countTuples(t.getId()));
+    t.commit();
+    assertEquals(0, bp.getSnapshotVersionCount());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SnapshotReadTest.class);
+  }
+
+}
@@ -0,0 +1,177 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE});
+
+    private static Tuple tuple(int a, String b, int c) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(a));
+        t.setField(1, new StringField(b, Type.STRING_LEN));
+        t.setField(2, new IntField(c));
+        return t;
+    }
+
+    /**
+     * Unit test for TupleBatch.add() and TupleBatch.getTuple()
+     */
+    @Test public void addAndGet() {
+        TupleBatch batch = new TupleBatch(TD, 4);
+        assertTrue(batch.isEmpty());
+        for (int i = 0; i < 4; i++) {
+            Tuple t = tuple(i, "s" + i, -i);
+            t.setRecordId(new RecordId(new HeapPageId(1, 2), i));
+            batch.add(t);
+        }
+        assertTrue(batch.isFull());
+        assertEquals(4, batch.size());
+        assertArrayEquals(new int[]{0, 1, 2, 3}, batch.getInts(0));
+        assertEquals("s2", batch.getStrings(1)[2]);
+
+        Tuple t = batch.getTuple(3);
+        assertEquals(3, t.getInt(0));
+        assertEquals(new StringField("s3", Type.STRING_LEN), t.getField(1));
+        assertEquals(new IntField(-3), t.getField(2));
+        assertEquals(new RecordId(new HeapPageId(1, 2), 3), t.getRecordId());
+
+        try {
+            batch.addRow();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Unit test for TupleBatch.select()
+     */
+    @Test public void select() {
+        TupleBatch batch = new TupleBatch(TD);
+        for (int i = 0; i < 10; i++)
+            batch.add(tuple(i, "s" + i, i * i));
+        batch.select(new int[]{1, 4, 9}, 3);
+        assertEquals(3, batch.size());
+        assertEquals(4, batch.getTuple(1).getInt(0));
+        assertEquals("s9", batch.getTuple(2).getString(1));
+        assertEquals(81, batch.getTuple(2).getInt(2));
+        assertNull(batch.getRecordId(0));
+    }
+
+    /**
+     * Unit test for TupleBatch.project()
+     */
+    @Test public void project() {
+        TupleBatch batch = new TupleBatch(TD);
+        for (int i = 0; i < 5; i++)
+            batch.add(tuple(i, "s" + i, 10 + i));
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE});
+        TupleBatch projected = batch.project(td, new int[]{2, 1, 2});
+        assertEquals(5, projected.size());
+        assertEquals(14, projected.getTuple(4).getInt(0));
+        assertEquals("s4", projected.getTuple(4).getString(1));
+
+        // The repeated column must not be compacted twice
+        projected.select(new int[]{2, 3}, 2);
+        assertEquals(12, projected.getTuple(0).getInt(0));
+        assertEquals(12, projected.getTuple(0).getInt(2));
+        assertEquals(13, projected.getTuple(1).getInt(2));
+    }
+
+    /**
+     * Unit test for TupleBatch.gather() and TupleBatch.addAll()
+     */
+    @Test public void gatherAndAddAll() {
+        TupleBatch left = new TupleBatch(TD);
+        for (int i = 0; i < 3; i++)
+            left.add(tuple(i, "l" + i, i));
+        TupleBatch all = new TupleBatch(TD, 6);
+        all.addAll(left);
+        all.addAll(left);
+        assertEquals(6, all.size());
+        assertEquals("l2", all.getTuple(5).getString(1));
+
+        TupleDesc combo = TupleDesc.merge(TD, Utility.getTupleDesc(1));
+        TupleBatch right = new TupleBatch(Utility.getTupleDesc(1));
+        for (int i = 0; i < 3; i++)
+            right.add(single(100 + i));
+        TupleBatch out = new TupleBatch(combo);
+        out.gather(0, left, new int[]{2, 2, 0}, 3);
+        out.gather(3, right, new int[]{0, 1, 2}, 3);
+        assertEquals(3, out.size());
+        assertEquals("l2", out.getTuple(1).getString(1));
+        assertEquals(0, out.getTuple(2).getInt(0));
+        assertEquals(102, out.getTuple(2).getInt(3));
+    }
+
+    /**
+     * Unit test for INT_TYPE values that are null, from tuple fields that
+     * were never set
+     */
+    @Test public void nullInts() {
+        TupleBatch batch = new TupleBatch(TD, 8);
+        for (int i = 0; i < 4; i++) {
+            Tuple t = new Tuple(TD);
+            t.setField(1, new StringField("s" + i, Type.STRING_LEN));
+            if (i % 2 == 0)
+                t.setField(2, new IntField(i));
+            batch.add(t);
+        }
+        assertTrue(batch.hasNulls(0));
+        assertTrue(batch.isNull(1, 2));
+        assertFalse(batch.isNull(2, 2));
+        assertNull(batch.getField(3, 0));
+        assertNull(batch.getTuple(1).getField(2));
+        assertEquals(new IntField(2), batch.getTuple(2).getField(2));
+
+        // Rows reused after select() start out not null
+        batch.select(new int[]{1, 2}, 2);
+        assertTrue(batch.isNull(0, 2));
+        assertFalse(batch.isNull(1, 2));
+        batch.getInts(2)[batch.addRow()] = 7;
+        assertFalse(batch.isNull(2, 2));
+        assertFalse(batch.isNull(2, 0));
+
+        TupleBatch all = new TupleBatch(TD, 8);
+        all.add(tuple(5, "x", 5));
+        all.addAll(batch);
+        assertFalse(all.isNull(0, 2));
+        assertTrue(all.isNull(1, 2));
+        assertEquals(new IntField(7), all.getField(3, 2));
+
+        TupleBatch out = new TupleBatch(TD);
+        out.gather(0, all, new int[]{1, 0}, 2);
+        assertTrue(out.isNull(0, 2));
+        assertFalse(out.isNull(1, 2));
+
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE});
+        TupleBatch projected = all.project(td, new int[]{2, 2});
+        projected.select(new int[]{1, 2}, 2);
+        assertNull(projected.getTuple(0).getField(0));
+        assertNull(projected.getTuple(0).getField(1));
+        assertEquals(new IntField(2), projected.getTuple(1).getField(1));
+    }
+
+    private static Tuple single(int v) {
+        Tuple t = new Tuple(Utility.getTupleDesc(1));
+        t.setField(0, new IntField(v));
+        return t;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TupleBatchTest.class);
+    }
+}
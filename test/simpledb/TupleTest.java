@@ -1,10 +1,11 @@
 package simpledb;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Test;
 
+import simpledb.common.Type;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -31,6 +32,62 @@ public class TupleTest extends SimpleDbTestBase {
         assertEquals(new IntField(37), tup.getField(1));
     }
 
+    /**
+     * Unit test for CompactTuple: typed accessors, setField(Field) and
+     * copying fields from another tuple
+     */
+    @Test public void compactTuple() {
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE});
+        Tuple src = new Tuple(td);
+        src.setField(0, new IntField(7));
+        src.setField(1, new StringField("seven", Type.STRING_LEN));
+        src.setField(2, new IntField(-7));
+
+        CompactTuple tup = new CompactTuple(td);
+        for (int i = 0; i < td.numFields(); i++)
+            tup.setField(i, src, i);
+        assertEquals(7, tup.getInt(0));
+        assertEquals("seven", tup.getString(1));
+        assertEquals(new IntField(-7), tup.getField(2));
+        assertEquals(src.toString(), tup.toString());
+
+        tup.setField(0, new IntField(37));
+        tup.setInt(2, 12);
+        assertEquals(new IntField(37), tup.getField(0));
+        assertEquals(12, tup.getInt(2));
+        assertEquals(12, ((IntField) tup.getField(2)).getValue());
+    }
+
+    /**
+     * Unit test for CompactTuple fields that are not set: like in Tuple they
+     * read as null, can be set to null, and are copied as null
+     */
+    @Test public void compactTupleUnsetFields() {
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE});
+        CompactTuple tup = new CompactTuple(td);
+        for (int i = 0; i < td.numFields(); i++) {
+            assertNull(tup.getField(i));
+            assertFalse(tup.isSet(i));
+        }
+
+        tup.setInt(0, 5);
+        tup.setField(2, new IntField(0));
+        assertTrue(tup.isSet(0));
+        assertEquals(new IntField(0), tup.getField(2));
+        tup.setField(2, null);
+        assertNull(tup.getField(2));
+        assertFalse(tup.isSet(2));
+
+        Tuple src = new Tuple(td);
+        src.setField(2, new IntField(9));
+        for (int i = 0; i < td.numFields(); i++)
+            tup.setField(i, src, i);
+        assertNull(tup.getField(0));
+        assertNull(tup.getField(1));
+        assertEquals(new IntField(9), tup.getField(2));
+        assertEquals(src.toString(), tup.toString());
+    }
+
     /**
      * Unit test for Tuple.getTupleDesc()
      */
@@ -3,7 +3,9 @@ package simpledb.systemtest;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 import org.junit.Test;
 
@@ -90,6 +92,65 @@ public class AbortEvictionTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    /** With STEAL eviction, a scan through a pool of one page writes the
+     * uncommitted insert to disk. Abort must still undo it.
+     */
+    @Test public void testStealDirtyPages()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(1).setStealOnEvict(true);
+
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+        t.transactionComplete(true);
+
+        t = new Transaction();
+        t.start();
+        assertFalse(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /** With STEAL eviction, a transaction can insert into more pages than
+     * the pool holds, and all its rows are there after it commits.
+     */
+    @Test public void testStealLargeTransaction()
+            throws IOException, DbException, TransactionAbortedException {
+        final int ROWS = 512*5;
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        Database.resetBufferPool(2).setStealOnEvict(true);
+
+        Transaction t = new Transaction();
+        t.start();
+        TupleDesc twoIntColumns = Utility.getTupleDesc(2);
+        List<Tuple> rows = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++) {
+            Tuple value = new Tuple(twoIntColumns);
+            value.setField(0, new IntField(i));
+            value.setField(1, new IntField(-i));
+            rows.add(value);
+        }
+        Insert insert = new Insert(t.getId(), new TupleIterator(twoIntColumns, rows), f.getId());
+        insert.open();
+        assertEquals(ROWS, ((IntField)insert.next().getField(0)).getValue());
+        insert.close();
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        SeqScan ss = new SeqScan(t.getId(), f.getId(), "");
+        int count = 0;
+        ss.open();
+        while (ss.hasNext()) {
+            ss.next();
+            count++;
+        }
+        ss.close();
+        t.commit();
+        assertEquals(ROWS, count);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AbortEvictionTest.class);
@@ -0,0 +1,224 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Runs SeqScan, Filter, Project, HashEquiJoin and Aggregate through
+ * OpIterator.nextBatch() and checks the results against the expected
+ * tuples.
+ */
+public class BatchTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 3;
+
+    /** Scans tables of several sizes batch by batch. */
+    @Test public void testScan() throws IOException, DbException, TransactionAbortedException {
+        for (int rows : new int[]{0, 1, 1023, 1024, 1025, 5000}) {
+            List<List<Integer>> tuples = new ArrayList<>();
+            HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, null, tuples);
+            TransactionId tid = new TransactionId();
+            SystemTestUtil.matchBatches(new SeqScan(tid, f.getId(), ""), tuples);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /** Switches between next() and nextBatch() in the middle of a scan. */
+    @Test public void testScanMixed() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, 3000, null, tuples);
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "");
+        scan.open();
+
+        List<List<Integer>> seen = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            seen.add(SystemTestUtil.tupleToList(scan.next()));
+        TupleBatch batch = scan.nextBatch();
+        assertEquals(TupleBatch.DEFAULT_SIZE, batch.size());
+        for (int i = 0; i < batch.size(); i++)
+            seen.add(SystemTestUtil.tupleToList(batch.getTuple(i)));
+        while (scan.hasNext())
+            seen.add(SystemTestUtil.tupleToList(scan.next()));
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        assertEquals(tuples, seen);
+    }
+
+    /** Batches see the tuples a transaction has inserted but not flushed. */
+    @Test public void testScanDirtyPages() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, 200, null, tuples);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 10; i++) {
+            Tuple t = new Tuple(f.getTupleDesc());
+            for (int j = 0; j < COLUMNS; j++)
+                t.setField(j, new IntField(-i - j));
+            Database.getBufferPool().insertTuple(tid, f.getId(), t);
+            tuples.add(SystemTestUtil.tupleToList(t));
+        }
+        SystemTestUtil.matchBatches(new SeqScan(tid, f.getId(), ""), tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testFilter() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, 5000, 100, null, tuples);
+        for (Predicate.Op op : Predicate.Op.values()) {
+            List<List<Integer>> expected = new ArrayList<>();
+            for (List<Integer> t : tuples)
+                if (new IntField(t.get(1)).compare(op, new IntField(50)))
+                    expected.add(t);
+
+            TransactionId tid = new TransactionId();
+            Filter filter = new Filter(new Predicate(1, op, new IntField(50)),
+                    new SeqScan(tid, f.getId(), ""));
+            SystemTestUtil.matchBatches(filter, expected);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    @Test public void testProject() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, 2500, null, tuples);
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : tuples)
+            expected.add(Arrays.asList(t.get(2), t.get(0), t.get(2)));
+
+        // Project a column twice, then filter on it
+        TransactionId tid = new TransactionId();
+        Project project = new Project(Arrays.asList(2, 0, 2),
+                new Type[]{Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE},
+                new SeqScan(tid, f.getId(), ""));
+        SystemTestUtil.matchBatches(project, expected);
+
+        List<List<Integer>> filtered = new ArrayList<>();
+        for (List<Integer> t : expected)
+            if (t.get(2) < t.get(1))
+                filtered.add(t);
+        project.open();
+        List<List<Integer>> seen = new ArrayList<>();
+        TupleBatch batch;
+        while ((batch = project.nextBatch()) != null) {
+            int before = batch.size();
+            int[] sel = new int[before];
+            int n = 0;
+            for (int i = 0; i < before; i++)
+                if (batch.getInts(2)[i] < batch.getInts(1)[i])
+                    sel[n++] = i;
+            batch.select(sel, n);
+            for (int i = 0; i < batch.size(); i++)
+                seen.add(SystemTestUtil.tupleToList(batch.getTuple(i)));
+        }
+        project.close();
+        assertEquals(filtered, seen);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private void validateHashJoin(int rows1, int rows2, int maxValue)
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(2, rows1, maxValue, null, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(2, rows2, maxValue, null, t2Tuples);
+
+        Map<Integer, List<List<Integer>>> index = new HashMap<>();
+        for (List<Integer> t1 : t1Tuples)
+            index.computeIfAbsent(t1.get(1), k -> new ArrayList<>()).add(t1);
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t2 : t2Tuples) {
+            for (List<Integer> t1 : index.getOrDefault(t2.get(0), new ArrayList<>())) {
+                List<Integer> out = new ArrayList<>(t1);
+                out.addAll(t2);
+                expected.add(out);
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(1, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+        SystemTestUtil.matchBatches(join, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testHashJoin() throws IOException, DbException, TransactionAbortedException {
+        validateHashJoin(1, 1, 10);
+        validateHashJoin(2000, 3000, 50);
+        validateHashJoin(3000, 0, 50);
+    }
+
+    /** The build side is larger than one block of HashEquiJoin.MAP_SIZE tuples. */
+    @Test public void testHashJoinBlocks() throws IOException, DbException, TransactionAbortedException {
+        validateHashJoin(HashEquiJoin.MAP_SIZE + 5000, 300, 1000);
+    }
+
+    @Test public void testAggregate() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, 3000, 20, null, tuples);
+
+        for (Aggregator.Op op : new Aggregator.Op[]{Aggregator.Op.MIN, Aggregator.Op.MAX,
+                Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT}) {
+            // Without grouping
+            List<Integer> all = new ArrayList<>();
+            Map<Integer, List<Integer>> groups = new HashMap<>();
+            for (List<Integer> t : tuples) {
+                all.add(t.get(1));
+                groups.computeIfAbsent(t.get(0), k -> new ArrayList<>()).add(t.get(1));
+            }
+            List<List<Integer>> expected = new ArrayList<>();
+            expected.add(Arrays.asList(aggregate(op, all)));
+
+            TransactionId tid = new TransactionId();
+            Aggregate agg = new Aggregate(new SeqScan(tid, f.getId(), ""), 1, Aggregator.NO_GROUPING, op);
+            SystemTestUtil.matchTuples(agg, expected);
+
+            // Grouped
+            expected.clear();
+            for (Map.Entry<Integer, List<Integer>> e : groups.entrySet())
+                expected.add(Arrays.asList(e.getKey(), aggregate(op, e.getValue())));
+            agg = new Aggregate(new SeqScan(tid, f.getId(), ""), 1, 0, op);
+            SystemTestUtil.matchTuples(agg, expected);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    private static int aggregate(Aggregator.Op op, List<Integer> values) {
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE, sum = 0;
+        for (int v : values) {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+            sum += v;
+        }
+        switch (op) {
+            case MIN: return min;
+            case MAX: return max;
+            case SUM: return sum;
+            case AVG: return sum / values.size();
+            default: return values.size();
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BatchTest.class);
+    }
+}
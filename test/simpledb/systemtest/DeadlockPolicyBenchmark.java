@@ -0,0 +1,154 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DeadlockPolicy;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Compares the deadlock policies of the BufferPool under a skewed update
+ * workload. Each transaction updates a tuple on each of a few pages, picked
+ * so that most updates go to the first pages of the table. An update reads
+ * the page with a shared lock and then upgrades to an exclusive lock, which
+ * is what makes two transactions on the same page deadlock. An aborted
+ * transaction is retried with the same TransactionId until it commits, so
+ * under WAIT_DIE and WOUND_WAIT it keeps its age, after a random backoff
+ * that doubles with every abort.
+ * <p>
+ * Prints the committed transactions per second and the fraction of attempts
+ * that were aborted for each policy. Run with
+ * <pre>ant lockbench</pre>
+ * or pass the number of threads and the seconds per policy as arguments.
+ */
+public class DeadlockPolicyBenchmark {
+    private static final int PAGES = 16;
+    private static final int ROWS_PER_PAGE = 504;
+    private static final int UPDATES_PER_TXN = 4;
+    /* 页号取 PAGES * u^SKEW，u在[0,1)上均匀分布；SKEW越大越集中在前几页 */
+    private static final double SKEW = 3.0;
+    /* 事务中止后重试前的随机退避时间上限 */
+    private static final long MIN_BACKOFF_NANOS = 10000;
+    private static final long MAX_BACKOFF_NANOS = 1000000;
+
+    private static class Worker extends Thread {
+        private final int tableId;
+        private final long deadline;
+        private final Random rand;
+        int commits = 0;
+        int aborts = 0;
+        Throwable error;
+
+        Worker(int tableId, long deadline, long seed) {
+            this.tableId = tableId;
+            this.deadline = deadline;
+            this.rand = new Random(seed);
+        }
+
+        @Override
+        public void run() {
+            BufferPool bp = Database.getBufferPool();
+            try {
+                while (System.nanoTime() < deadline) {
+                    PageId[] pages = new PageId[UPDATES_PER_TXN];
+                    for (int i = 0; i < pages.length; i++)
+                        pages[i] = new HeapPageId(tableId, (int) (PAGES * Math.pow(rand.nextDouble(), SKEW)));
+                    TransactionId tid = new TransactionId();
+                    long backoff = MIN_BACKOFF_NANOS;
+                    while (true) {
+                        try {
+                            for (PageId pid : pages)
+                                update(bp, tid, pid);
+                            bp.transactionComplete(tid, true);
+                            commits++;
+                            break;
+                        } catch (TransactionAbortedException e) {
+                            bp.transactionComplete(tid, false);
+                            aborts++;
+                            // 立即重试多半又撞上同一个锁，随机退避一段时间，每次失败后加倍
+                            LockSupport.parkNanos((long) (rand.nextDouble() * backoff));
+                            backoff = Math.min(2 * backoff, MAX_BACKOFF_NANOS);
+                        }
+                    }
+                }
+            } catch (Throwable t) {
+                error = t;
+            }
+        }
+
+        private void update(BufferPool bp, TransactionId tid, PageId pid)
+                throws TransactionAbortedException, DbException {
+            HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+            int value = page.iterator().next().getInt(1);
+            page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+            Tuple t = page.iterator().next();
+            t.setField(1, new IntField(value + 1));
+            page.markDirty(true, tid);
+        }
+    }
+
+    private static void run(DeadlockPolicy policy, int threads, int seconds, PrintStream out)
+            throws IOException, InterruptedException {
+        Database.reset();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, PAGES * ROWS_PER_PAGE, null, null);
+        Database.getBufferPool().setDeadlockPolicy(policy);
+
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1000000000L;
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Worker w = new Worker(f.getId(), deadline, i);
+            workers.add(w);
+            w.start();
+        }
+        int commits = 0, aborts = 0;
+        for (Worker w : workers) {
+            w.join();
+            if (w.error != null)
+                throw new RuntimeException("worker failed", w.error);
+            commits += w.commits;
+            aborts += w.aborts;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        out.printf("%-12s %10.1f %10d %10d %11.1f%%%n", policy, commits / elapsed, commits, aborts,
+                100.0 * aborts / Math.max(1, commits + aborts));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        PrintStream out = System.out;
+        out.printf("%d threads, %d s per policy, %d pages, %d updates per transaction%n",
+                threads, seconds, PAGES, UPDATES_PER_TXN);
+        out.printf("%-12s %10s %10s %10s %12s%n", "policy", "commits/s", "commits", "aborts", "abort rate");
+        // BufferPool在每次提交时都会打印一行，测量期间丢掉这些输出
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        try {
+            for (DeadlockPolicy policy : DeadlockPolicy.values())
+                run(policy, threads, seconds, out);
+        } finally {
+            System.setOut(out);
+        }
+    }
+}
@@ -118,6 +118,12 @@ public class LogTest extends SimpleDbTestBase {
         Database.getLogFile().recover();
     }
 
+    // the segment files of the log, in order
+    TreeSet<File> logSegments() {
+        File[] files = new File(".").getAbsoluteFile().listFiles((dir, name) -> name.matches("log\\.[0-9]+"));
+        return new TreeSet<>(Arrays.asList(files));
+    }
+
     // create an initial database with two empty tables
     // does *not* initiate log file recovery
     void setup()
@@ -436,6 +442,662 @@ public class LogTest extends SimpleDbTestBase {
     }
 
 
+    @Test public void TestNoForceCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        Database.getLogFile().logCheckpoint();
+
+        // *** Test:
+        // NO-FORCE: T1 and T2 insert into the same page and commit,
+        // which only logs the page
+        // crash: redo of the log should bring back both inserts
+
+        Database.getBufferPool().setForceOnCommit(false);
+        HeapPage xp1 = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        t1.commit();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 4);
+        t2.commit();
+        HeapPage xp2 = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        if(xp1.getNumEmptySlots() != xp2.getNumEmptySlots())
+            throw new RuntimeException("LogTest: NO-FORCE commit wrote the HeapFile");
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, true);
+        t.commit();
+    }
+
+    @Test public void TestStealCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        doInsert(hf2, 21, -1);
+        Database.getLogFile().logCheckpoint();
+
+        // *** Test:
+        // STEAL: T1 inserts into hf1, then reads hf2 through a pool of
+        // one page, which writes the uncommitted page to hf1
+        // crash: undo of the log should remove the insert
+
+        Database.resetBufferPool(1).setStealOnEvict(true);
+        HeapPage xp1 = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        look(hf2, t1, 21, true);
+        HeapPage xp2 = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        if(xp1.getNumEmptySlots() == xp2.getNumEmptySlots())
+            throw new RuntimeException("LogTest: STEAL eviction did not write the HeapFile");
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf2, t, 21, true);
+        t.commit();
+    }
+
+    @Test public void TestLongLogCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        doInsert(hf2, 21, 22);
+
+        // *** Test:
+        // T1 and T2 log many more page images than the log buffer holds;
+        // T1 commits, T2 aborts
+        // crash: T1's inserts should be redone, T2's undone
+
+        final int ROWS = 40;
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        for (int i = 0; i < ROWS; i++) {
+            insertRow(hf1, t1, 100 + i);
+            insertRow(hf2, t2, 200 + i);
+            Database.getBufferPool().flushAllPages();
+        }
+        t1.commit();
+        abort(t2);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf2, t, 21, true);
+        for (int i = 0; i < ROWS; i++) {
+            look(hf1, t, 100 + i, true);
+            look(hf2, t, 200 + i, false);
+        }
+        t.commit();
+    }
+
+    @Test public void TestOpenCrashTwice()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts into a page the log has seen before, so only the
+        // change is logged, and commits; T2 does the same and stays open
+        // crash: T1 should be redone and T2 undone
+        // T3 commits, crash again: T2 must not be undone a second time
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        t1.commit();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 4);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        look(hf1, t3, 3, true);
+        look(hf1, t3, 4, false);
+        insertRow(hf1, t3, 5);
+        t3.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, false);
+        look(hf1, t, 5, true);
+        t.commit();
+    }
+
+    @Test public void TestGroupCommitCrash()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        doInsert(hf2, 21, 22);
+
+        // *** Test:
+        // two threads commit into hf1 and hf2 at the same time, sharing
+        // log forces through group commit
+        // crash: every commit that returned should be redone
+
+        Database.getLogFile().setGroupCommitSize(2);
+        Database.getLogFile().setGroupCommitWait(20000);
+        final int COMMITS = 10;
+        final Throwable[] errors = new Throwable[2];
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            final int id = i;
+            final HeapFile hf = i == 0 ? hf1 : hf2;
+            threads[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < COMMITS; j++) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        insertRow(hf, t, 100 * (id + 1) + j);
+                        t.commit();
+                    }
+                } catch (Throwable e) {
+                    errors[id] = e;
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertNull(errors[0]);
+        assertNull(errors[1]);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int j = 0; j < COMMITS; j++) {
+            look(hf1, t, 100 + j, true);
+            look(hf2, t, 200 + j, true);
+        }
+        t.commit();
+    }
+
+    @Test public void TestNoForceCommitHoldsLocksUntilDurable()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // NO-FORCE: T1 inserts into hf1 and commits; the group commit
+        // leader waits for a second commit that never comes, so the
+        // COMMIT record of T1 is only forced after the wait
+        // T2 reads hf1 meanwhile: it must not get the lock of T1's page
+        // before the COMMIT record is forced
+        // crash: T1 is redone
+
+        Database.getBufferPool().setForceOnCommit(false);
+        Database.getLogFile().setGroupCommitSize(2);
+        final long WAIT_MILLIS = 500;
+        Database.getLogFile().setGroupCommitWait(WAIT_MILLIS * 1000);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        final Throwable[] error = new Throwable[1];
+        Thread committer = new Thread(() -> {
+            try {
+                t1.commit();
+            } catch (Throwable e) {
+                error[0] = e;
+            }
+        });
+        long start = System.nanoTime();
+        committer.start();
+        Thread.sleep(WAIT_MILLIS / 5);
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        look(hf1, t2, 3, true);
+        long waited = (System.nanoTime() - start) / 1000000;
+        t2.commit();
+        committer.join();
+        assertNull(error[0]);
+        assertTrue("read T1's insert after " + waited + "ms", waited >= WAIT_MILLIS);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestPageLsn()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a page read from disk has no LSN; logging a change of a page
+        // gives it the LSN of the record, which grows with every record
+
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        assertEquals(Page.NO_LSN, hf1.readPage(pid).getLSN());
+
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 3);
+        Page p = Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_ONLY);
+        long committed = p.getLSN();
+        assertTrue(committed > 0);
+        Database.getBufferPool().flushAllPages();
+        long flushed = p.getLSN();
+        assertTrue(flushed > committed);
+        insertRow(hf1, t, 4);
+        t.commit();
+        assertTrue(p.getLSN() > flushed);
+    }
+
+    @Test public void TestCheckpointFlushCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        Database.getLogFile().logCheckpoint();
+        doInsert(hf1, 3, 4);
+
+        // *** Test:
+        // the checkpoint truncated the log
+        // T1 inserts, its page is written to disk
+        // T2 commits into hf2
+        // crash twice: redo skips the records already on disk,
+        // and undo removes T1's row once
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 5);
+        Database.getBufferPool().flushAllPages();
+        doInsert(hf2, 21, 22);
+
+        crash();
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, true);
+        look(hf1, t, 5, false);
+        look(hf2, t, 21, true);
+        look(hf2, t, 22, true);
+        t.commit();
+    }
+
+    @Test public void TestTornLogTailCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // the system crashed while the last record was written:
+        // recovery drops the partial record, and the records logged
+        // after recovery are read back by the next recovery
+
+        try (RandomAccessFile log = new RandomAccessFile(logSegments().last(), "rw")) {
+            log.seek(log.length());
+            log.writeInt(3); // UPDATE record type
+            log.writeShort(0);
+        }
+        crash();
+        doInsert(hf1, 3, -1);
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestSegmentTruncationCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        // segments smaller than a page image, so that records span segments
+        Database.getLogFile().setSegmentSize(1024);
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 stays active across checkpoints while others commit
+        // truncation deletes the segments before T1's first record only,
+        // without copying records
+        // crash: T1 is undone, the others are there
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf2, t1, 3);
+        // writing the page writes the log up to T1's records
+        Database.getBufferPool().flushAllPages();
+        File firstKept = logSegments().last();
+        for (int i = 10; i < 20; i++) {
+            doInsert(hf1, i, -1);
+            Database.getLogFile().logCheckpoint();
+        }
+        assertFalse(new File("log.00000000").exists());
+        assertTrue(firstKept.exists());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        for (int i = 10; i < 20; i++)
+            look(hf1, t, i, true);
+        look(hf2, t, 3, false);
+        t.commit();
+
+        // once T1 is over, the next checkpoint lets go of its segments
+        Database.getLogFile().logCheckpoint();
+        assertFalse(firstKept.exists());
+    }
+
+    @Test public void TestAbortAfterLongLogCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getLogFile().setSegmentSize(4096);
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts into hf1 and writes its page
+        // many transactions commit into hf2, over several log segments
+        // T1 aborts: its rollback walks back over its own records only
+        // crash: T1's insert stays undone, the others are there
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Database.getBufferPool().flushAllPages();
+        for (int i = 10; i < 40; i++)
+            doInsert(hf2, i, -1);
+        insertRow(hf1, t1, 4);
+        abort(t1);
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, false);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, false);
+        for (int i = 10; i < 40; i++)
+            look(hf2, t, i, true);
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpointCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // NO-FORCE: T1 commits into hf1, which only logs the page
+        // checkpoint: the page is still not written, the checkpoint
+        // records it in its dirty page table instead
+        // T2 commits into hf2
+        // crash: redo must start before the checkpoint to bring back T1
+
+        Database.getBufferPool().setForceOnCommit(false);
+        HeapPage xp1 = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        t1.commit();
+
+        Database.getLogFile().logCheckpoint();
+        HeapPage xp2 = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        if(xp1.getNumEmptySlots() != xp2.getNumEmptySlots())
+            throw new RuntimeException("LogTest: checkpoint wrote the HeapFile");
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf2, t2, 21);
+        t2.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        look(hf2, t, 21, true);
+        t.commit();
+    }
+
+    @Test public void TestCheckpointDoesNotBlock()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a checkpoint completes while another thread holds the buffer
+        // pool's lock, since it writes no pages
+
+        final Throwable[] error = new Throwable[1];
+        Thread checkpoint = new Thread(() -> {
+            try {
+                Database.getLogFile().logCheckpoint();
+            } catch (Throwable e) {
+                error[0] = e;
+            }
+        });
+        synchronized (Database.getBufferPool()) {
+            checkpoint.start();
+            checkpoint.join(10000);
+            assertFalse(checkpoint.isAlive());
+        }
+        assertNull(error[0]);
+    }
+
+    @Test public void TestBackgroundWriterCrash()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // NO-FORCE: T1 commits into hf1, which only logs the page
+        // the background writer writes the page out
+        // checkpoint, crash: T1's insert is on disk
+
+        Database.getBufferPool().setForceOnCommit(false);
+        Database.getBufferPool().setBackgroundWriteInterval(1);
+        HeapPage xp1 = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        t1.commit();
+
+        long deadline = System.currentTimeMillis() + 10000;
+        HeapPage xp2 = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        while (xp1.getNumEmptySlots() == xp2.getNumEmptySlots() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+            xp2 = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        }
+        Database.getBufferPool().setBackgroundWriteInterval(0);
+        assertEquals(xp1.getNumEmptySlots() - 1, xp2.getNumEmptySlots());
+
+        Database.getLogFile().logCheckpoint();
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    // replace hf1 in the catalog by a HeapFile of the same file, with the
+    // same table id, that counts how often it is synced
+    int[] countSyncs() {
+        final int[] syncs = new int[1];
+        hf1 = new HeapFile(file1, Utility.getTupleDesc(2)) {
+            @Override
+            public void sync() throws IOException {
+                syncs[0]++;
+                super.sync();
+            }
+        };
+        Database.getCatalog().addTable(hf1, UUID.randomUUID().toString());
+        return syncs;
+    }
+
+    @Test public void TestCheckpointSyncsWrittenPages()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        int[] syncs = countSyncs();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // NO-FORCE: T1 commits into hf1 and its page is written out,
+        // which does not sync the file
+        // checkpoint: hf1 is synced before the page leaves the dirty
+        // page table; a second checkpoint has nothing to sync
+        // crash: T1's insert is there
+
+        Database.getBufferPool().setForceOnCommit(false);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        t1.commit();
+        Database.getBufferPool().flushAllPages();
+        assertEquals(0, syncs[0]);
+
+        Database.getLogFile().logCheckpoint();
+        assertEquals(1, syncs[0]);
+        Database.getLogFile().logCheckpoint();
+        assertEquals(1, syncs[0]);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestRollbackWriteSyncedAtCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        int[] syncs = countSyncs();
+        doInsert(hf1, 1, 2);
+        Database.getLogFile().logCheckpoint();
+        assertEquals(1, syncs[0]);
+
+        // *** Test:
+        // T1 inserts, its page is written and hf1 synced by a checkpoint
+        // T1 aborts: rollback writes the restored page straight to hf1,
+        // but like a page the buffer pool writes it only counts as on
+        // disk once the next checkpoint has synced hf1
+        // crash: T1's insert stays undone
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        assertEquals(2, syncs[0]);
+        t1.abort();
+        assertEquals(2, syncs[0]);
+        Database.getLogFile().logCheckpoint();
+        assertEquals(3, syncs[0]);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+    }
+
+    @Test public void TestForgottenImageAbortCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        doInsert(hf2, 21, 22);
+
+        // *** Test:
+        // the log remembers one page image
+        // T1 changes hf2's page, logged as a DELTA record, then hf1's:
+        // the log forgets hf2's image and logs it for T1 instead
+        // T1 aborts: rollback rebuilds hf2's page from T1's records
+        // T2 does the same and stays open; crash: recovery undoes it
+
+        Database.getLogFile().setLoggedImagePages(1);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf2, t1, 23);
+        Database.getBufferPool().flushAllPages();
+        insertRow(hf1, t1, 3);
+        Database.getBufferPool().flushAllPages();
+        t1.abort();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 3, false);
+        look(hf2, t, 21, true);
+        look(hf2, t, 23, false);
+        t.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf2, t2, 24);
+        Database.getBufferPool().flushAllPages();
+        insertRow(hf1, t2, 4);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, false);
+        look(hf2, t, 21, true);
+        look(hf2, t, 22, true);
+        look(hf2, t, 23, false);
+        look(hf2, t, 24, false);
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
@@ -14,6 +14,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -110,6 +111,100 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /** Verifies that scanning a table larger than the buffer pool does not
+     * evict the pages of a small table that was scanned before it.
+     * @throws TransactionAbortedException
+     * @throws DbException */
+    @Test public void testScanRing() throws IOException, DbException, TransactionAbortedException {
+        /* Counts the number of readPage operations. */
+        class InstrumentedHeapFile extends HeapFile {
+            public InstrumentedHeapFile(File f, TupleDesc td) {
+                super(f, td);
+            }
+
+            @Override
+            public Page readPage(PageId pid) throws NoSuchElementException {
+                readCount += 1;
+                return super.readPage(pid);
+            }
+
+            public int readCount = 0;
+        }
+
+        final int POOL_PAGES = 10;
+        Database.resetBufferPool(POOL_PAGES);
+        TupleDesc td = Utility.getTupleDesc(1);
+
+        List<List<Integer>> hotTuples = new ArrayList<>();
+        File hotFile = SystemTestUtil.createRandomHeapFileUnopened(1, 992 * 2, 1000, null, hotTuples);
+        InstrumentedHeapFile hot = new InstrumentedHeapFile(hotFile, td);
+        Database.getCatalog().addTable(hot, SystemTestUtil.getUUID());
+
+        List<List<Integer>> bigTuples = new ArrayList<>();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(1, 992 * POOL_PAGES * 3, 1000, null, bigTuples);
+
+        SystemTestUtil.matchTuples(hot, hotTuples);
+        assertEquals(2, hot.readCount);
+        hot.readCount = 0;
+
+        // The large scan goes through a scan ring and leaves the small table cached
+        SystemTestUtil.matchTuples(big, bigTuples);
+        SystemTestUtil.matchTuples(hot, hotTuples);
+        assertEquals(0, hot.readCount);
+    }
+
+    /** Verifies that a sequential scan prefetches pages in the background and
+     * still returns every tuple exactly once.
+     * @throws TransactionAbortedException
+     * @throws DbException */
+    @Test public void testReadAhead() throws IOException, DbException, TransactionAbortedException {
+        /* Counts the readPage operations done by the read-ahead threads. */
+        class InstrumentedHeapFile extends HeapFile {
+            public InstrumentedHeapFile(File f, TupleDesc td) {
+                super(f, td);
+            }
+
+            @Override
+            public Page readPage(PageId pid) throws NoSuchElementException {
+                if (Thread.currentThread().getName().startsWith("read-ahead"))
+                    prefetchCount.incrementAndGet();
+                return super.readPage(pid);
+            }
+
+            public final AtomicInteger prefetchCount = new AtomicInteger();
+        }
+
+        final int PAGES = 40;
+        List<List<Integer>> tuples = new ArrayList<>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 992*PAGES, 1000, null, tuples);
+        InstrumentedHeapFile table = new InstrumentedHeapFile(f, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        SystemTestUtil.matchTuples(table, tuples);
+        assertTrue(table.prefetchCount.get() > 0);
+    }
+
+    /** Scans a memory-mapped table, then again after the table has grown. */
+    @Test public void testMemoryMappedScan() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * 5 + 100, 1000, null, tuples);
+        HeapFile table = Utility.openMappedHeapFile(2, f);
+        SystemTestUtil.matchTuples(table, tuples);
+
+        // Grow the file past the current mapping
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 504; i++) {
+            Tuple t = new Tuple(table.getTupleDesc());
+            t.setField(0, new IntField(i));
+            t.setField(1, new IntField(-i));
+            Database.getBufferPool().insertTuple(tid, table.getId(), t);
+            tuples.add(SystemTestUtil.tupleToList(t));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(table, tuples);
+    }
+
     /** Verifies SeqScan's getTupleDesc prefixes the table name + "." to the field names
      * @throws IOException
      */
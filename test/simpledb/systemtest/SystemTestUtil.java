@@ -3,6 +3,7 @@ package simpledb.systemtest;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -86,6 +87,7 @@ public class SystemTestUtil {
         // Convert the tuples list to a heap file and open it
         File temp = File.createTempFile("table", ".dat");
         temp.deleteOnExit();
+        FreeSpaceMap.fileFor(temp).deleteOnExit();
         HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), columns);
         return temp;
     }
@@ -151,6 +153,40 @@ public class SystemTestUtil {
         }
     }
 
+    /**
+     * Like {@link #matchTuples(OpIterator, List)}, but reads the tuples of
+     * iterator through {@link OpIterator#nextBatch()}.
+     */
+    public static void matchBatches(OpIterator iterator, List<List<Integer>> tuples)
+            throws DbException, TransactionAbortedException {
+        // 结果可能很多，用计数代替在列表里逐个删除
+        Map<List<Integer>, Integer> expected = new HashMap<>();
+        for (List<Integer> t : tuples)
+            expected.merge(t, 1, Integer::sum);
+
+        iterator.open();
+        TupleBatch batch;
+        while ((batch = iterator.nextBatch()) != null) {
+            Assert.assertFalse(batch.isEmpty());
+            for (int i = 0; i < batch.size(); i++) {
+                Tuple t = batch.getTuple(i);
+                List<Integer> list = tupleToList(t);
+                Integer n = expected.get(list);
+                if (n == null)
+                    Assert.fail("expected tuples does not contain: " + t);
+                if (n == 1)
+                    expected.remove(list);
+                else
+                    expected.put(list, n - 1);
+            }
+        }
+        iterator.close();
+
+        if (!expected.isEmpty())
+            Assert.fail("expected to find " + expected.size() + " more distinct tuples, e.g. "
+                    + expected.keySet().iterator().next());
+    }
+
     /**
      * Returns number of bytes of RAM used by JVM after calling System.gc many times.
      * @return amount of RAM (in bytes) used by JVM